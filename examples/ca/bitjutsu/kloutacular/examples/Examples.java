@@ -1,55 +1,366 @@
 package ca.bitjutsu.kloutacular.examples;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+import org.json.JSONObject;
+
 import ca.bitjutsu.kloutacular.v1.KloutProfile;
 import ca.bitjutsu.kloutacular.v1.KloutScoreManager;
-import ca.bitjutsu.kloutacular.v1.KloutScoreManager.OnProfileUpdatedListener;
 
 /*
- * Serves as a command line Klout API utility.
+ * Serves as a command line Klout API utility.  Either requests the users named on the command
+ * line and prints their profiles, or, in batch mode, streams screen names from a file or stdin
+ * (one per line) and writes each result as a line of JSON, followed by throughput and latency
+ * statistics on stderr.
  */
-public class Examples {	
-	public static void main(String args[]) {
+public class Examples {
+	private static final int DEFAULT_CONCURRENCY = 100;
+	private static final int WRITE_BUFFER = 64 * 1024;
+
+	public static void main(String args[]) throws IOException, InterruptedException {
 		if (args.length < 3) {
 			System.out.println("Usage: \"java Examples <apikey> <user/score/influencer_of/influenced_by/topics> <user1> [user2...]\"");
+			System.out.println("   or: \"java Examples <apikey> <user/score/influencer_of/influenced_by/topics> --batch <file or -> [--concurrency <n>] [--out <file>]\"");
 			return;
 		}
-		
+
 		if (!(args[1].equals("user") || args[1].equals("score")
 				|| args[1].equals("influencer_of") || args[1].equals("influenced_by") || args[1].equals("topics"))) {
 			System.out.println("Request type \"" + args[1] + "\" not recognized.");
 			return;
 		}
-		
+
 		String apiKey = args[0];
 		String requestType = args[1];
-		
+
 		// Obtain a KloutScoreManager instance.
 		KloutScoreManager kloutMan = KloutScoreManager.getInstance(apiKey);
-		
-		// This listener is called when KloutScoreManager receives results
-		// from the Klout API and updates or adds a KloutProfile
-		kloutMan.addOnProfileUpdatedListener(new OnProfileUpdatedListener() {
-			public void onUpdate(KloutProfile kp) {
+
+		try {
+			if (args[2].equals("--batch"))
+				runBatch(kloutMan, requestType, args);
+			else
+				runUsers(kloutMan, requestType, Arrays.asList(args).subList(2, args.length));
+		} finally {
+			// Let the worker threads go, so the JVM can exit
+			kloutMan.shutdown();
+		}
+	}
+
+	/*
+	 * Request each user named on the command line, and print their profiles as they arrive.
+	 */
+	private static void runUsers(KloutScoreManager kloutMan, String requestType, List<String> users) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		request(kloutMan, requestType, users).subscribe(new Flow.Subscriber<KloutProfile>() {
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			public void onNext(KloutProfile kp) {
 				System.out.println(kp);
 			}
+
+			public void onError(Throwable t) {
+				t.printStackTrace();
+				done.countDown();
+			}
+
+			public void onComplete() {
+				done.countDown();
+			}
 		});
-		
-		// Iterate through users passed and perform the action specified on that user.
+		done.await();
+	}
+
+	/*
+	 * Stream screen names through the manager, keeping <concurrency> requests in flight, and write
+	 * the results as NDJSON.  Users whose request failed are written at the end, with an error.
+	 */
+	private static void runBatch(KloutScoreManager kloutMan, String requestType, String[] args) throws IOException, InterruptedException {
+		String in = null;
+		String out = null;
+		int concurrency = DEFAULT_CONCURRENCY;
 		for (int i = 2; i < args.length; i++) {
-			if (requestType.equals("user"))
-				kloutMan.requestUser(args[i]);
-			
-			if (requestType.equals("score"))
-				kloutMan.requestKlout(args[i]);
-			
-			if (requestType.equals("influencer_of"))
-				kloutMan.requestInfluencerOf(args[i]);
-			
-			if (requestType.equals("influencedBy"))
-				kloutMan.requestInfluencedBy(args[i]);
-			
-			if (requestType.equals("topics"))
-				kloutMan.requestTopics(args[i]);
+			if (args[i].equals("--batch") && i + 1 < args.length) {
+				in = args[++i];
+			} else if (args[i].equals("--concurrency") && i + 1 < args.length) {
+				concurrency = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--out") && i + 1 < args.length) {
+				out = args[++i];
+			} else {
+				System.out.println("Option \"" + args[i] + "\" not recognized.");
+				return;
+			}
+		}
+		if (in == null) {
+			System.out.println("--batch needs a file, or - for stdin.");
+			return;
+		}
+
+		InputStream input = in.equals("-") ? System.in : new FileInputStream(in);
+		OutputStream output = (out == null) ? System.out : new FileOutputStream(out);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"), WRITE_BUFFER);
+
+		kloutMan.setBatchConcurrency(concurrency);
+		BatchStats stats = new BatchStats();
+		ScreenNames names = new ScreenNames(reader, stats);
+		BatchWriter batch = new BatchWriter(writer, stats, concurrency);
+		request(kloutMan, requestType, names).subscribe(batch);
+		batch.await();
+
+		// Whoever is still waiting never got an answer
+		for (String screenName : stats.mStarted.keySet()) {
+			writer.write("{\"screen_name\":" + JSONObject.quote(screenName) + ",\"error\":\"not found\"}\n");
+			stats.mFailed++;
+		}
+		writer.flush();
+		if (output != System.out)
+			writer.close();
+		reader.close();
+
+		stats.print(System.err);
+	}
+
+	private static Flow.Publisher<KloutProfile> request(KloutScoreManager kloutMan, String requestType, Iterable<String> users) {
+		if (requestType.equals("user"))
+			return kloutMan.requestUserBatch(users);
+		if (requestType.equals("score"))
+			return kloutMan.requestKloutBatch(users);
+		if (requestType.equals("influencer_of"))
+			return kloutMan.requestInfluencerOfBatch(users);
+		if (requestType.equals("influenced_by"))
+			return kloutMan.requestInfluencedByBatch(users);
+		return kloutMan.requestTopicsBatch(users);
+	}
+
+	/*
+	 * The screen names in a batch, read a line at a time as the batch asks for them.  Each is timed
+	 * from the moment it is handed out.
+	 */
+	private static class ScreenNames implements Iterable<String> {
+		private BufferedReader mReader;
+		private BatchStats mStats;
+
+		public ScreenNames(BufferedReader reader, BatchStats stats) {
+			mReader = reader;
+			mStats = stats;
+		}
+
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+				private String mNext;
+
+				public boolean hasNext() {
+					if (mNext != null)
+						return true;
+
+					try {
+						String line;
+						while ((line = mReader.readLine()) != null) {
+							line = line.trim();
+							if (line.startsWith("@"))
+								line = line.substring(1);
+							if (line.length() > 0) {
+								mNext = line;
+								return true;
+							}
+						}
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+					return false;
+				}
+
+				public String next() {
+					if (!hasNext())
+						throw new NoSuchElementException();
+
+					String next = mNext;
+					mNext = null;
+					mStats.started(next);
+					return next;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/*
+	 * Writes each result of a batch as a line of JSON, asking for another result for every one it
+	 * gets, so the batch always has <concurrency> requests in flight.
+	 */
+	private static class BatchWriter implements Flow.Subscriber<KloutProfile> {
+		private Writer mWriter;
+		private BatchStats mStats;
+		private int mConcurrency;
+		private Flow.Subscription mSubscription;
+		private CountDownLatch mDone = new CountDownLatch(1);
+		private StringBuilder mLine = new StringBuilder(256);
+
+		public BatchWriter(Writer writer, BatchStats stats, int concurrency) {
+			mWriter = writer;
+			mStats = stats;
+			mConcurrency = concurrency;
+		}
+
+		public void await() throws InterruptedException {
+			mDone.await();
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			mSubscription = subscription;
+			mStats.mStart = System.nanoTime();
+			subscription.request(mConcurrency);
+		}
+
+		public void onNext(KloutProfile kp) {
+			mStats.finished(kp.getScreenName());
+			mLine.setLength(0);
+			toJson(kp, mLine);
+			mLine.append('\n');
+			try {
+				mWriter.write(mLine.toString());
+			} catch (IOException e) {
+				e.printStackTrace();
+				mSubscription.cancel();
+				mDone.countDown();
+				return;
+			}
+			mSubscription.request(1);
+		}
+
+		public void onError(Throwable t) {
+			t.printStackTrace();
+			mStats.mEnd = System.nanoTime();
+			mDone.countDown();
+		}
+
+		public void onComplete() {
+			mStats.mEnd = System.nanoTime();
+			mDone.countDown();
+		}
+	}
+
+	/*
+	 * Counts and times the requests in a batch.
+	 */
+	private static class BatchStats {
+		private ConcurrentHashMap<String, Long> mStarted = new ConcurrentHashMap<String, Long>();
+		private long mStart;
+		private volatile long mEnd;
+		private int mFailed;
+		// Latencies in microseconds, only touched by the thread delivering results
+		private int[] mLatencies = new int[1024];
+		private int mCount;
+
+		private void started(String screenName) {
+			mStarted.put(screenName, System.nanoTime());
+		}
+
+		private void finished(String screenName) {
+			Long started = mStarted.remove(screenName);
+			// A name asked for twice is only timed once
+			if (started == null)
+				return;
+
+			if (mCount == mLatencies.length)
+				mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+			mLatencies[mCount++] = (int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - started) / 1000);
+		}
+
+		private void print(PrintStream out) {
+			long end = (mEnd != 0) ? mEnd : System.nanoTime();
+			double seconds = Math.max(1, end - mStart) / 1e9;
+			out.println(String.format("%d results, %d failed in %.1f s (%.1f results/s)",
+					mCount, mFailed, seconds, mCount / seconds));
+			if (mCount == 0)
+				return;
+
+			int[] sorted = Arrays.copyOf(mLatencies, mCount);
+			Arrays.sort(sorted);
+			long sum = 0;
+			for (int latency : sorted) {
+				sum += latency;
+			}
+			out.println(String.format("latency ms: mean %.1f, p50 %.1f, p95 %.1f, p99 %.1f, max %.1f",
+					sum / 1000.0 / mCount, percentile(sorted, 0.50), percentile(sorted, 0.95),
+					percentile(sorted, 0.99), sorted[mCount - 1] / 1000.0));
+		}
+
+		private static double percentile(int[] sorted, double p) {
+			int i = (int) Math.ceil(p * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1000.0;
+		}
+	}
+
+	/*
+	 * Append a profile as a JSON object, leaving out whatever it doesn't have.
+	 */
+	private static void toJson(KloutProfile kp, StringBuilder sb) {
+		sb.append("{\"screen_name\":").append(JSONObject.quote(kp.getScreenName()));
+		if (kp.getScore() > 0)
+			sb.append(",\"score\":").append(kp.getScore());
+		if (kp.getKloutClass() != null) {
+			sb.append(",\"amplification\":").append(kp.getAmplification());
+			sb.append(",\"network\":").append(kp.getNetwork());
+			sb.append(",\"true_reach\":").append(kp.getTrueReach());
+			sb.append(",\"slope\":").append(kp.getSlope());
+			sb.append(",\"delta_1day\":").append(kp.getOneDayDelta());
+			sb.append(",\"delta_5day\":").append(kp.getFiveDayDelta());
+			sb.append(",\"class_id\":").append(kp.getKloutClassId());
+			sb.append(",\"class\":").append(JSONObject.quote(kp.getKloutClass()));
+			if (kp.getKloutClassDescription() != null)
+				sb.append(",\"class_description\":").append(JSONObject.quote(kp.getKloutClassDescription()));
+			if (kp.getUserDescription() != null)
+				sb.append(",\"user_description\":").append(JSONObject.quote(kp.getUserDescription()));
+		}
+		if (kp.getTopics() != null)
+			appendStrings(sb, "topics", kp.getTopics());
+		if (kp.getInfluencedBy() != null)
+			appendStrings(sb, "influenced_by", screenNames(kp.getInfluencedBy()));
+		if (kp.getInfluencerOf() != null)
+			appendStrings(sb, "influencer_of", screenNames(kp.getInfluencerOf()));
+		sb.append('}');
+	}
+
+	private static List<String> screenNames(List<KloutProfile> profiles) {
+		ArrayList<String> names = new ArrayList<String>(profiles.size());
+		for (KloutProfile kp : profiles) {
+			names.add(kp.getScreenName());
+		}
+		return names;
+	}
+
+	private static void appendStrings(StringBuilder sb, String name, List<String> values) {
+		sb.append(",\"").append(name).append("\":[");
+		for (int i = 0; i < values.size(); i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(JSONObject.quote(values.get(i)));
 		}
+		sb.append(']');
 	}
 }
@@ -0,0 +1,242 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread pool that sizes itself, within bounds, from the work it sees.  By Little's law, the
+ * number of tasks in flight is the rate they arrive at times how long each takes, so every few
+ * seconds the pool measures how long its tasks take, leaving out any time they spent waiting on the
+ * {@link KeyPool} for a key, and how fast they arrive, adds enough to drain
+ * any backlog, caps the rate at what the {@link KeyPool} allows (threads beyond that would only
+ * wait for a key), and resizes to fit.  The pool grows straight away when latency spikes, and
+ * shrinks by half the difference at a time, so a lull doesn't leave it short when work returns.
+ *
+ * What the pool measured on its last tick can be read for monitoring, along with the usual
+ * {@link ThreadPoolExecutor} statistics.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class AdaptiveExecutor extends ThreadPoolExecutor {
+	// How often to resize the pool, in milliseconds
+	private static final long TUNE_INTERVAL = 5000;
+	// How long the pool should take to work through a backlog, in seconds
+	private static final double DRAIN_TIME = 10;
+	// How much each tick's measurements count for against the ones before
+	private static final double SMOOTHING = 0.5;
+
+	private final KeyPool mKeyPool;
+	// When the running task started, and how long its thread had waited for keys by then
+	private final ThreadLocal<long[]> mStarted = new ThreadLocal<long[]>();
+	private final AtomicLong mSubmitted = new AtomicLong();
+	private final AtomicLong mCompleted = new AtomicLong();
+	private final AtomicLong mBusyMillis = new AtomicLong();
+	private ScheduledFuture<?> mTuning;
+
+	// Guarded by this
+	private int mMinSize;
+	private int mMaxSize;
+	private long mLastTick;
+	private long mLastSubmitted;
+	private long mLastCompleted;
+	private long mLastBusyMillis;
+
+	// The measurements from the last tick, for monitoring
+	private volatile double mLatency;
+	private volatile double mArrivalRate;
+	private volatile double mThroughput;
+	private volatile double mCallRate;
+	private volatile int mTargetSize;
+
+	/**
+	 * @param initialSize the number of threads to start with, until the first tick
+	 * @param minSize the fewest threads to shrink to
+	 * @param maxSize the most threads to grow to
+	 * @param queue the work queue
+	 * @param handler what to do with tasks the queue refuses
+	 * @param keyPool the key pool the tasks' calls are made with, to cap the pool at its rate limit
+	 */
+	public AdaptiveExecutor(int initialSize, int minSize, int maxSize, BlockingQueue<Runnable> queue,
+							RejectedExecutionHandler handler, KeyPool keyPool) {
+		super(clamp(initialSize, minSize, maxSize), clamp(initialSize, minSize, maxSize), 0L, TimeUnit.MILLISECONDS,
+				queue, handler);
+		checkBounds(minSize, maxSize);
+		mMinSize = minSize;
+		mMaxSize = maxSize;
+		mKeyPool = keyPool;
+		mTargetSize = getCorePoolSize();
+		mLastTick = System.currentTimeMillis();
+	}
+
+	/**
+	 * Start resizing the pool, on a scheduler's thread.  The pool keeps its initial size until then.
+	 * @param scheduler the scheduler to tick on
+	 */
+	public synchronized void startTuning(ScheduledExecutorService scheduler) {
+		if (mTuning != null)
+			return;
+
+		mLastTick = System.currentTimeMillis();
+		mTuning = scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				tune();
+			}
+		}, TUNE_INTERVAL, TUNE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Set the bounds the pool is sized within.  The pool is brought inside them straight away.
+	 * @param minSize the fewest threads to shrink to, at least <code>1</code>
+	 * @param maxSize the most threads to grow to
+	 */
+	public synchronized void setBounds(int minSize, int maxSize) {
+		checkBounds(minSize, maxSize);
+		mMinSize = minSize;
+		mMaxSize = maxSize;
+		resize(clamp(getCorePoolSize(), minSize, maxSize));
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		mSubmitted.incrementAndGet();
+		super.execute(command);
+	}
+
+	@Override
+	protected void beforeExecute(Thread t, Runnable r) {
+		super.beforeExecute(t, r);
+		mStarted.set(new long[] { System.currentTimeMillis(), mKeyPool.getWaitMillis() });
+	}
+
+	@Override
+	protected void afterExecute(Runnable r, Throwable t) {
+		long[] started = mStarted.get();
+		if (started != null) {
+			// Time spent waiting for a key grows with the pool, so counting it would grow the pool further
+			long waited = mKeyPool.getWaitMillis() - started[1];
+			mBusyMillis.addAndGet(Math.max(0, System.currentTimeMillis() - started[0] - waited));
+			mCompleted.incrementAndGet();
+			mStarted.remove();
+		}
+		super.afterExecute(r, t);
+	}
+
+	@Override
+	public void shutdown() {
+		synchronized (this) {
+			if (mTuning != null)
+				mTuning.cancel(false);
+		}
+		super.shutdown();
+	}
+
+	/**
+	 * @return the average time a task took over the last tick, not counting any wait for a key, in milliseconds
+	 */
+	public double getLatency() {
+		return mLatency;
+	}
+
+	/**
+	 * @return the rate tasks were submitted at over the last tick, per second
+	 */
+	public double getArrivalRate() {
+		return mArrivalRate;
+	}
+
+	/**
+	 * @return the rate tasks were completed at over the last tick, per second
+	 */
+	public double getThroughput() {
+		return mThroughput;
+	}
+
+	/**
+	 * @return the key pool's rate limit at the last tick, in calls per second
+	 */
+	public double getCallRate() {
+		return mCallRate;
+	}
+
+	/**
+	 * @return the number of threads the last tick decided the pool needs
+	 */
+	public int getTargetSize() {
+		return mTargetSize;
+	}
+
+	/**
+	 * @return the number of tasks waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return getQueue().size();
+	}
+
+	/**
+	 * Measure the last tick's work and resize the pool to fit it.
+	 */
+	/* package */ synchronized void tune() {
+		long now = System.currentTimeMillis();
+		double seconds = Math.max(1, now - mLastTick) / 1000.0;
+		long submitted = mSubmitted.get();
+		long completed = mCompleted.get();
+		long busyMillis = mBusyMillis.get();
+
+		double arrivalRate = (submitted - mLastSubmitted) / seconds;
+		double throughput = (completed - mLastCompleted) / seconds;
+		mArrivalRate = smooth(mArrivalRate, arrivalRate);
+		mThroughput = smooth(mThroughput, throughput);
+		// With nothing completed, keep the last latency rather than guessing
+		if (completed > mLastCompleted) {
+			double latency = (double) (busyMillis - mLastBusyMillis) / (completed - mLastCompleted);
+			mLatency = (mLatency == 0) ? latency : smooth(mLatency, latency);
+		}
+		mCallRate = mKeyPool.getCallRate();
+
+		mLastTick = now;
+		mLastSubmitted = submitted;
+		mLastCompleted = completed;
+		mLastBusyMillis = busyMillis;
+
+		// Little's law: threads needed = arrival rate * time per task
+		double rate = Math.min(mArrivalRate + getQueueDepth() / DRAIN_TIME, mCallRate);
+		int target = clamp((int) Math.ceil(rate * mLatency / 1000), mMinSize, mMaxSize);
+		mTargetSize = target;
+
+		int current = getCorePoolSize();
+		if (target < current)
+			target = current - Math.max(1, (current - target) / 2);
+		resize(target);
+	}
+
+	// Must hold the lock on this
+	private void resize(int size) {
+		// The core size may never be above the maximum, so change them in whichever order keeps it so
+		if (size > getMaximumPoolSize()) {
+			setMaximumPoolSize(size);
+			setCorePoolSize(size);
+		} else if (size < getCorePoolSize()) {
+			setCorePoolSize(size);
+			setMaximumPoolSize(size);
+		}
+	}
+
+	private static double smooth(double last, double current) {
+		return last * (1 - SMOOTHING) + current * SMOOTHING;
+	}
+
+	private static int clamp(int size, int minSize, int maxSize) {
+		return Math.max(minSize, Math.min(maxSize, size));
+	}
+
+	private static void checkBounds(int minSize, int maxSize) {
+		if (minSize < 1 || maxSize < minSize)
+			throw new IllegalArgumentException("Bounds must satisfy 1 <= minSize <= maxSize");
+	}
+}
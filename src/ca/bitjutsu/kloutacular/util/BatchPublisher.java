@@ -0,0 +1,191 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the results of requests for a batch of keys (screen names), making requests only as
+ * fast as the subscriber asks for results.  At most <code>maxInFlight</code> requests are
+ * outstanding at any time, and never more than the subscriber has asked for, so a batch of
+ * millions of keys never has more than a handful of them queued for fetching.
+ *
+ * Keys whose request fails are skipped.  A subscriber whose <code>onNext</code> throws is
+ * cancelled and sent the exception through <code>onError</code>.  Results are published in the order they arrive, which
+ * is not necessarily the order of the keys.  Each subscriber starts a new pass over the keys.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class BatchPublisher<T> implements Flow.Publisher<T> {
+	private static final Object FAILED = new Object();
+
+	private Iterable<String> mKeys;
+	private Source<T> mSource;
+	private int mMaxInFlight;
+
+	/**
+	 * @param keys the keys to request
+	 * @param source makes the request for each key
+	 * @param maxInFlight the most requests to have outstanding at once
+	 */
+	public BatchPublisher(Iterable<String> keys, Source<T> source, int maxInFlight) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+
+		mKeys = keys;
+		mSource = source;
+		mMaxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Makes the request for a single key.
+	 */
+	public interface Source<T> {
+		/**
+		 * Request a key.  The result must be passed to <code>sink</code> exactly once, on any thread,
+		 * including if the request fails.
+		 * @param key the key to request
+		 * @param sink receives the result
+		 */
+		public void request(String key, Sink<T> sink);
+	}
+
+	/**
+	 * Receives the result of a single request.
+	 */
+	public interface Sink<T> {
+		/**
+		 * @param result the result, or <code>null</code> if the request failed
+		 */
+		public void onResult(T result);
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		BatchSubscription s = new BatchSubscription(subscriber);
+		subscriber.onSubscribe(s);
+		s.drain();
+	}
+
+	private class BatchSubscription implements Flow.Subscription, Sink<T> {
+		private Flow.Subscriber<? super T> mSubscriber;
+		private ConcurrentLinkedQueue<Object> mResults;
+		private AtomicLong mRequested;
+		private AtomicInteger mWorkInProgress;
+		private volatile boolean mCancelled;
+
+		// Only touched by the thread draining the subscription
+		private Iterator<String> mIterator;
+		private long mEmitted;
+		private int mOutstanding;
+		private boolean mDone;
+
+		private BatchSubscription(Flow.Subscriber<? super T> subscriber) {
+			mSubscriber = subscriber;
+			mResults = new ConcurrentLinkedQueue<Object>();
+			mRequested = new AtomicLong();
+			mWorkInProgress = new AtomicInteger();
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				cancel();
+				mSubscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+				return;
+			}
+
+			while (true) {
+				long current = mRequested.get();
+				long next = current + n;
+				// Saturate rather than overflow
+				if (next < 0)
+					next = Long.MAX_VALUE;
+				if (mRequested.compareAndSet(current, next))
+					break;
+			}
+
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			mCancelled = true;
+		}
+
+		@Override
+		public void onResult(T result) {
+			mResults.offer((result != null) ? result : FAILED);
+			drain();
+		}
+
+		/**
+		 * Deliver whatever results the subscriber has asked for, then top up the requests in flight.
+		 * Only one thread drains at a time; a thread that finds another draining leaves a note for it
+		 * to go round again.
+		 */
+		@SuppressWarnings("unchecked")
+		private void drain() {
+			if (mWorkInProgress.getAndIncrement() != 0)
+				return;
+
+			int missed = 1;
+			do {
+				if (mCancelled || mDone) {
+					mResults.clear();
+				} else {
+					// Failures don't count against the subscriber's demand, so they are always drained
+					Object result;
+					while (!mCancelled && (result = mResults.peek()) != null && (result == FAILED || mEmitted < mRequested.get())) {
+						mResults.poll();
+						mOutstanding--;
+						if (result != FAILED) {
+							mEmitted++;
+							try {
+								mSubscriber.onNext((T) result);
+							} catch (RuntimeException e) {
+								// A subscriber that throws has broken the contract, so stop publishing to it
+								cancel();
+								mDone = true;
+								mSubscriber.onError(e);
+							}
+						}
+					}
+
+					if (!mCancelled)
+						submit();
+				}
+
+				missed = mWorkInProgress.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void submit() {
+			try {
+				if (mIterator == null)
+					mIterator = mKeys.iterator();
+
+				while (!mCancelled && mOutstanding < mMaxInFlight && mEmitted + mOutstanding < mRequested.get()) {
+					if (!mIterator.hasNext())
+						break;
+
+					String key = mIterator.next();
+					mOutstanding++;
+					// Results passed back on this thread are picked up on the next time around drain()
+					mSource.request(key, this);
+				}
+
+				if (!mCancelled && mOutstanding == 0 && !mIterator.hasNext()) {
+					mDone = true;
+					mSubscriber.onComplete();
+				}
+			} catch (RuntimeException e) {
+				mDone = true;
+				mSubscriber.onError(e);
+			}
+		}
+	}
+}
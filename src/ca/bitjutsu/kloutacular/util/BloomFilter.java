@@ -0,0 +1,88 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size Bloom filter of strings.  {@link #mightContain(String)} never answers
+ * <code>false</code> for a string that has been added, and answers <code>true</code> for a string
+ * that hasn't with about the false positive rate the filter was sized for.  Safe for concurrent use
+ * without locks.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class BloomFilter {
+	private AtomicLongArray mBits;
+	private long mBitCount;
+	private int mHashCount;
+
+	/**
+	 * @param expected the number of strings the filter is sized for
+	 * @param falsePositiveRate the false positive rate wanted once that many strings have been added
+	 */
+	public BloomFilter(int expected, double falsePositiveRate) {
+		expected = Math.max(1, expected);
+		// The standard sizing: m = -n ln p / (ln 2)^2 bits, and k = (m / n) ln 2 hashes
+		long bits = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		bits = Math.max(64, bits);
+		mBits = new AtomicLongArray((int) ((bits + 63) / 64));
+		mBitCount = mBits.length() * 64L;
+		mHashCount = Math.max(1, (int) Math.round((double) mBitCount / expected * Math.log(2)));
+	}
+
+	/**
+	 * Add a string to the filter.
+	 * @param s the string
+	 */
+	public void add(String s) {
+		long h1 = hash(s, 0x9e3779b97f4a7c15L);
+		long h2 = hash(s, 0xc2b2ae3d27d4eb4fL) | 1;
+		for (int i = 0; i < mHashCount; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % mBitCount;
+			int word = (int) (bit >>> 6);
+			long mask = 1L << (bit & 63);
+			while (true) {
+				long current = mBits.get(word);
+				if ((current & mask) != 0 || mBits.compareAndSet(word, current, current | mask))
+					break;
+			}
+		}
+	}
+
+	/**
+	 * @param s the string
+	 * @return <code>false</code> if the string has certainly not been added
+	 */
+	public boolean mightContain(String s) {
+		long h1 = hash(s, 0x9e3779b97f4a7c15L);
+		long h2 = hash(s, 0xc2b2ae3d27d4eb4fL) | 1;
+		for (int i = 0; i < mHashCount; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % mBitCount;
+			if ((mBits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the size of the filter in bytes
+	 */
+	public long getSizeInBytes() {
+		return mBitCount / 8;
+	}
+
+	private static long hash(String s, long seed) {
+		long h = seed;
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		}
+		// Finish with a 64-bit mix, so the low bits depend on every character
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= (h >>> 33);
+		return h;
+	}
+}
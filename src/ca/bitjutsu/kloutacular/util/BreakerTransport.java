@@ -0,0 +1,105 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.IOException;
+import java.util.EnumMap;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * A {@link Transport} that puts a {@link CircuitBreaker} in front of each {@link Endpoint}, and
+ * throws {@link CircuitOpenException} rather than making a request while its endpoint's circuit
+ * is open.  Put any {@link CachingTransport} in front of this one, so that cached responses can
+ * still be served while a circuit is open.
+ * <p>
+ * If the requests wait on a {@link KeyPool}, pass that pool in, so that time spent waiting for a
+ * key is taken out of the call time; otherwise a throttled key pool makes a healthy endpoint look
+ * slow and trips its breaker.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class BreakerTransport implements Transport {
+	private Transport mTransport;
+	private Classifier mClassifier;
+	private KeyPool mKeyPool;
+	private EnumMap<Endpoint, CircuitBreaker> mBreakers;
+
+	/**
+	 * @param transport makes the requests
+	 * @param classifier tells which endpoint a URL belongs to
+	 */
+	public BreakerTransport(Transport transport, Classifier classifier) {
+		this(transport, classifier, null);
+	}
+
+	/**
+	 * @param transport makes the requests
+	 * @param classifier tells which endpoint a URL belongs to
+	 * @param keyPool the pool the requests wait on for keys, or null if they don't
+	 */
+	public BreakerTransport(Transport transport, Classifier classifier, KeyPool keyPool) {
+		mTransport = transport;
+		mClassifier = classifier;
+		mKeyPool = keyPool;
+		mBreakers = new EnumMap<Endpoint, CircuitBreaker>(Endpoint.class);
+		for (Endpoint endpoint : Endpoint.values()) {
+			mBreakers.put(endpoint, new CircuitBreaker());
+		}
+	}
+
+	/**
+	 * Tells which endpoint a URL belongs to.
+	 */
+	public interface Classifier {
+		/**
+		 * @param url the URL, without an API key
+		 * @return the endpoint
+		 */
+		public Endpoint classify(String url);
+	}
+
+	/**
+	 * Get the breaker for an endpoint, to check on it or change its thresholds.
+	 * @param endpoint the endpoint
+	 * @return the endpoint's breaker
+	 */
+	public CircuitBreaker getBreaker(Endpoint endpoint) {
+		return mBreakers.get(endpoint);
+	}
+
+	@Override
+	public String get(String url, boolean fresh) throws IOException {
+		Endpoint endpoint = mClassifier.classify(url);
+		CircuitBreaker breaker = mBreakers.get(endpoint);
+		if (!breaker.allowRequest())
+			throw new CircuitOpenException(endpoint);
+
+		long start = System.currentTimeMillis();
+		long waited = mKeyPool == null ? 0 : mKeyPool.getWaitMillis();
+		boolean succeeded = false;
+		boolean made = true;
+		try {
+			String body = mTransport.get(url, fresh);
+			succeeded = true;
+			return body;
+		} catch (HttpResponseException e) {
+			// The endpoint is working if it says the request was wrong, unless it was turned away for load
+			int status = e.getStatusCode();
+			succeeded = status >= 400 && status < 500 && status != 429;
+			throw e;
+		} catch (NoKeyAvailableException e) {
+			// Turned away before reaching Klout, so it says nothing about the endpoint
+			made = false;
+			throw e;
+		} finally {
+			if (made) {
+				long elapsed = System.currentTimeMillis() - start;
+				if (mKeyPool != null)
+					elapsed = Math.max(0, elapsed - (mKeyPool.getWaitMillis() - waited));
+				breaker.record(succeeded, elapsed);
+			}
+			else
+				breaker.release();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * A {@link Transport} that answers requests from a {@link SharedCache}, such as a
+ * {@link ResponseCache}, where it can.  Responses are cached under the URL with its query
+ * parameters sorted and the API key removed, so callers using different keys, or building their
+ * query strings in a different order, share entries.  Each entry is versioned with the time it was
+ * fetched.  Requests for a fresh response skip the cache, but still update it.  Failed requests
+ * are never cached, and a cache that can't be reached is treated as a miss.  While the circuit for
+ * an endpoint is open, whatever the cache still holds is served, however old or fresh requested.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class CachingTransport implements Transport {
+	private Transport mTransport;
+	private SharedCache mCache;
+	private long mMaxAge;
+
+	/**
+	 * @param transport makes the requests the cache can't answer
+	 * @param cache the cache
+	 * @param maxAge the oldest cached response to serve, in milliseconds
+	 */
+	public CachingTransport(Transport transport, SharedCache cache, long maxAge) {
+		mTransport = transport;
+		mCache = cache;
+		mMaxAge = maxAge;
+	}
+
+	@Override
+	public String get(String url, boolean fresh) throws IOException {
+		String key = normalise(url);
+		SharedCache.Entry cached = null;
+		if (!fresh) {
+			cached = getEntry(key);
+			if (cached != null && System.currentTimeMillis() - cached.getVersion() <= mMaxAge)
+				return cached.getValue();
+		}
+
+		long fetched = System.currentTimeMillis();
+		String body;
+		try {
+			body = mTransport.get(url, fresh);
+		} catch (CircuitOpenException e) {
+			// Serve whatever is cached, which was looked up already unless fresh was requested
+			SharedCache.Entry stale = fresh ? getEntry(key) : cached;
+			if (stale == null)
+				throw e;
+			return stale.getValue();
+		}
+		try {
+			mCache.putEntry(new SharedCache.Entry(key, body, fetched));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return body;
+	}
+
+	private SharedCache.Entry getEntry(String key) {
+		try {
+			return mCache.getEntry(key);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Get the cache key for a URL: the URL with its scheme and host in lower case, its query
+	 * parameters sorted, and the <code>key</code> parameter removed.
+	 * @param url the URL
+	 * @return the cache key
+	 */
+	public static String normalise(String url) {
+		int query = url.indexOf('?');
+		String base = (query < 0) ? url : url.substring(0, query);
+
+		// Scheme and host are case-insensitive, the path isn't
+		int host = base.indexOf("://");
+		int path = (host < 0) ? -1 : base.indexOf('/', host + 3);
+		if (host >= 0)
+			base = ((path < 0) ? base : base.substring(0, path)).toLowerCase() + ((path < 0) ? "" : base.substring(path));
+
+		if (query < 0)
+			return base;
+
+		ArrayList<String> params = new ArrayList<String>();
+		for (String param : url.substring(query + 1).split("&")) {
+			if (param.length() == 0 || param.equals("key") || param.startsWith("key="))
+				continue;
+			params.add(param);
+		}
+		Collections.sort(params);
+
+		StringBuilder sb = new StringBuilder(base);
+		for (int i = 0; i < params.size(); i++) {
+			sb.append((i == 0) ? '?' : '&').append(params.get(i));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,164 @@
+package ca.bitjutsu.kloutacular.util;
+
+/**
+ * Stops calls to an endpoint that is failing, so callers fail fast instead of tying up threads
+ * waiting on it.
+ *
+ * The outcomes of the last few calls are kept in a ring.  Once enough calls have been made, the
+ * breaker trips open if too many of them failed, or too many were slow.  While open, every call is
+ * refused.  After a while it lets a few probe calls through: if they all succeed it closes again,
+ * and if any fails it goes back to being open.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class CircuitBreaker {
+	private static final int WINDOW = 20;
+	// Fewer calls than this in the window say too little to trip on
+	private static final int MIN_CALLS = 10;
+	private static final int PROBES = 3;
+
+	/**
+	 * The states a breaker can be in.
+	 */
+	public enum State {
+		/** Calls are made as usual. */
+		CLOSED,
+		/** Calls are refused. */
+		OPEN,
+		/** A few probe calls are let through to see if the endpoint has recovered. */
+		HALF_OPEN;
+	}
+
+	private State mState = State.CLOSED;
+	private boolean[] mFailed = new boolean[WINDOW];
+	private boolean[] mSlow = new boolean[WINDOW];
+	private int mNext;
+	private int mCalls;
+	private long mOpenedAt;
+	private int mProbesStarted;
+	private int mProbesSucceeded;
+
+	private double mFailureRate = 0.5;
+	private double mSlowRate = 0.5;
+	private long mSlowCall = 5000;
+	private long mOpenTime = 30 * 1000;
+
+	/**
+	 * Set how many of the recent calls must fail for the breaker to trip.
+	 * @param rate the fraction of calls, between 0 and 1
+	 */
+	public synchronized void setFailureRate(double rate) {
+		mFailureRate = rate;
+	}
+
+	/**
+	 * Set what counts as a slow call, and how many of the recent calls must be slow for the breaker
+	 * to trip.
+	 * @param millis the time after which a call is slow, in milliseconds
+	 * @param rate the fraction of calls, between 0 and 1
+	 */
+	public synchronized void setSlowCall(long millis, double rate) {
+		mSlowCall = millis;
+		mSlowRate = rate;
+	}
+
+	/**
+	 * Set how long the breaker stays open before probing the endpoint.
+	 * @param millis the time in milliseconds
+	 */
+	public synchronized void setOpenTime(long millis) {
+		mOpenTime = millis;
+	}
+
+	/**
+	 * @return the breaker's state
+	 */
+	public synchronized State getState() {
+		// An open breaker that is due to probe reports itself as half open
+		if (mState == State.OPEN && System.currentTimeMillis() - mOpenedAt >= mOpenTime)
+			return State.HALF_OPEN;
+		return mState;
+	}
+
+	/**
+	 * Ask to make a call.  Every call allowed must be followed by a call to
+	 * {@link #record(boolean, long)}, or to {@link #release()} if it was never made.
+	 * @return whether the call may be made
+	 */
+	public synchronized boolean allowRequest() {
+		if (mState == State.CLOSED)
+			return true;
+
+		if (mState == State.OPEN) {
+			if (System.currentTimeMillis() - mOpenedAt < mOpenTime)
+				return false;
+			// Time to probe; this call is the first probe
+			mState = State.HALF_OPEN;
+			mProbesStarted = 0;
+			mProbesSucceeded = 0;
+		}
+
+		if (mProbesStarted >= PROBES)
+			return false;
+		mProbesStarted++;
+		return true;
+	}
+
+	/**
+	 * Give back a call that was allowed but never made, without recording an outcome for it.
+	 */
+	public synchronized void release() {
+		// A probe that was never made mustn't hold up the ones that are
+		if (mState == State.HALF_OPEN && mProbesStarted > 0)
+			mProbesStarted--;
+	}
+
+	/**
+	 * Record how a call went.
+	 * @param succeeded whether the call succeeded
+	 * @param millis how long the call took, in milliseconds
+	 */
+	public synchronized void record(boolean succeeded, long millis) {
+		boolean slow = millis >= mSlowCall;
+		switch (mState) {
+		case HALF_OPEN:
+			if (!succeeded || slow) {
+				open();
+			} else if (++mProbesSucceeded >= PROBES) {
+				mState = State.CLOSED;
+				mCalls = 0;
+				mNext = 0;
+			}
+			break;
+		case CLOSED:
+			mFailed[mNext] = !succeeded;
+			mSlow[mNext] = slow;
+			mNext = (mNext + 1) % WINDOW;
+			mCalls = Math.min(mCalls + 1, WINDOW);
+			if (mCalls >= MIN_CALLS && shouldTrip())
+				open();
+			break;
+		default:
+			// A call allowed before the breaker opened; it has already been counted
+			break;
+		}
+	}
+
+	private boolean shouldTrip() {
+		int failed = 0;
+		int slow = 0;
+		for (int i = 0; i < mCalls; i++) {
+			if (mFailed[i])
+				failed++;
+			if (mSlow[i])
+				slow++;
+		}
+		return failed >= mFailureRate * mCalls || slow >= mSlowRate * mCalls;
+	}
+
+	private void open() {
+		mState = State.OPEN;
+		mOpenedAt = System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,30 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of making a request while the {@link CircuitBreaker} for its endpoint is open.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class CircuitOpenException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private Endpoint mEndpoint;
+
+	/**
+	 * @param endpoint the endpoint whose circuit is open
+	 */
+	public CircuitOpenException(Endpoint endpoint) {
+		super("Circuit open for " + endpoint + " requests");
+		mEndpoint = endpoint;
+	}
+
+	/**
+	 * @return the endpoint whose circuit is open
+	 */
+	public Endpoint getEndpoint() {
+		return mEndpoint;
+	}
+}
@@ -0,0 +1,21 @@
+package ca.bitjutsu.kloutacular.util;
+
+/**
+ * The families of Klout API endpoints.  Each family has a {@link CircuitBreaker} of its own, so
+ * one misbehaving endpoint doesn't cut off the others.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public enum Endpoint {
+	/** Scores, on their own. */
+	SCORE,
+	/** User objects, with the score and its breakdown. */
+	USER,
+	/** Topics. */
+	TOPICS,
+	/** Influencers and influencees. */
+	INFLUENCE,
+	/** Lookups of Klout IDs from screen names. */
+	IDENTITY;
+}
@@ -0,0 +1,73 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+
+/**
+ * A {@link Transport} that always goes to the server.  Requests time out rather than waiting on
+ * a server that has stopped answering.  Connections are pooled and reused across requests.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class HttpTransport implements Transport {
+	private static final int CONNECT_TIMEOUT = 10 * 1000;
+	private static final int READ_TIMEOUT = 30 * 1000;
+	// Enough that the fetching threads never wait on each other for a connection
+	private static final int MAX_CONNECTIONS = 100;
+
+	private CloseableHttpClient mClient;
+
+	public HttpTransport() {
+		this(CONNECT_TIMEOUT, READ_TIMEOUT);
+	}
+
+	/**
+	 * @param connectTimeout how long to wait for a connection, in milliseconds
+	 * @param readTimeout how long to wait for data once connected, in milliseconds
+	 */
+	public HttpTransport(int connectTimeout, int readTimeout) {
+		RequestConfig config = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(readTimeout)
+				.build();
+		mClient = HttpClientBuilder.create()
+				.setDefaultRequestConfig(config)
+				.setMaxConnTotal(MAX_CONNECTIONS)
+				.setMaxConnPerRoute(MAX_CONNECTIONS)
+				.build();
+	}
+
+	@Override
+	public String get(String url, boolean fresh) throws IOException {
+		HttpGet get = new HttpGet(url);
+		CloseableHttpResponse response = mClient.execute(get);
+		// Closing the response hands its connection back to the pool
+		try {
+			if (response.getStatusLine().getStatusCode() != 200)
+				throw new HttpResponseException(response.getStatusLine().getStatusCode(),
+						"Remote server responded with code " + response.getStatusLine().getStatusCode());
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
+			StringBuilder sb = new StringBuilder();
+			String line;
+			while ((line = in.readLine()) != null) {
+				sb.append(line);
+			}
+
+			in.close();
+
+			return sb.toString();
+		} finally {
+			response.close();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+
+/**
+ * A pool of Klout API keys, each with its own rate limit, daily quota and health.  Each call takes
+ * the healthy key with the most quota left that isn't over its rate limit, waiting for one if they
+ * all are, so throughput grows with the number of keys in the pool.  A key that fails is sidelined
+ * for a while, for longer each time it fails in a row.
+ *
+ * Each thread's time spent waiting for a key is totted up, so that whoever times a call made with
+ * a key can leave the wait out and measure the call alone.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class KeyPool {
+	private static final long DAY = 24 * 60 * 60 * 1000;
+	private static final long BASE_BACKOFF = 30 * 1000;
+	private static final long MAX_BACKOFF = 60 * 60 * 1000;
+
+	// Guarded by this
+	private ArrayList<Key> mKeys;
+	private double mCallsPerSecond;
+	private int mDailyQuota;
+	// Each thread's total time waiting in acquire(), in milliseconds
+	private final ThreadLocal<long[]> mWaited = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	/**
+	 * @param callsPerSecond the most calls to make with each key per second
+	 * @param dailyQuota the most calls to make with each key per day
+	 */
+	public KeyPool(double callsPerSecond, int dailyQuota) {
+		mKeys = new ArrayList<Key>();
+		mCallsPerSecond = callsPerSecond;
+		mDailyQuota = dailyQuota;
+	}
+
+	private static class Key {
+		private final String mKey;
+		private double mTokens;
+		private long mLastRefill;
+		private int mUsed;
+		private long mQuotaStart;
+		private int mFailures;
+		private long mSidelinedUntil;
+
+		private Key(String key, long now) {
+			mKey = key;
+			mTokens = 1;
+			mLastRefill = now;
+			mQuotaStart = now;
+		}
+	}
+
+	/**
+	 * Add a key to the pool.  Adding a key that is already in the pool does nothing.
+	 * @param key the API key
+	 */
+	public synchronized void add(String key) {
+		if (find(key) == null) {
+			mKeys.add(new Key(key, System.currentTimeMillis()));
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Remove a key from the pool.
+	 * @param key the API key
+	 */
+	public synchronized void remove(String key) {
+		Key k = find(key);
+		if (k != null)
+			mKeys.remove(k);
+	}
+
+	/**
+	 * @return the number of keys in the pool
+	 */
+	public synchronized int size() {
+		return mKeys.size();
+	}
+
+	/**
+	 * Set the limits applied to every key.
+	 * @param callsPerSecond the most calls to make with each key per second
+	 * @param dailyQuota the most calls to make with each key per day
+	 */
+	public synchronized void setLimits(double callsPerSecond, int dailyQuota) {
+		mCallsPerSecond = callsPerSecond;
+		mDailyQuota = dailyQuota;
+		notifyAll();
+	}
+
+	/**
+	 * Get how many calls a key has left today.
+	 * @param key the API key
+	 * @return the remaining quota, or <code>0</code> if the key isn't in the pool
+	 */
+	public synchronized int getRemaining(String key) {
+		Key k = find(key);
+		return (k == null) ? 0 : remaining(k, System.currentTimeMillis());
+	}
+
+	/**
+	 * Get how many calls a second the pool can make right now, counting only healthy keys with quota left.
+	 * @return the pool's combined rate limit, in calls per second
+	 */
+	public synchronized double getCallRate() {
+		long now = System.currentTimeMillis();
+		int usable = 0;
+		for (Key k : mKeys) {
+			if (k.mSidelinedUntil <= now && remaining(k, now) > 0)
+				usable++;
+		}
+		return usable * mCallsPerSecond;
+	}
+
+	/**
+	 * Get how much of the pool's daily quota is left to spend, counting only healthy keys.
+	 * @return the remaining share of the quota, from <code>0</code> to <code>1</code>
+	 */
+	public synchronized double getRemainingShare() {
+		if (mKeys.isEmpty() || mDailyQuota <= 0)
+			return 0;
+
+		long now = System.currentTimeMillis();
+		long remaining = 0;
+		for (Key k : mKeys) {
+			if (k.mSidelinedUntil <= now)
+				remaining += Math.max(0, remaining(k, now));
+		}
+		return (double) remaining / ((long) mDailyQuota * mKeys.size());
+	}
+
+	/**
+	 * @param key the API key
+	 * @return whether the key is in the pool and not sidelined
+	 */
+	public synchronized boolean isHealthy(String key) {
+		Key k = find(key);
+		return k != null && k.mSidelinedUntil <= System.currentTimeMillis();
+	}
+
+	/**
+	 * Take a key for a single call, waiting until a key is under its rate limit if necessary.
+	 * The outcome of the call must be reported with {@link #succeeded(String)} or {@link #failed(String)}.
+	 * @return the key to use
+	 * @throws NoKeyAvailableException if every key is sidelined or out of quota
+	 * @throws IOException if interrupted while waiting for a key
+	 */
+	public String acquire() throws IOException {
+		long started = System.currentTimeMillis();
+		try {
+			return take();
+		} finally {
+			// Waiting for the pool's lock is waiting for a key too
+			mWaited.get()[0] += System.currentTimeMillis() - started;
+		}
+	}
+
+	/**
+	 * Get the total time the calling thread has spent waiting in {@link #acquire()}.  Take the
+	 * difference across a call to leave the wait for a key out of the call's time.
+	 * @return the time in milliseconds
+	 */
+	public long getWaitMillis() {
+		return mWaited.get()[0];
+	}
+
+	private synchronized String take() throws IOException {
+		while (true) {
+			long now = System.currentTimeMillis();
+			Key best = null;
+			long wait = Long.MAX_VALUE;
+			for (Key k : mKeys) {
+				if (k.mSidelinedUntil > now || remaining(k, now) <= 0)
+					continue;
+
+				refill(k, now);
+				if (k.mTokens >= 1) {
+					if (best == null || remaining(k, now) > remaining(best, now))
+						best = k;
+				} else {
+					wait = Math.min(wait, (long) Math.ceil((1 - k.mTokens) * 1000 / mCallsPerSecond));
+				}
+			}
+
+			if (best != null) {
+				best.mTokens--;
+				best.mUsed++;
+				return best.mKey;
+			}
+
+			if (wait == Long.MAX_VALUE)
+				throw new NoKeyAvailableException();
+
+			try {
+				wait(Math.max(1, wait));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for a Klout API key");
+			}
+		}
+	}
+
+	/**
+	 * Report that a call made with a key succeeded, or failed for reasons that weren't the key's fault.
+	 * @param key the API key
+	 */
+	public synchronized void succeeded(String key) {
+		Key k = find(key);
+		if (k != null)
+			k.mFailures = 0;
+	}
+
+	/**
+	 * Report that a call was refused because of the key it was made with, and sideline the key.
+	 * @param key the API key
+	 */
+	public synchronized void failed(String key) {
+		Key k = find(key);
+		if (k == null)
+			return;
+
+		k.mFailures++;
+		long backoff = BASE_BACKOFF << Math.min(k.mFailures - 1, 16);
+		k.mSidelinedUntil = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF);
+	}
+
+	// Must hold the lock on this
+	private Key find(String key) {
+		for (Key k : mKeys) {
+			if (k.mKey.equals(key))
+				return k;
+		}
+
+		return null;
+	}
+
+	// Must hold the lock on this
+	private int remaining(Key k, long now) {
+		if (now - k.mQuotaStart >= DAY) {
+			k.mQuotaStart = now;
+			k.mUsed = 0;
+		}
+
+		return mDailyQuota - k.mUsed;
+	}
+
+	// Must hold the lock on this
+	private void refill(Key k, long now) {
+		// Allow a second's worth of calls in a burst
+		double burst = Math.max(1, mCallsPerSecond);
+		k.mTokens = Math.min(burst, k.mTokens + (now - k.mLastRefill) * mCallsPerSecond / 1000);
+		k.mLastRefill = now;
+	}
+}
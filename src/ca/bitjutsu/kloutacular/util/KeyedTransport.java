@@ -0,0 +1,44 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.IOException;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * A {@link Transport} that adds an API key from a {@link KeyPool} to each request, and tells the
+ * pool how the key fared.  Put any {@link CachingTransport} in front of this one, so that cache
+ * hits don't use up a key's quota.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class KeyedTransport implements Transport {
+	private KeyPool mPool;
+	private Transport mTransport;
+
+	/**
+	 * @param pool the keys to use
+	 * @param transport makes the requests
+	 */
+	public KeyedTransport(KeyPool pool, Transport transport) {
+		mPool = pool;
+		mTransport = transport;
+	}
+
+	@Override
+	public String get(String url, boolean fresh) throws IOException {
+		String key = mPool.acquire();
+		try {
+			String body = mTransport.get(url + ((url.indexOf('?') < 0) ? '?' : '&') + "key=" + key, fresh);
+			mPool.succeeded(key);
+			return body;
+		} catch (HttpResponseException e) {
+			// Klout refuses keys that are invalid or over their limits with these
+			if (e.getStatusCode() == 401 || e.getStatusCode() == 403)
+				mPool.failed(key);
+			else
+				mPool.succeeded(key);
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A work queue for a {@link ThreadPoolExecutor} with a FIFO lane for each {@link Priority}.
+ * Rather than always serving the most urgent lane first, lanes take turns in proportion to their
+ * weights (stride scheduling), so a flood of background work slows interactive requests down only
+ * a little, and interactive requests can't starve background work entirely.  On top of that, a
+ * task that has waited longer than the aging limit is served next whatever its lane.
+ *
+ * The queue can be bounded.  When it is full, room for a new task is made by shedding the newest
+ * task from the least urgent lane that is less urgent than the new one; if there is no such lane,
+ * the new task is refused, and the executor's {@link RejectedExecutionHandler} is called, such as
+ * a {@link ShedPolicy}.  Tasks that implement {@link Sheddable} are told when they are shed.
+ *
+ * A task whose priority rises while it waits, such as a {@link Promotable} task, can be moved into
+ * its new lane with {@link #promote(Runnable)}.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class LaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+	private static final long STRIDE = 1 << 20;
+
+	private ArrayDeque<Entry>[] mLanes;
+	private long[] mPass;
+	private ReentrantLock mLock;
+	private Condition mNotEmpty;
+	private int mSize;
+	private int mCapacity;
+	private volatile long mAgingLimit;
+
+	/**
+	 * @param agingLimit how long a task may wait before it is served ahead of every lane, in milliseconds
+	 */
+	public LaneQueue(long agingLimit) {
+		this(agingLimit, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param agingLimit how long a task may wait before it is served ahead of every lane, in milliseconds
+	 * @param capacity the most tasks to hold
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public LaneQueue(long agingLimit, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1");
+
+		Priority[] priorities = Priority.values();
+		mLanes = new ArrayDeque[priorities.length];
+		for (int i = 0; i < priorities.length; i++) {
+			mLanes[i] = new ArrayDeque<Entry>();
+		}
+		mPass = new long[priorities.length];
+		mLock = new ReentrantLock();
+		mNotEmpty = mLock.newCondition();
+		mCapacity = capacity;
+		mAgingLimit = agingLimit;
+	}
+
+	/**
+	 * A {@link RejectedExecutionHandler} that tells a refused task it has been shed, if it
+	 * implements {@link Sheddable}, and otherwise drops it silently.
+	 */
+	public static class ShedPolicy implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			shed(task);
+		}
+	}
+
+	private static class Entry {
+		private final Runnable mTask;
+		private final long mQueuedAt;
+
+		private Entry(Runnable task, long queuedAt) {
+			mTask = task;
+			mQueuedAt = queuedAt;
+		}
+	}
+
+	/**
+	 * Set how long a task may wait before it is served ahead of every lane.
+	 * @param millis the aging limit in milliseconds
+	 */
+	public void setAgingLimit(long millis) {
+		mAgingLimit = millis;
+	}
+
+	/**
+	 * Get the number of tasks waiting in a lane.
+	 * @param priority the lane's priority
+	 * @return the number of waiting tasks
+	 */
+	public int size(Priority priority) {
+		mLock.lock();
+		try {
+			return mLanes[priority.ordinal()].size();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Get the priority a task will be queued at.
+	 * @param task the task
+	 * @return the task's priority
+	 */
+	public static Priority priorityOf(Runnable task) {
+		if (task instanceof Prioritized) {
+			Priority p = ((Prioritized) task).getPriority();
+			if (p != null)
+				return p;
+		}
+
+		return Priority.NORMAL;
+	}
+
+	/**
+	 * Move a waiting task into the lane of its current priority, if that is more urgent than the
+	 * lane it is waiting in.  It keeps the time it was queued, for aging.
+	 * @param task the task, whose {@link #priorityOf(Runnable) priority} has been raised
+	 * @return whether the task was moved; <code>false</code> if it isn't waiting, or is already in its lane
+	 */
+	public boolean promote(Runnable task) {
+		int to = priorityOf(task).ordinal();
+		mLock.lock();
+		try {
+			for (int i = mLanes.length - 1; i > to; i--) {
+				Iterator<Entry> it = mLanes[i].iterator();
+				while (it.hasNext()) {
+					Entry e = it.next();
+					if (e.mTask == task) {
+						it.remove();
+						mSize--;
+						enqueue(e, to);
+						return true;
+					}
+				}
+			}
+			return false;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Move a task waiting in an executor's queue into the lane of its current priority, if the
+	 * executor's queue is a {@link LaneQueue}.
+	 * @param executor the executor the task was given to
+	 * @param task the task
+	 */
+	public static void promote(Executor executor, Runnable task) {
+		if (executor instanceof ThreadPoolExecutor) {
+			BlockingQueue<Runnable> queue = ((ThreadPoolExecutor) executor).getQueue();
+			if (queue instanceof LaneQueue)
+				((LaneQueue) queue).promote(task);
+		}
+	}
+
+	@Override
+	public boolean offer(Runnable task) {
+		if (task == null)
+			throw new NullPointerException();
+
+		Runnable shed = null;
+		mLock.lock();
+		try {
+			if (mSize >= mCapacity) {
+				int lane = sheddableLane(priorityOf(task).ordinal());
+				if (lane == -1)
+					return false;
+				shed = mLanes[lane].pollLast().mTask;
+				mSize--;
+			}
+			enqueue(task);
+		} finally {
+			mLock.unlock();
+		}
+
+		// Tell the shed task outside the lock, in case it does any real work
+		if (shed != null)
+			shed(shed);
+		return true;
+	}
+
+	private static void shed(Runnable task) {
+		if (task instanceof Sheddable) {
+			try {
+				((Sheddable) task).shed();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Add a task without waiting for room.  A full queue refuses the task just as {@link #offer(Runnable)}
+	 * does, but as there is nobody to hand the refusal back to, the task is shed instead of dropped
+	 * silently.
+	 */
+	@Override
+	public void put(Runnable task) {
+		if (!offer(task))
+			shed(task);
+	}
+
+	@Override
+	public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+		return offer(task);
+	}
+
+	@Override
+	public Runnable poll() {
+		mLock.lock();
+		try {
+			return (mSize == 0) ? null : dequeue();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable take() throws InterruptedException {
+		mLock.lockInterruptibly();
+		try {
+			while (mSize == 0) {
+				mNotEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		mLock.lockInterruptibly();
+		try {
+			while (mSize == 0) {
+				if (nanos <= 0)
+					return null;
+				nanos = mNotEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable peek() {
+		mLock.lock();
+		try {
+			if (mSize == 0)
+				return null;
+			return mLanes[nextLane(System.currentTimeMillis())].peekFirst().mTask;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		mLock.lock();
+		try {
+			return mSize;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		mLock.lock();
+		try {
+			return mCapacity - mSize;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		mLock.lock();
+		try {
+			for (ArrayDeque<Entry> lane : mLanes) {
+				Iterator<Entry> it = lane.iterator();
+				while (it.hasNext()) {
+					if (it.next().mTask.equals(o)) {
+						it.remove();
+						mSize--;
+						return true;
+					}
+				}
+			}
+			return false;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		mLock.lock();
+		try {
+			int n = 0;
+			while (n < maxElements && mSize > 0) {
+				c.add(dequeue());
+				n++;
+			}
+			return n;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Iterates over a snapshot of the queue, most urgent lane first.
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		mLock.lock();
+		try {
+			ArrayList<Runnable> snapshot = new ArrayList<Runnable>(mSize);
+			for (ArrayDeque<Entry> lane : mLanes) {
+				for (Entry e : lane) {
+					snapshot.add(e.mTask);
+				}
+			}
+			final Iterator<Runnable> it = snapshot.iterator();
+			return new Iterator<Runnable>() {
+				private Runnable mLast;
+
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				public Runnable next() {
+					mLast = it.next();
+					return mLast;
+				}
+
+				public void remove() {
+					LaneQueue.this.remove(mLast);
+				}
+			};
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	// Must hold mLock.  Finds the least urgent lane, less urgent than the given one, that has a task to shed
+	private int sheddableLane(int lane) {
+		for (int i = mLanes.length - 1; i > lane; i--) {
+			if (!mLanes[i].isEmpty())
+				return i;
+		}
+		return -1;
+	}
+
+	// Must hold mLock
+	private void enqueue(Runnable task) {
+		enqueue(new Entry(task, System.currentTimeMillis()), priorityOf(task).ordinal());
+	}
+
+	// Must hold mLock
+	private void enqueue(Entry e, int lane) {
+		if (mLanes[lane].isEmpty()) {
+			// A lane that has been idle doesn't get to bank turns it didn't need
+			long minPass = Long.MAX_VALUE;
+			for (int i = 0; i < mLanes.length; i++) {
+				if (!mLanes[i].isEmpty())
+					minPass = Math.min(minPass, mPass[i]);
+			}
+			if (minPass != Long.MAX_VALUE)
+				mPass[lane] = Math.max(mPass[lane], minPass);
+		}
+
+		mLanes[lane].addLast(e);
+		mSize++;
+		mNotEmpty.signal();
+	}
+
+	// Must hold mLock, and the queue must not be empty
+	private Runnable dequeue() {
+		int lane = nextLane(System.currentTimeMillis());
+		mPass[lane] += STRIDE / Priority.values()[lane].getWeight();
+		mSize--;
+		return mLanes[lane].pollFirst().mTask;
+	}
+
+	private int nextLane(long now) {
+		// Anything that has waited too long goes first, oldest first
+		int oldest = -1;
+		long oldestQueuedAt = now - mAgingLimit;
+		for (int i = 0; i < mLanes.length; i++) {
+			Entry head = mLanes[i].peekFirst();
+			if (head != null && head.mQueuedAt < oldestQueuedAt) {
+				oldest = i;
+				oldestQueuedAt = head.mQueuedAt;
+			}
+		}
+		if (oldest != -1)
+			return oldest;
+
+		// Otherwise, the lane that is furthest behind on its share of turns
+		int next = -1;
+		for (int i = 0; i < mLanes.length; i++) {
+			if (!mLanes[i].isEmpty() && (next == -1 || mPass[i] < mPass[next]))
+				next = i;
+		}
+		return next;
+	}
+}
@@ -0,0 +1,116 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers screen names that Klout doesn't know, or has suspended, for a while, so requests for
+ * them can be failed without a call to the API.
+ *
+ * Most names checked are perfectly good ones, so the names are also kept in a {@link BloomFilter}
+ * that answers nearly all of those checks without touching the map.  When more names have been
+ * added than the filter was sized for, it is rebuilt from the names that haven't expired.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class NegativeCache {
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	private ConcurrentHashMap<String, Long> mExpiries;
+	private volatile BloomFilter mFilter;
+	private int mExpected;
+	private int mAdded;
+	private volatile long mTtl;
+
+	/**
+	 * @param ttl how long to remember a name, in milliseconds
+	 * @param expected the number of names expected to be remembered at once
+	 */
+	public NegativeCache(long ttl, int expected) {
+		mExpiries = new ConcurrentHashMap<String, Long>();
+		mExpected = Math.max(1024, expected);
+		mFilter = new BloomFilter(mExpected, FALSE_POSITIVE_RATE);
+		mTtl = ttl;
+	}
+
+	/**
+	 * Remember that a name doesn't exist.
+	 * @param name the screen name
+	 */
+	public void add(String name) {
+		mExpiries.put(name, System.currentTimeMillis() + mTtl);
+
+		// Adds are rare, so hold the lock to keep a rebuild from losing one
+		synchronized (this) {
+			mFilter.add(name);
+			if (++mAdded > mExpected)
+				rebuild();
+		}
+	}
+
+	/**
+	 * @param name the screen name
+	 * @return whether the name was recently found not to exist
+	 */
+	public boolean contains(String name) {
+		if (!mFilter.mightContain(name))
+			return false;
+
+		Long expiry = mExpiries.get(name);
+		if (expiry == null)
+			return false;
+
+		if (expiry.longValue() < System.currentTimeMillis()) {
+			mExpiries.remove(name, expiry);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Forget a name, for example because it has since been found.
+	 * @param name the screen name
+	 */
+	public void remove(String name) {
+		// The filter can't forget, but a name it remembers wrongly only costs a map lookup
+		mExpiries.remove(name);
+	}
+
+	/**
+	 * Set how long to remember names added from now on.
+	 * @param millis the time to live in milliseconds
+	 */
+	public void setTtl(long millis) {
+		mTtl = millis;
+	}
+
+	/**
+	 * @return the number of names remembered, including any that have expired but not been purged
+	 */
+	public int size() {
+		return mExpiries.size();
+	}
+
+	// Must hold the lock on this
+	private void rebuild() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Long> e : mExpiries.entrySet()) {
+			if (e.getValue().longValue() < now)
+				mExpiries.remove(e.getKey(), e.getValue());
+		}
+
+		// If most names are still live, make room for more of them
+		int live = mExpiries.size();
+		if (live > mExpected / 2)
+			mExpected *= 2;
+
+		BloomFilter filter = new BloomFilter(mExpected, FALSE_POSITIVE_RATE);
+		for (String name : mExpiries.keySet()) {
+			filter.add(name);
+		}
+		mFilter = filter;
+		mAdded = mExpiries.size();
+	}
+}
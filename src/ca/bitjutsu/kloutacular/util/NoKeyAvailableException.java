@@ -0,0 +1,18 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of making a request when every key in a {@link KeyPool} is sidelined or out of
+ * quota.  The request never reached Klout, so it says nothing about whether Klout is working.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class NoKeyAvailableException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public NoKeyAvailableException() {
+		super("No Klout API key is available");
+	}
+}
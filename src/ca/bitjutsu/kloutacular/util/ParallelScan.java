@@ -0,0 +1,265 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates a query over a collection of profiles split into partitions, scanning the partitions
+ * in parallel.  Each partition keeps its own matches (only its best <code>limit</code>, when the
+ * query is ordered) and they are merged once every partition has been scanned, so the scanning
+ * threads never contend on shared results.  An unordered query with a limit stops scanning as soon
+ * as enough matches have been found.
+ *
+ * Partitions are submitted by the caller as it walks the collection, and at most two per thread
+ * are queued at once, so a scan over millions of profiles never holds more than a few partitions'
+ * worth of them.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class ParallelScan<P> {
+	private static final AtomicInteger sScans = new AtomicInteger();
+
+	/**
+	 * A condition a profile must meet to match the query.  Filters are called from the scanning
+	 * threads, so they must be thread-safe.
+	 */
+	public interface Filter<P> {
+		/**
+		 * @param profile the profile to test
+		 * @return whether the profile matches
+		 */
+		public boolean matches(P profile);
+	}
+
+	/**
+	 * A part of the collection being queried, scanned by a single thread.
+	 */
+	public interface Partition<P> {
+		/**
+		 * Offer each profile in the partition to <code>matches</code>, stopping as soon as it
+		 * returns <code>false</code>.
+		 * @param matches the partition's matches
+		 */
+		public void scan(Matches<P> matches);
+	}
+
+	private final List<Filter<P>> mFilters;
+	private final Comparator<? super P> mOrder;
+	private final int mLimit;
+	private final ExecutorService mExecutor;
+	private final Semaphore mSlots;
+	private final ArrayList<Future<Matches<P>>> mPending;
+	private final AtomicInteger mFound;
+	private int mCount;
+
+	/**
+	 * @param filters the conditions a profile must meet, all of them, to match
+	 * @param order the order of the results, or <code>null</code> for any order
+	 * @param limit the most matches to return, or {@link Integer#MAX_VALUE} for all of them; a limit
+	 * of <code>0</code> keeps no matches but still counts them
+	 * @param parallelism the number of threads to scan with
+	 */
+	public ParallelScan(List<Filter<P>> filters, Comparator<? super P> order, int limit, int parallelism) {
+		if (limit < 0)
+			throw new IllegalArgumentException("limit must not be negative");
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be at least 1");
+
+		mFilters = new ArrayList<Filter<P>>(filters);
+		mOrder = order;
+		mLimit = limit;
+		mSlots = new Semaphore(parallelism * 2);
+		mPending = new ArrayList<Future<Matches<P>>>();
+		mFound = new AtomicInteger();
+
+		final int scan = sScans.incrementAndGet();
+		mExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private int mThreads;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "KloutQuery-" + scan + "-" + mThreads++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * The matches found in a single partition.
+	 */
+	public static final class Matches<P> {
+		private final ParallelScan<P> mScan;
+		private final ArrayList<P> mList;
+		// Worst match first, when only the best are kept
+		private final PriorityQueue<P> mBest;
+		private int mCount;
+
+		private Matches(ParallelScan<P> scan) {
+			mScan = scan;
+			if (scan.mOrder != null && scan.mLimit > 0 && scan.mLimit < Integer.MAX_VALUE) {
+				mList = null;
+				mBest = new PriorityQueue<P>(Math.min(scan.mLimit, 1024) + 1, Collections.reverseOrder(scan.mOrder));
+			} else {
+				mList = new ArrayList<P>();
+				mBest = null;
+			}
+		}
+
+		/**
+		 * Test a profile, and keep it if it matches.
+		 * @param profile the profile to test
+		 * @return whether to keep scanning; <code>false</code> once the query has all the matches it needs
+		 */
+		public boolean offer(P profile) {
+			for (Filter<P> f : mScan.mFilters) {
+				if (!f.matches(profile))
+					return true;
+			}
+
+			mCount++;
+			int limit = mScan.mLimit;
+			if (mBest != null) {
+				if (mBest.size() < limit) {
+					mBest.add(profile);
+				} else if (mScan.mOrder.compare(profile, mBest.peek()) < 0) {
+					mBest.poll();
+					mBest.add(profile);
+				}
+				return true;
+			}
+
+			if (mList.size() < limit)
+				mList.add(profile);
+			// Only an unordered query can stop early; an ordered one must see every match
+			if (mScan.mOrder == null && limit > 0 && limit < Integer.MAX_VALUE)
+				return mScan.mFound.incrementAndGet() < limit;
+			return true;
+		}
+
+		/**
+		 * @return whether to keep scanning
+		 */
+		public boolean isOpen() {
+			return !mScan.isDone();
+		}
+
+		private void drainTo(ArrayList<P> results) {
+			results.addAll((mBest != null) ? mBest : mList);
+		}
+	}
+
+	/**
+	 * Queue a partition to be scanned, blocking while the scanning threads are behind.
+	 * @param partition the partition
+	 * @throws InterruptedException if interrupted while waiting to queue the partition
+	 */
+	public void submit(final Partition<P> partition) throws InterruptedException {
+		mSlots.acquire();
+		try {
+			mPending.add(mExecutor.submit(new Callable<Matches<P>>() {
+				public Matches<P> call() {
+					try {
+						Matches<P> matches = new Matches<P>(ParallelScan.this);
+						if (!isDone())
+							partition.scan(matches);
+						return matches;
+					} finally {
+						mSlots.release();
+					}
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			mSlots.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Queue a list of profiles to be scanned as a partition of their own.
+	 * @param profiles the profiles
+	 * @throws InterruptedException if interrupted while waiting to queue the partition
+	 */
+	public void submit(final List<P> profiles) throws InterruptedException {
+		submit(new Partition<P>() {
+			public void scan(Matches<P> matches) {
+				for (P p : profiles) {
+					if (!matches.offer(p))
+						return;
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return whether enough matches have already been found that there's no point submitting more partitions
+	 */
+	public boolean isDone() {
+		return mOrder == null && mLimit > 0 && mLimit < Integer.MAX_VALUE && mFound.get() >= mLimit;
+	}
+
+	/**
+	 * Wait for every submitted partition to be scanned, and merge their matches.  The scanning
+	 * threads are stopped afterwards, so nothing more can be submitted.
+	 * @return up to <code>limit</code> matches, in order if the scan is ordered
+	 * @throws InterruptedException if interrupted while waiting for the scan
+	 */
+	public List<P> finish() throws InterruptedException {
+		ArrayList<P> results = new ArrayList<P>();
+		try {
+			for (Future<Matches<P>> f : mPending) {
+				Matches<P> matches;
+				try {
+					matches = f.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new RuntimeException(cause);
+				}
+
+				mCount += matches.mCount;
+				matches.drainTo(results);
+			}
+		} finally {
+			mExecutor.shutdownNow();
+		}
+
+		if (mOrder != null)
+			Collections.sort(results, mOrder);
+		if (results.size() > mLimit)
+			results.subList(mLimit, results.size()).clear();
+		return results;
+	}
+
+	/**
+	 * Abandon the scan, stopping the scanning threads without waiting for them.  Does nothing once
+	 * {@link #finish()} has returned.
+	 */
+	public void cancel() {
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Get the number of profiles that matched, once {@link #finish()} has returned.  This is every
+	 * match in the collection unless an unordered scan with a limit stopped early.
+	 * @return the number of matches
+	 */
+	public int getCount() {
+		return mCount;
+	}
+}
@@ -0,0 +1,127 @@
+package ca.bitjutsu.kloutacular.util;
+
+/**
+ * Budgets speculative fetches, such as fetching the neighbours of a user whose influence has just
+ * been fetched, in the hope that they are asked for next.  A prefetch may be made while the budget
+ * of calls per minute has room and the key pool has more than a reserve of its daily quota left,
+ * so prefetching never spends the calls that requests somebody is waiting on need.
+ *
+ * Prefetches are made through the handles given out by {@link #newHandle()}, which stop being live
+ * once the reserve is reached or the prefetch has waited too long, so queued prefetches are dropped
+ * rather than made when the quota runs low.  A prefetch that is dropped before it is made gives
+ * its call back with {@link #release(RequestHandle)}.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class PrefetchBudget {
+	// The share of the key pool's daily quota kept for requests somebody is waiting on
+	private static final double QUOTA_RESERVE = 0.25;
+	// How long a prefetch may wait to be made before it is dropped, in milliseconds
+	private static final long PREFETCH_TIMEOUT = 60 * 1000;
+
+	private final KeyPool mKeyPool;
+	// Guarded by this
+	private int mCallsPerMinute;
+	private double mTokens;
+	private long mLastRefill;
+
+	/**
+	 * @param keyPool the key pool prefetches are made with
+	 * @param callsPerMinute the most prefetch calls to make per minute, or <code>0</code> for none
+	 */
+	public PrefetchBudget(KeyPool keyPool, int callsPerMinute) {
+		mKeyPool = keyPool;
+		mCallsPerMinute = Math.max(0, callsPerMinute);
+		mLastRefill = System.currentTimeMillis();
+	}
+
+	/**
+	 * Set the budget of prefetch calls.
+	 * @param callsPerMinute the most prefetch calls to make per minute, or <code>0</code> for none
+	 */
+	public synchronized void setCallsPerMinute(int callsPerMinute) {
+		refill(System.currentTimeMillis());
+		mCallsPerMinute = Math.max(0, callsPerMinute);
+		mTokens = Math.min(mTokens, mCallsPerMinute);
+	}
+
+	/**
+	 * @return whether prefetching is on at all
+	 */
+	public synchronized boolean isEnabled() {
+		return mCallsPerMinute > 0;
+	}
+
+	/**
+	 * Take a call from the budget for a prefetch.
+	 * @return whether the prefetch may be made
+	 */
+	public synchronized boolean tryAcquire() {
+		if (mCallsPerMinute <= 0 || !hasQuota())
+			return false;
+
+		refill(System.currentTimeMillis());
+		if (mTokens < 1)
+			return false;
+
+		mTokens--;
+		return true;
+	}
+
+	/**
+	 * @return whether the key pool has more than its reserve of quota left for prefetches
+	 */
+	public boolean hasQuota() {
+		return mKeyPool.getRemainingShare() > QUOTA_RESERVE;
+	}
+
+	/**
+	 * Get a handle to make a prefetch with.  It stops being live if the prefetch waits too long or
+	 * the key pool's quota runs down to its reserve.
+	 * @return the handle
+	 */
+	public RequestHandle newHandle() {
+		return new PrefetchHandle();
+	}
+
+	/**
+	 * Give back the call taken for a prefetch that was dropped before it was made.
+	 * @param handle the handle the prefetch was made with
+	 * @return whether the handle was one of this budget's; <code>false</code>, and nothing is given
+	 * back, for any other handle
+	 */
+	public boolean release(RequestHandle handle) {
+		if (!(handle instanceof PrefetchHandle) || ((PrefetchHandle) handle).getBudget() != this)
+			return false;
+
+		synchronized (this) {
+			refill(System.currentTimeMillis());
+			mTokens = Math.min(Math.max(1, mCallsPerMinute), mTokens + 1);
+		}
+		return true;
+	}
+
+	private class PrefetchHandle extends RequestHandle {
+		public PrefetchHandle() {
+			super(PREFETCH_TIMEOUT);
+		}
+
+		@Override
+		public boolean isLive() {
+			return super.isLive() && hasQuota();
+		}
+
+		public PrefetchBudget getBudget() {
+			return PrefetchBudget.this;
+		}
+	}
+
+	// Must hold the lock on this
+	private void refill(long now) {
+		// Budget unspent over a full minute is lost, so an idle budget can't save up a burst
+		double burst = Math.max(1, mCallsPerMinute);
+		mTokens = Math.min(burst, mTokens + (now - mLastRefill) * mCallsPerMinute / 60000.0);
+		mLastRefill = now;
+	}
+}
@@ -0,0 +1,15 @@
+package ca.bitjutsu.kloutacular.util;
+
+/**
+ * A task that knows which lane of a {@link LaneQueue} it belongs in.  Tasks that don't implement
+ * this interface are queued at {@link Priority#NORMAL}.
+ * 
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public interface Prioritized {
+	/**
+	 * @return the priority of the task
+	 */
+	public Priority getPriority();
+}
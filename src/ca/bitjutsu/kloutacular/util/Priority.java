@@ -0,0 +1,41 @@
+package ca.bitjutsu.kloutacular.util;
+
+/**
+ * How urgently a request should be fetched.  Each priority has a lane of its own in the fetch
+ * queue; lanes share the worker threads in proportion to their weights.
+ * 
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public enum Priority {
+	/** A user is waiting on the result. */
+	INTERACTIVE(8),
+	/** The default. */
+	NORMAL(3),
+	/** Crawls, refreshes and anything else nobody is waiting on. */
+	BACKGROUND(1);
+	
+	private final int mWeight;
+	
+	private Priority(int weight) {
+		mWeight = weight;
+	}
+	
+	/**
+	 * Get the share of the worker threads given to this priority's lane, relative to the others.
+	 * @return the lane weight
+	 */
+	public int getWeight() {
+		return mWeight;
+	}
+	
+	/**
+	 * Get the more urgent of two priorities.
+	 * @param a a priority
+	 * @param b another priority
+	 * @return whichever of <code>a</code> and <code>b</code> is more urgent
+	 */
+	public static Priority max(Priority a, Priority b) {
+		return (a.ordinal() <= b.ordinal()) ? a : b;
+	}
+}
@@ -0,0 +1,17 @@
+package ca.bitjutsu.kloutacular.util;
+
+/**
+ * A task whose priority can be raised after it has been queued, because a more urgent request has
+ * come to wait on it.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public interface Promotable extends Prioritized {
+	/**
+	 * Raise the task's priority to at least <code>priority</code>, moving it into that lane of its
+	 * {@link LaneQueue} if it is still waiting there.
+	 * @param priority the priority to raise the task to
+	 */
+	public void promote(Priority priority);
+}
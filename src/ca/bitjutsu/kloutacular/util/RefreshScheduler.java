@@ -0,0 +1,323 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proactively refreshes cached profiles within a fixed budget of calls per minute, spending the
+ * budget where a refresh is most likely to change an answer somebody will read.
+ *
+ * Each cached key is scored by how often it is read (a decaying access count) times how far its
+ * score has probably moved since it was last fetched (its observed volatility times the time since
+ * the fetch).  Every tick, the highest scoring keys are refreshed, as many as the budget allows.
+ * Fast-moving, popular users stay fresh; users nobody reads are never refreshed at all.
+ *
+ * Nothing is tracked while the budget is zero.  Keys that haven't been read for several half-lives
+ * are forgotten, and beyond {@link #setMaxKeys(int) a cap} the least recently read keys are
+ * forgotten too, so the statistics don't grow with every user ever seen.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class RefreshScheduler {
+	private static final long TICK = 5000;
+	private static final double DAY = 24 * 60 * 60 * 1000.0;
+	// Access counts halve over this long, in milliseconds
+	private static final double ACCESS_HALF_LIFE = 60 * 60 * 1000.0;
+	// Assume every score drifts by at least this many points a day
+	private static final double MIN_VOLATILITY = 0.1;
+	// How much weight a new observation of volatility gets
+	private static final double VOLATILITY_SMOOTHING = 0.3;
+	// Forget keys whose decayed access count has fallen below this (about seven half-lives unread)
+	private static final double MIN_ACCESSES = 0.01;
+	private static final int MAX_KEYS = 100000;
+
+	private ConcurrentHashMap<String, Stats> mStats;
+	private Refresher mRefresher;
+	private ScheduledExecutorService mScheduler;
+	private ScheduledFuture<?> mTick;
+	private volatile int mCallsPerMinute;
+	private volatile long mMinInterval;
+	private volatile int mMaxKeys;
+	private double mTokens;
+
+	/**
+	 * @param refresher makes the refresh calls
+	 * @param scheduler runs the scheduler's ticks
+	 * @param callsPerMinute the budget of refresh calls per minute
+	 */
+	public RefreshScheduler(Refresher refresher, ScheduledExecutorService scheduler, int callsPerMinute) {
+		mStats = new ConcurrentHashMap<String, Stats>();
+		mRefresher = refresher;
+		mScheduler = scheduler;
+		mCallsPerMinute = callsPerMinute;
+		mMinInterval = 60 * 1000;
+		mMaxKeys = MAX_KEYS;
+	}
+
+	/**
+	 * Makes the calls chosen by a {@link RefreshScheduler}.
+	 */
+	public interface Refresher {
+		/**
+		 * Refresh a key in the background.  The refreshed values should be passed back through
+		 * {@link RefreshScheduler#recordFetch(String, double, double)}.
+		 * @param key the key to refresh
+		 */
+		public void refresh(String key);
+	}
+
+	private static class Stats {
+		private double mAccesses;
+		private long mLastAccess;
+		private long mLastFetch;
+		private double mLastScore = Double.NaN;
+		private double mVolatility = MIN_VOLATILITY;
+		private long mRefreshStarted;
+
+		private synchronized double benefit(long now) {
+			double accesses = mAccesses * Math.pow(0.5, (now - mLastAccess) / ACCESS_HALF_LIFE);
+			double expectedChange = mVolatility * (now - mLastFetch) / DAY;
+			return accesses * expectedChange;
+		}
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+		private final String mKey;
+		private final double mBenefit;
+
+		private Candidate(String key, double benefit) {
+			mKey = key;
+			mBenefit = benefit;
+		}
+
+		public int compareTo(Candidate other) {
+			return Double.compare(mBenefit, other.mBenefit);
+		}
+	}
+
+	/**
+	 * Start making refresh calls.
+	 */
+	public synchronized void start() {
+		if (mTick != null)
+			return;
+
+		mTick = mScheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					tick();
+				} catch (RuntimeException e) {
+					// Don't let one bad tick cancel every tick after it
+					e.printStackTrace();
+				}
+			}
+		}, TICK, TICK, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop making refresh calls.  Access and fetch statistics are kept.
+	 */
+	public synchronized void stop() {
+		if (mTick != null) {
+			mTick.cancel(false);
+			mTick = null;
+		}
+	}
+
+	/**
+	 * Set the budget of refresh calls.  A budget of zero turns tracking off and drops the statistics
+	 * gathered so far.
+	 * @param callsPerMinute the most refresh calls to make per minute
+	 */
+	public void setCallsPerMinute(int callsPerMinute) {
+		mCallsPerMinute = callsPerMinute;
+		if (callsPerMinute <= 0)
+			mStats.clear();
+	}
+
+	/**
+	 * Set the most keys to track.  Beyond this, the least recently read keys are forgotten on the
+	 * next tick.
+	 * @param maxKeys the most keys to track
+	 */
+	public void setMaxKeys(int maxKeys) {
+		if (maxKeys < 1)
+			throw new IllegalArgumentException("maxKeys must be at least 1");
+		mMaxKeys = maxKeys;
+	}
+
+	/**
+	 * Set how soon after a fetch a key may be refreshed.
+	 * @param millis the minimum time between fetches of a key, in milliseconds
+	 */
+	public void setMinInterval(long millis) {
+		mMinInterval = millis;
+	}
+
+	/**
+	 * Record that a key has been read.
+	 * @param key the key that was read
+	 */
+	public void recordAccess(String key) {
+		if (mCallsPerMinute <= 0)
+			return;
+
+		Stats stats = getStats(key);
+		long now = System.currentTimeMillis();
+		synchronized (stats) {
+			stats.mAccesses = stats.mAccesses * Math.pow(0.5, (now - stats.mLastAccess) / ACCESS_HALF_LIFE) + 1;
+			stats.mLastAccess = now;
+		}
+	}
+
+	/**
+	 * Record that a key has been fetched, whether by a refresh or not.
+	 * @param key the key that was fetched
+	 * @param score the fetched score
+	 * @param dailyChange the score change over the last day as reported by Klout, or <code>NaN</code> if not known
+	 */
+	public void recordFetch(String key, double score, double dailyChange) {
+		if (mCallsPerMinute <= 0)
+			return;
+
+		Stats stats = getStats(key);
+		long now = System.currentTimeMillis();
+		synchronized (stats) {
+			// Use whichever is larger of the reported change and the change we have seen ourselves
+			double observed = Math.abs(dailyChange);
+			if (!Double.isNaN(stats.mLastScore) && now > stats.mLastFetch) {
+				double seen = Math.abs(score - stats.mLastScore) * DAY / (now - stats.mLastFetch);
+				observed = Double.isNaN(observed) ? seen : Math.max(observed, seen);
+			}
+			if (!Double.isNaN(observed)) {
+				stats.mVolatility = Math.max(MIN_VOLATILITY,
+						(1 - VOLATILITY_SMOOTHING) * stats.mVolatility + VOLATILITY_SMOOTHING * observed);
+			}
+
+			stats.mLastScore = score;
+			stats.mLastFetch = now;
+		}
+	}
+
+	/**
+	 * Stop tracking a key.
+	 * @param key the key to forget
+	 */
+	public void forget(String key) {
+		mStats.remove(key);
+	}
+
+	/**
+	 * Get the number of keys being tracked.
+	 * @return the number of tracked keys
+	 */
+	public int size() {
+		return mStats.size();
+	}
+
+	private Stats getStats(String key) {
+		Stats stats = mStats.get(key);
+		if (stats == null) {
+			stats = new Stats();
+			Stats existing = mStats.putIfAbsent(key, stats);
+			if (existing != null)
+				stats = existing;
+		}
+
+		return stats;
+	}
+
+	private void tick() {
+		long now = System.currentTimeMillis();
+		evict(now);
+
+		// Budget unspent by the end of a tick is lost, so an idle scheduler can't save up a burst;
+		// a budget of less than a call a tick builds up to a single call
+		double perTick = mCallsPerMinute * TICK / 60000.0;
+		mTokens = Math.min(mTokens + perTick, Math.max(perTick, 1));
+		int budget = (int) mTokens;
+		if (budget <= 0)
+			return;
+
+		long minInterval = mMinInterval;
+
+		// Keep the best <budget> candidates in a min-heap
+		PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(Math.min(budget, 1024) + 1);
+		for (Map.Entry<String, Stats> e : mStats.entrySet()) {
+			Stats stats = e.getValue();
+			synchronized (stats) {
+				// Not fetched yet, fetched too recently, or refreshed recently (a refresh that fails is retried later)
+				if (stats.mLastFetch == 0 || now - stats.mLastFetch < minInterval || now - stats.mRefreshStarted < minInterval)
+					continue;
+			}
+
+			double benefit = stats.benefit(now);
+			if (benefit <= 0)
+				continue;
+
+			if (best.size() < budget) {
+				best.add(new Candidate(e.getKey(), benefit));
+			} else if (benefit > best.peek().mBenefit) {
+				best.poll();
+				best.add(new Candidate(e.getKey(), benefit));
+			}
+		}
+
+		ArrayList<Candidate> chosen = new ArrayList<Candidate>(best);
+		mTokens -= chosen.size();
+		for (Candidate c : chosen) {
+			Stats stats = mStats.get(c.mKey);
+			if (stats != null) {
+				synchronized (stats) {
+					stats.mRefreshStarted = now;
+				}
+			}
+			mRefresher.refresh(c.mKey);
+		}
+	}
+
+	/**
+	 * Forget keys nobody has read for a long time, then the least recently read keys beyond the cap.
+	 */
+	private void evict(long now) {
+		ArrayList<Candidate> idle = new ArrayList<Candidate>();
+		for (Map.Entry<String, Stats> e : mStats.entrySet()) {
+			Stats stats = e.getValue();
+			long lastAccess;
+			double accesses;
+			synchronized (stats) {
+				lastAccess = stats.mLastAccess;
+				accesses = stats.mAccesses * Math.pow(0.5, (now - lastAccess) / ACCESS_HALF_LIFE);
+			}
+
+			if (accesses < MIN_ACCESSES)
+				mStats.remove(e.getKey(), stats);
+			else
+				idle.add(new Candidate(e.getKey(), -lastAccess));
+		}
+
+		int excess = idle.size() - mMaxKeys;
+		if (excess <= 0)
+			return;
+
+		// Longest unread first
+		PriorityQueue<Candidate> oldest = new PriorityQueue<Candidate>(excess + 1);
+		for (Candidate c : idle) {
+			if (oldest.size() < excess) {
+				oldest.add(c);
+			} else if (c.mBenefit > oldest.peek().mBenefit) {
+				oldest.poll();
+				oldest.add(c);
+			}
+		}
+		for (Candidate c : oldest) {
+			mStats.remove(c.mKey);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Plays a {@link TrafficCapture} back through a KloutScoreManager, making the request behind each
+ * recorded call at the time it was originally made, or sooner, so the manager sees the same shape
+ * of traffic it did when the capture was recorded.  Give the manager a {@link ReplayTransport} on
+ * the same capture first, so the requests are answered offline.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public abstract class ReplayDriver {
+	// How long the manager must stay idle before the replay is taken to be finished, in milliseconds
+	private static final long SETTLE_TIME = 200;
+
+	private ThreadPoolExecutor mWorkers;
+
+	/**
+	 * @param workers the manager's worker pool, to tell when the replayed requests have been answered
+	 */
+	protected ReplayDriver(ThreadPoolExecutor workers) {
+		mWorkers = workers;
+	}
+
+	/**
+	 * Replay a capture, and wait for the manager to answer every request.
+	 * @param capture the recorded calls
+	 * @param speed how many times faster than recorded to make the requests, or <code>0</code> to
+	 * make them all straight away
+	 * @return how long the replay took, in milliseconds
+	 * @throws InterruptedException if interrupted while replaying
+	 */
+	public long replay(TrafficCapture capture, double speed) throws InterruptedException {
+		long started = System.currentTimeMillis();
+		for (TrafficCapture.Call call : capture.getCalls()) {
+			if (speed > 0) {
+				long wait = started + (long) (call.getStart() / speed) - System.currentTimeMillis();
+				if (wait > 0)
+					Thread.sleep(wait);
+			}
+			issue(call);
+		}
+
+		long idleSince = -1;
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (mWorkers.getQueue().isEmpty() && mWorkers.getActiveCount() == 0) {
+				if (idleSince == -1)
+					idleSince = now;
+				else if (now - idleSince >= SETTLE_TIME)
+					return idleSince - started;
+			} else {
+				idleSince = -1;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Make the request that led to a recorded call.
+	 * @param call the recorded call
+	 */
+	protected abstract void issue(TrafficCapture.Call call);
+}
@@ -0,0 +1,79 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * A local stand-in for the Klout API that answers calls from a {@link TrafficCapture}.  Each URL is
+ * answered with the outcomes recorded for it, in the order they were recorded, and once those run
+ * out, with the last of them again.  Each answer takes as long as the recorded call did, divided by
+ * the replay speed, so latency and errors are reproduced as well as responses.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class ReplayTransport implements Transport {
+	private double mSpeed;
+	// Guarded by this
+	private HashMap<String, ArrayDeque<TrafficCapture.Call>> mCalls;
+	private HashMap<String, TrafficCapture.Call> mLast;
+
+	/**
+	 * @param capture the recorded calls
+	 * @param speed how many times faster than recorded to answer, or <code>0</code> to answer straight away
+	 */
+	public ReplayTransport(TrafficCapture capture, double speed) {
+		mSpeed = speed;
+		mCalls = new HashMap<String, ArrayDeque<TrafficCapture.Call>>();
+		mLast = new HashMap<String, TrafficCapture.Call>();
+		for (TrafficCapture.Call call : capture.getCalls()) {
+			ArrayDeque<TrafficCapture.Call> calls = mCalls.get(call.getUrl());
+			if (calls == null) {
+				calls = new ArrayDeque<TrafficCapture.Call>();
+				mCalls.put(call.getUrl(), calls);
+			}
+			calls.add(call);
+		}
+	}
+
+	@Override
+	public String get(String url, boolean fresh) throws IOException {
+		TrafficCapture.Call call = next(url);
+		if (call == null)
+			throw new IOException("No recorded call for " + url);
+
+		if (mSpeed > 0) {
+			try {
+				Thread.sleep((long) (call.getDuration() / mSpeed));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted replaying " + url);
+			}
+		}
+
+		switch (call.getOutcome()) {
+		case TrafficCapture.OK:
+			return call.getResponse();
+		case TrafficCapture.HTTP_ERROR:
+			throw new HttpResponseException(call.getStatusCode(), call.getMessage());
+		case TrafficCapture.CIRCUIT_OPEN:
+			throw new CircuitOpenException(Endpoint.valueOf(call.getMessage()));
+		default:
+			throw new IOException(call.getMessage());
+		}
+	}
+
+	private synchronized TrafficCapture.Call next(String url) {
+		ArrayDeque<TrafficCapture.Call> calls = mCalls.get(url);
+		TrafficCapture.Call call = (calls != null) ? calls.poll() : null;
+		if (call == null)
+			return mLast.get(url);
+
+		mLast.put(url, call);
+		return call;
+	}
+}
@@ -0,0 +1,67 @@
+package ca.bitjutsu.kloutacular.util;
+
+/**
+ * A handle on a request, to cancel it or give it a deadline.  A request that is cancelled, or
+ * whose deadline has passed, is dropped wherever it has got to: before it is queued, or before its
+ * call to the Klout API is made.  A call that has already been made has been paid for, so its
+ * response is still cached, although a cancelled request's callback isn't called.  A call that
+ * answers several requests is only dropped once all of them have been.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class RequestHandle {
+	/** A handle for requests that are never cancelled and have no deadline. */
+	public static final RequestHandle NONE = new RequestHandle(0) {
+		@Override
+		public void cancel() {
+			// Shared by every request that can't be cancelled, so cancelling it does nothing
+		}
+	};
+
+	private final long mDeadline;
+	private volatile boolean mCancelled;
+
+	/**
+	 * @param timeout how long the request may take, in milliseconds, or <code>0</code> for no deadline
+	 */
+	public RequestHandle(long timeout) {
+		mDeadline = (timeout > 0) ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Cancel the request.  Its callback, if it has one, won't be called.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * @return whether the request has been cancelled
+	 */
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * @return the time by which the request must be answered, in milliseconds since the epoch, or
+	 * {@link Long#MAX_VALUE} if it has no deadline
+	 */
+	public long getDeadline() {
+		return mDeadline;
+	}
+
+	/**
+	 * @return whether the request's deadline has passed
+	 */
+	public boolean isExpired() {
+		return mDeadline != Long.MAX_VALUE && System.currentTimeMillis() >= mDeadline;
+	}
+
+	/**
+	 * @return whether anybody still wants the request answered: it has been neither cancelled nor expired
+	 */
+	public boolean isLive() {
+		return !mCancelled && !isExpired();
+	}
+}
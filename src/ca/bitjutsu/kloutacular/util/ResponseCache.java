@@ -0,0 +1,467 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A cache of response bodies on disk that can be shared by every process on a machine, and the
+ * reference implementation of {@link SharedCache}.
+ *
+ * Entries are appended, gzipped, to a sequence of segment files in the cache directory.  When the
+ * segments grow past the maximum size, the oldest segment is deleted, so the cache is evicted
+ * oldest-write-first a segment at a time.  Entries expire a fixed time after their version, which
+ * is the time they were written unless the writer says otherwise.
+ * Each process keeps an index of the entries in memory and catches up on entries written by other
+ * processes by reading the segments from where it last left off, so a hit costs one positioned read,
+ * and an entry replaced by another process is seen within a second.  A miss only catches up if the
+ * newest segment has grown since it was last read, which is checked without taking any lock, and
+ * at most every few milliseconds.
+ * Expired entries are dropped from the index as it catches up.
+ * Writers take an exclusive lock on the directory's lock file; readers take no locks at all.
+ *
+ * Batches are read with at most one catch-up, and written under a single hold of the directory lock.
+ *
+ * Failures to read or write the cache through {@link #get(String)} and {@link #put(String, String)}
+ * are logged and treated as misses.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class ResponseCache implements SharedCache {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAGIC = 0x4b524332;
+	// magic, checksum, version, key length, body length
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final long MIN_SEGMENT_SIZE = 64 * 1024;
+	// How often to look for entries written by other processes, even when we have a hit, in milliseconds
+	private static final long CATCH_UP_INTERVAL = 1000;
+	// How often a miss may look for new entries, in milliseconds, so a burst of misses costs one look
+	private static final long MISS_CHECK_INTERVAL = 10;
+	// How often to drop expired entries from the index, in milliseconds
+	private static final long SWEEP_INTERVAL = 60 * 1000;
+
+	private File mDirectory;
+	private long mMaxSize;
+	private long mSegmentSize;
+	private long mTtl;
+	private ConcurrentHashMap<String, Location> mIndex;
+	// How far we have read each segment, guarded by this
+	private TreeMap<Long, Long> mScanned;
+	private volatile long mLastCatchUp;
+	private long mLastSweep;
+	// The newest segment we have read, and how far; a miss needs no catch up unless it has grown
+	private volatile long mNewestSegment;
+	private volatile long mNewestScanned;
+	private volatile long mLastMissCheck;
+
+	/**
+	 * @param directory the cache directory, which is created if necessary
+	 * @param maxSize the most bytes to keep on disk
+	 * @param ttl how long an entry is served for after its version, in milliseconds
+	 * @throws IOException if the directory can't be created
+	 */
+	public ResponseCache(File directory, long maxSize, long ttl) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create cache directory " + directory);
+
+		mDirectory = directory;
+		mMaxSize = maxSize;
+		// Evict an eighth of the cache at a time
+		mSegmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxSize / 8));
+		mTtl = ttl;
+		mIndex = new ConcurrentHashMap<String, Location>();
+		mScanned = new TreeMap<Long, Long>();
+	}
+
+	private static class Location {
+		private final long mSegment;
+		private final long mOffset;
+		private final long mVersion;
+
+		private Location(long segment, long offset, long version) {
+			mSegment = segment;
+			mOffset = offset;
+			mVersion = version;
+		}
+
+		private boolean supersedes(Location other) {
+			if (mVersion != other.mVersion)
+				return mVersion > other.mVersion;
+			return mSegment > other.mSegment || (mSegment == other.mSegment && mOffset > other.mOffset);
+		}
+	}
+
+	/**
+	 * Get a cached body.
+	 * @param key the cache key
+	 * @return the body, or <code>null</code> if there is no unexpired entry for the key
+	 */
+	public String get(String key) {
+		try {
+			Entry e = getEntry(key);
+			return (e != null) ? e.getValue() : null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Cache a body, replacing any entry already cached for the key.
+	 * @param key the cache key
+	 * @param body the body
+	 */
+	public void put(String key, String body) {
+		try {
+			putEntry(new Entry(key, body, System.currentTimeMillis()));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public Map<String, Entry> get(Collection<String> keys) throws IOException {
+		// Another process may have written them, or replaced our entries, since we last looked
+		if (System.currentTimeMillis() - mLastCatchUp > CATCH_UP_INTERVAL)
+			catchUp();
+
+		HashMap<String, Entry> found = new HashMap<String, Entry>();
+		boolean caughtUp = false;
+		for (String key : keys) {
+			Location loc = mIndex.get(key);
+			// Catch up at most once for the whole batch
+			if (loc == null && !caughtUp && hasUnread()) {
+				catchUp();
+				caughtUp = true;
+				loc = mIndex.get(key);
+			}
+			if (loc == null || loc.mVersion + mTtl < System.currentTimeMillis())
+				continue;
+
+			try {
+				found.put(key, new Entry(key, read(key, loc), loc.mVersion));
+			} catch (FileNotFoundException e) {
+				// The segment has been evicted
+				mIndex.remove(key, loc);
+			}
+		}
+
+		return found;
+	}
+
+	@Override
+	public synchronized void put(Collection<Entry> entries) throws IOException {
+		RandomAccessFile lockFile = new RandomAccessFile(new File(mDirectory, "lock"), "rw");
+		FileLock lock = lockFile.getChannel().lock();
+		RandomAccessFile file = null;
+		try {
+			// Nobody else can write while we hold the lock, so this tells us the latest version of every key
+			catchUp();
+
+			long[] segments = listSegments();
+			long segment = (segments.length == 0) ? 1 : segments[segments.length - 1];
+			long offset = new File(mDirectory, segmentName(segment)).length();
+
+			for (Entry e : entries) {
+				Location existing = mIndex.get(e.getKey());
+				if (existing != null && existing.mVersion >= e.getVersion())
+					continue;
+
+				// Start a new segment when this one is full, unless it's empty
+				ByteBuffer record = encode(e);
+				if (offset > 0 && offset + record.remaining() > mSegmentSize) {
+					if (file != null)
+						file.close();
+					file = null;
+					mScanned.put(segment, offset);
+					segment++;
+					offset = 0;
+				}
+				if (file == null)
+					file = new RandomAccessFile(new File(mDirectory, segmentName(segment)), "rw");
+
+				FileChannel channel = file.getChannel();
+				channel.position(offset);
+				long start = offset;
+				while (record.hasRemaining()) {
+					offset += channel.write(record);
+				}
+				mIndex.put(e.getKey(), new Location(segment, start, e.getVersion()));
+			}
+
+			// Everything up to here is indexed, so there is no need to read it back
+			if (file != null) {
+				mScanned.put(segment, offset);
+				mNewestSegment = segment;
+				mNewestScanned = offset;
+			}
+			evict(segment);
+		} finally {
+			if (file != null)
+				file.close();
+			lock.release();
+			lockFile.close();
+		}
+	}
+
+	/**
+	 * Get the number of entries this process knows about, including expired ones.
+	 * @return the number of indexed entries
+	 */
+	public int size() {
+		return mIndex.size();
+	}
+
+	private String read(String key, Location loc) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(mDirectory, segmentName(loc.mSegment)), "r");
+		try {
+			file.seek(loc.mOffset);
+			if (file.readInt() != MAGIC)
+				throw new IOException("Corrupt cache entry for " + key);
+
+			int checksum = file.readInt();
+			long version = file.readLong();
+			byte[] k = new byte[file.readInt()];
+			byte[] b = new byte[file.readInt()];
+			file.readFully(k);
+			file.readFully(b);
+			if (checksum != checksum(version, k, b) || !key.equals(new String(k, UTF8)))
+				throw new IOException("Corrupt cache entry for " + key);
+
+			return new String(decompress(b), UTF8);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Check, without taking a lock, whether anything has been written since we last caught up.
+	 */
+	private boolean hasUnread() {
+		long now = System.currentTimeMillis();
+		if (now - mLastMissCheck < MISS_CHECK_INTERVAL)
+			return false;
+		mLastMissCheck = now;
+
+		long segment = mNewestSegment;
+		long scanned = mNewestScanned;
+		if (new File(mDirectory, segmentName(segment + 1)).exists())
+			return true;
+		// The rest of an unreadable segment will never be read
+		return scanned >= 0 && new File(mDirectory, segmentName(segment)).length() > scanned;
+	}
+
+	/**
+	 * Index every entry written since we last looked, and forget expired entries and entries in
+	 * evicted segments.
+	 */
+	private synchronized void catchUp() {
+		long now = System.currentTimeMillis();
+		mLastCatchUp = now;
+		long[] segments = listSegments();
+		long oldest = (segments.length == 0) ? Long.MAX_VALUE : segments[0];
+
+		// Segments below the oldest remaining one have been evicted
+		if (!mScanned.isEmpty() && mScanned.firstKey() < oldest) {
+			mScanned.headMap(oldest).clear();
+			Iterator<Location> it = mIndex.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().mSegment < oldest)
+					it.remove();
+			}
+		}
+
+		for (long segment : segments) {
+			Long scanned = mScanned.get(segment);
+			if (scanned != null && scanned < 0)
+				continue;
+
+			try {
+				mScanned.put(segment, scan(segment, (scanned == null) ? 0 : scanned));
+			} catch (FileNotFoundException e) {
+				// Evicted while we were looking
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		if (segments.length > 0) {
+			long newest = segments[segments.length - 1];
+			Long scanned = mScanned.get(newest);
+			mNewestSegment = newest;
+			mNewestScanned = (scanned != null) ? scanned : 0;
+		}
+
+		if (now - mLastSweep >= SWEEP_INTERVAL) {
+			mLastSweep = now;
+			Iterator<Location> it = mIndex.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().mVersion + mTtl < now)
+					it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Index the complete entries in a segment from the given offset.
+	 * @return the offset to carry on from next time, or <code>-1</code> if the rest of the segment is unreadable
+	 */
+	private long scan(long segment, long offset) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(mDirectory, segmentName(segment)), "r");
+		try {
+			long length = file.length();
+			while (offset + HEADER_SIZE <= length) {
+				file.seek(offset);
+				if (file.readInt() != MAGIC)
+					return -1;
+
+				int checksum = file.readInt();
+				long version = file.readLong();
+				int keyLength = file.readInt();
+				int bodyLength = file.readInt();
+				long end = offset + HEADER_SIZE + keyLength + bodyLength;
+				if (keyLength < 0 || bodyLength < 0)
+					return -1;
+				// Still being written
+				if (end > length)
+					break;
+
+				byte[] k = new byte[keyLength];
+				byte[] b = new byte[bodyLength];
+				file.readFully(k);
+				file.readFully(b);
+				// A writer died part way through, and we can't tell where the next entry starts
+				if (checksum != checksum(version, k, b))
+					return -1;
+
+				String key = new String(k, UTF8);
+				Location loc = new Location(segment, offset, version);
+				Location existing = mIndex.get(key);
+				if (existing == null || loc.supersedes(existing))
+					mIndex.put(key, loc);
+
+				offset = end;
+			}
+			return offset;
+		} catch (EOFException e) {
+			return offset;
+		} finally {
+			file.close();
+		}
+	}
+
+	// Must hold the directory lock
+	private void evict(long newest) {
+		long total = 0;
+		TreeMap<Long, Long> sizes = new TreeMap<Long, Long>();
+		for (long segment : listSegments()) {
+			sizes.put(segment, new File(mDirectory, segmentName(segment)).length());
+		}
+		for (long size : sizes.values()) {
+			total += size;
+		}
+
+		for (Map.Entry<Long, Long> e : sizes.entrySet()) {
+			if (total <= mMaxSize || e.getKey() == newest)
+				break;
+
+			if (new File(mDirectory, segmentName(e.getKey())).delete())
+				total -= e.getValue();
+		}
+	}
+
+	private long[] listSegments() {
+		String[] names = mDirectory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (names == null)
+			return new long[0];
+
+		long[] segments = new long[names.length];
+		int n = 0;
+		for (String name : names) {
+			try {
+				segments[n++] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+			} catch (NumberFormatException e) {
+				n--;
+			}
+		}
+		segments = Arrays.copyOf(segments, n);
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private static String segmentName(long segment) {
+		return String.format("%016x", segment) + SEGMENT_SUFFIX;
+	}
+
+	private static ByteBuffer encode(Entry e) throws IOException {
+		byte[] k = e.getKey().getBytes(UTF8);
+		byte[] b = compress(e.getValue().getBytes(UTF8));
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + k.length + b.length);
+		record.putInt(MAGIC);
+		record.putInt(checksum(e.getVersion(), k, b));
+		record.putLong(e.getVersion());
+		record.putInt(k.length);
+		record.putInt(b.length);
+		record.put(k);
+		record.put(b);
+		record.flip();
+		return record;
+	}
+
+	private static int checksum(long version, byte[] key, byte[] body) {
+		CRC32 crc = new CRC32();
+		for (int i = 56; i >= 0; i -= 8) {
+			crc.update((int) (version >>> i));
+		}
+		crc.update(key);
+		crc.update(body);
+		return (int) crc.getValue();
+	}
+
+	private static byte[] compress(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+		GZIPOutputStream gz = new GZIPOutputStream(out);
+		gz.write(data);
+		gz.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] decompress(byte[] data) throws IOException {
+		GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(data));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = gz.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		gz.close();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,440 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An ordered index of Klout scores, kept up to date as scores change, for answering leaderboard
+ * queries without sorting every cached profile.  Entries are ordered by score, highest first, with
+ * ties broken by key.  Each entry may also belong to a group (a Klout class, for example), which
+ * has a leaderboard of its own.
+ *
+ * The index is a size-augmented tree, so updates, rank lookups and finding the start of a top-K or
+ * score range query are all O(log n).
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class ScoreIndex {
+	/** The group of entries that haven't been given one. */
+	public static final int NO_GROUP = 0;
+
+	private HashMap<String, Entry> mEntries;
+	private Tree mAll;
+	private HashMap<Integer, Tree> mGroups;
+	private ReentrantReadWriteLock mLock;
+	private Random mRandom;
+
+	public ScoreIndex() {
+		mEntries = new HashMap<String, Entry>();
+		mAll = new Tree();
+		mGroups = new HashMap<Integer, Tree>();
+		mLock = new ReentrantReadWriteLock();
+		mRandom = new Random();
+	}
+
+	/**
+	 * An indexed score.
+	 */
+	public static class Entry {
+		private final String mKey;
+		private final double mScore;
+		private final int mGroup;
+
+		private Entry(String key, double score, int group) {
+			mKey = key;
+			mScore = score;
+			mGroup = group;
+		}
+
+		/**
+		 * @return the key (screen name) of the entry
+		 */
+		public String getKey() {
+			return mKey;
+		}
+
+		/**
+		 * @return the indexed score
+		 */
+		public double getScore() {
+			return mScore;
+		}
+
+		/**
+		 * @return the group of the entry, or {@link ScoreIndex#NO_GROUP}
+		 */
+		public int getGroup() {
+			return mGroup;
+		}
+
+		private int compareTo(Entry other) {
+			// Highest score first
+			int c = Double.compare(other.mScore, mScore);
+			return (c != 0) ? c : mKey.compareTo(other.mKey);
+		}
+	}
+
+	/**
+	 * Index a score, keeping the entry in whichever group it is already in.
+	 * @param key the key (screen name) to index
+	 * @param score the new score
+	 */
+	public void update(String key, double score) {
+		mLock.writeLock().lock();
+		try {
+			Entry old = mEntries.get(key);
+			put(old, new Entry(key, score, (old != null) ? old.mGroup : NO_GROUP));
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Index a score and move the entry into the given group.
+	 * @param key the key (screen name) to index
+	 * @param score the new score
+	 * @param group the entry's group, or {@link #NO_GROUP}
+	 */
+	public void update(String key, double score, int group) {
+		mLock.writeLock().lock();
+		try {
+			put(mEntries.get(key), new Entry(key, score, group));
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove an entry from the index.
+	 * @param key the key (screen name) to remove
+	 */
+	public void remove(String key) {
+		mLock.writeLock().lock();
+		try {
+			Entry old = mEntries.remove(key);
+			if (old != null) {
+				mAll.remove(old);
+				removeFromGroup(old);
+			}
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the entry for a key.
+	 * @param key the key (screen name) to look up
+	 * @return the entry or <code>null</code> if the key is not indexed
+	 */
+	public Entry get(String key) {
+		mLock.readLock().lock();
+		try {
+			return mEntries.get(key);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the highest scoring entries.
+	 * @param count the maximum number of entries to return
+	 * @return up to <code>count</code> entries, highest score first
+	 */
+	public List<Entry> getTop(int count) {
+		mLock.readLock().lock();
+		try {
+			return mAll.top(count);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the highest scoring entries in a group.
+	 * @param count the maximum number of entries to return
+	 * @param group the group to rank within
+	 * @return up to <code>count</code> entries, highest score first
+	 */
+	public List<Entry> getTop(int count, int group) {
+		mLock.readLock().lock();
+		try {
+			Tree tree = mGroups.get(group);
+			return (tree != null) ? tree.top(count) : new ArrayList<Entry>(0);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the rank of a key among all entries.
+	 * @param key the key (screen name) to rank
+	 * @return the zero-based rank, where <code>0</code> is the highest score, or <code>-1</code> if the key is not indexed
+	 */
+	public int getRank(String key) {
+		mLock.readLock().lock();
+		try {
+			Entry e = mEntries.get(key);
+			return (e != null) ? mAll.rank(e) : -1;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the rank of a key within its group.
+	 * @param key the key (screen name) to rank
+	 * @return the zero-based rank within the entry's group, or <code>-1</code> if the key is not indexed
+	 */
+	public int getGroupRank(String key) {
+		mLock.readLock().lock();
+		try {
+			Entry e = mEntries.get(key);
+			return (e != null) ? mGroups.get(e.mGroup).rank(e) : -1;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the entries whose score lies in a range.
+	 * @param min the lowest score to include
+	 * @param max the highest score to include
+	 * @param limit the maximum number of entries to return
+	 * @return the entries in the range, highest score first
+	 */
+	public List<Entry> getRange(double min, double max, int limit) {
+		mLock.readLock().lock();
+		try {
+			return mAll.range(min, max, limit);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of entries whose score lies in a range.
+	 * @param min the lowest score to include
+	 * @param max the highest score to include
+	 * @return the number of entries in the range
+	 */
+	public int countRange(double min, double max) {
+		mLock.readLock().lock();
+		try {
+			return mAll.countAbove(min, true) - mAll.countAbove(max, false);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of indexed entries.
+	 * @return the number of entries
+	 */
+	public int size() {
+		mLock.readLock().lock();
+		try {
+			return mAll.size(mAll.mRoot);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	private void put(Entry old, Entry e) {
+		if (old != null) {
+			// Nothing to reorder if the score and group haven't changed
+			if (old.mScore == e.mScore && old.mGroup == e.mGroup)
+				return;
+
+			mAll.remove(old);
+			removeFromGroup(old);
+		}
+
+		mEntries.put(e.mKey, e);
+		mAll.insert(e);
+		Tree group = mGroups.get(e.mGroup);
+		if (group == null) {
+			group = new Tree();
+			mGroups.put(e.mGroup, group);
+		}
+		group.insert(e);
+	}
+
+	private void removeFromGroup(Entry e) {
+		Tree group = mGroups.get(e.mGroup);
+		group.remove(e);
+		if (group.mRoot == null)
+			mGroups.remove(e.mGroup);
+	}
+
+	private static class Node {
+		private Entry mEntry;
+		private int mPriority;
+		private int mSize;
+		private Node mLeft;
+		private Node mRight;
+
+		private Node(Entry entry, int priority) {
+			mEntry = entry;
+			mPriority = priority;
+			mSize = 1;
+		}
+	}
+
+	/**
+	 * A treap ordered by {@link Entry#compareTo(Entry)}, with each node holding the size of its subtree.
+	 */
+	private class Tree {
+		private Node mRoot;
+
+		private void insert(Entry e) {
+			mRoot = insert(mRoot, new Node(e, mRandom.nextInt()));
+		}
+
+		private void remove(Entry e) {
+			mRoot = remove(mRoot, e);
+		}
+
+		private Node insert(Node n, Node added) {
+			if (n == null)
+				return added;
+
+			if (added.mEntry.compareTo(n.mEntry) < 0) {
+				n.mLeft = insert(n.mLeft, added);
+				if (n.mLeft.mPriority > n.mPriority)
+					n = rotateRight(n);
+			} else {
+				n.mRight = insert(n.mRight, added);
+				if (n.mRight.mPriority > n.mPriority)
+					n = rotateLeft(n);
+			}
+
+			resize(n);
+			return n;
+		}
+
+		private Node remove(Node n, Entry e) {
+			if (n == null)
+				return null;
+
+			int c = e.compareTo(n.mEntry);
+			if (c < 0) {
+				n.mLeft = remove(n.mLeft, e);
+			} else if (c > 0) {
+				n.mRight = remove(n.mRight, e);
+			} else if (n.mLeft == null) {
+				return n.mRight;
+			} else if (n.mRight == null) {
+				return n.mLeft;
+			} else if (n.mLeft.mPriority > n.mRight.mPriority) {
+				n = rotateRight(n);
+				n.mRight = remove(n.mRight, e);
+			} else {
+				n = rotateLeft(n);
+				n.mLeft = remove(n.mLeft, e);
+			}
+
+			resize(n);
+			return n;
+		}
+
+		private int rank(Entry e) {
+			int rank = 0;
+			Node n = mRoot;
+			while (n != null) {
+				int c = e.compareTo(n.mEntry);
+				if (c < 0) {
+					n = n.mLeft;
+				} else if (c > 0) {
+					rank += size(n.mLeft) + 1;
+					n = n.mRight;
+				} else {
+					return rank + size(n.mLeft);
+				}
+			}
+
+			return -1;
+		}
+
+		/**
+		 * Count the entries with a score above <code>score</code> (or equal to it, if <code>inclusive</code>).
+		 */
+		private int countAbove(double score, boolean inclusive) {
+			int count = 0;
+			Node n = mRoot;
+			while (n != null) {
+				double s = n.mEntry.mScore;
+				if (s > score || (inclusive && s == score)) {
+					count += size(n.mLeft) + 1;
+					n = n.mRight;
+				} else {
+					n = n.mLeft;
+				}
+			}
+
+			return count;
+		}
+
+		private List<Entry> top(int count) {
+			ArrayList<Entry> result = new ArrayList<Entry>(Math.max(0, Math.min(count, size(mRoot))));
+			collect(mRoot, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, count, result);
+			return result;
+		}
+
+		private List<Entry> range(double min, double max, int limit) {
+			ArrayList<Entry> result = new ArrayList<Entry>();
+			collect(mRoot, max, min, limit, result);
+			return result;
+		}
+
+		/**
+		 * In-order walk of the entries scoring between <code>low</code> and <code>high</code>,
+		 * skipping subtrees that fall entirely outside of the range.
+		 */
+		private void collect(Node n, double high, double low, int limit, ArrayList<Entry> result) {
+			if (n == null || result.size() >= limit)
+				return;
+
+			double s = n.mEntry.mScore;
+			if (s <= high)
+				collect(n.mLeft, high, low, limit, result);
+			else if (n.mRight != null)
+				collect(n.mRight, high, low, limit, result);
+
+			if (s <= high && s >= low && result.size() < limit)
+				result.add(n.mEntry);
+
+			if (s >= low && s <= high)
+				collect(n.mRight, high, low, limit, result);
+		}
+
+		private int size(Node n) {
+			return (n != null) ? n.mSize : 0;
+		}
+
+		private void resize(Node n) {
+			n.mSize = size(n.mLeft) + size(n.mRight) + 1;
+		}
+
+		private Node rotateRight(Node n) {
+			Node l = n.mLeft;
+			n.mLeft = l.mRight;
+			l.mRight = n;
+			resize(n);
+			resize(l);
+			return l;
+		}
+
+		private Node rotateLeft(Node n) {
+			Node r = n.mRight;
+			n.mRight = r.mLeft;
+			r.mLeft = n;
+			resize(n);
+			resize(r);
+			return r;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed set of single-threaded event loops, with work for each key always sent to the same loop.
+ * Everything done for a key is done by one thread, in the order it was submitted, so state owned
+ * by a key needs no locks and never sees contention.  Work is handed over through a lock-free
+ * queue per loop, and a loop only sleeps when its queue is empty.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class ShardGroup {
+	private Shard[] mShards;
+
+	/**
+	 * @param count the number of shards, usually the number of cores
+	 * @param name the name to give the shards' threads
+	 */
+	public ShardGroup(int count, String name) {
+		if (count < 1)
+			throw new IllegalArgumentException("count must be at least 1");
+
+		mShards = new Shard[count];
+		for (int i = 0; i < count; i++) {
+			mShards[i] = new Shard();
+			Thread t = new Thread(mShards[i], name + "-" + i);
+			t.setDaemon(true);
+			mShards[i].mThread = t;
+			t.start();
+		}
+	}
+
+	private static class Shard implements Runnable {
+		private final ConcurrentLinkedQueue<Runnable> mQueue = new ConcurrentLinkedQueue<Runnable>();
+		private volatile Thread mThread;
+		private volatile boolean mSleeping;
+		private volatile boolean mShutdown;
+		private volatile boolean mExited;
+
+		private void submit(Runnable task) {
+			mQueue.offer(task);
+			if (mExited) {
+				// Too late for the shard: run it here, as if there were no shards
+				drain();
+			} else if (mSleeping) {
+				LockSupport.unpark(mThread);
+			}
+		}
+
+		private void drain() {
+			Runnable task;
+			while ((task = mQueue.poll()) != null) {
+				runTask(task);
+			}
+		}
+
+		private static void runTask(Runnable task) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// One bad task mustn't take the shard down with it
+				e.printStackTrace();
+			}
+		}
+
+		public void run() {
+			while (true) {
+				Runnable task = mQueue.poll();
+				if (task != null) {
+					runTask(task);
+					continue;
+				}
+
+				if (mShutdown) {
+					// Announce we're gone before the last look at the queue, so a task offered after
+					// that look is sure to be run by whoever offered it
+					mExited = true;
+					drain();
+					return;
+				}
+
+				// Announce we're going to sleep before the last look at the queue, so a task offered
+				// after that look is sure to see the flag and wake us
+				mSleeping = true;
+				if (mQueue.isEmpty() && !mShutdown)
+					LockSupport.park(this);
+				mSleeping = false;
+			}
+		}
+	}
+
+	/**
+	 * Run a task on the shard that owns a key.
+	 * @param key the key
+	 * @param task the task
+	 */
+	public void execute(String key, Runnable task) {
+		mShards[shardOf(key)].submit(task);
+	}
+
+	/**
+	 * Get the shard that owns a key.
+	 * @param key the key
+	 * @return the shard's index
+	 */
+	public int shardOf(String key) {
+		int h = key.hashCode();
+		// Spread the high bits, as HashMap does, so similar keys land on different shards
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % mShards.length;
+	}
+
+	/**
+	 * @param key the key
+	 * @return whether the calling thread is the one that owns the key
+	 */
+	public boolean isOwner(String key) {
+		return Thread.currentThread() == mShards[shardOf(key)].mThread;
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int size() {
+		return mShards.length;
+	}
+
+	/**
+	 * Get the number of tasks waiting for a shard.
+	 * @param shard the shard's index
+	 * @return the number of waiting tasks
+	 */
+	public int getBacklog(int shard) {
+		return mShards[shard].mQueue.size();
+	}
+
+	/**
+	 * Stop every shard once it has run the tasks already queued for it.  Tasks submitted after a
+	 * shard has stopped are run straight away on the submitting thread.
+	 */
+	public void shutdown() {
+		for (Shard s : mShards) {
+			s.mShutdown = true;
+			LockSupport.unpark(s.mThread);
+		}
+	}
+}
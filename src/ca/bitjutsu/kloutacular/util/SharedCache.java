@@ -0,0 +1,87 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A cache shared by every KloutScoreManager in a fleet, consulted when a manager's own cache
+ * misses and before it calls the Klout API, so a popular profile is fetched once per fleet rather
+ * than once per process.  Implementations might sit on memcached, Redis or a database;
+ * {@link ResponseCache} is a reference implementation on local files.
+ *
+ * Every entry carries a version, and a write never replaces a newer version of an entry, so
+ * workers racing to write the same key can't roll it back.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public interface SharedCache {
+	/**
+	 * Get a batch of entries, in a single round trip where the cache allows it.
+	 * @param keys the keys to look up
+	 * @return the entries found, by key; keys that aren't cached are left out
+	 * @throws IOException if the cache can't be reached
+	 */
+	public Map<String, Entry> get(Collection<String> keys) throws IOException;
+
+	/**
+	 * Write a batch of entries.  An entry is not written if the cache already holds the same or a
+	 * newer version of its key.
+	 * @param entries the entries to write
+	 * @throws IOException if the cache can't be reached
+	 */
+	public void put(Collection<Entry> entries) throws IOException;
+
+	/**
+	 * Get a single entry; a batch of one.
+	 * @param key the key to look up
+	 * @return the entry, or <code>null</code> if the key isn't cached
+	 * @throws IOException if the cache can't be reached
+	 */
+	public default Entry getEntry(String key) throws IOException {
+		return get(Collections.singletonList(key)).get(key);
+	}
+
+	/**
+	 * Write a single entry; a batch of one.
+	 * @param entry the entry to write
+	 * @throws IOException if the cache can't be reached
+	 */
+	public default void putEntry(Entry entry) throws IOException {
+		put(Collections.singletonList(entry));
+	}
+
+	/**
+	 * A cached value and its version.
+	 */
+	public static final class Entry {
+		private final String mKey;
+		private final String mValue;
+		private final long mVersion;
+
+		/**
+		 * @param key the key
+		 * @param value the value
+		 * @param version the version, higher being newer; {@link CachingTransport} uses the time the value was fetched
+		 */
+		public Entry(String key, String value, long version) {
+			mKey = key;
+			mValue = value;
+			mVersion = version;
+		}
+
+		public String getKey() {
+			return mKey;
+		}
+
+		public String getValue() {
+			return mValue;
+		}
+
+		public long getVersion() {
+			return mVersion;
+		}
+	}
+}
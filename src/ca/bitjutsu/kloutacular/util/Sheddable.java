@@ -0,0 +1,15 @@
+package ca.bitjutsu.kloutacular.util;
+
+/**
+ * A task that needs to know if it is dropped without being run, because a full {@link LaneQueue}
+ * shed it to make room for more urgent work, so whoever is waiting on it can be answered.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public interface Sheddable {
+	/**
+	 * Called, instead of running the task, once it has been dropped.
+	 */
+	public void shed();
+}
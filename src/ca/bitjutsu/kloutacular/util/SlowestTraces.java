@@ -0,0 +1,61 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A {@link TraceSink} that keeps the slowest traces it has been given, to see where the time went
+ * in the worst requests.  Once full, a trace only gets in by pushing out the fastest one kept.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class SlowestTraces implements TraceSink {
+	private static final Comparator<Trace> FASTEST_FIRST = new Comparator<Trace>() {
+		public int compare(Trace a, Trace b) {
+			return Long.compare(a.getDuration(), b.getDuration());
+		}
+	};
+
+	private int mCapacity;
+	// Guarded by this; the fastest trace kept is at the head
+	private PriorityQueue<Trace> mTraces;
+
+	/**
+	 * @param capacity how many traces to keep
+	 */
+	public SlowestTraces(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1");
+		mCapacity = capacity;
+		mTraces = new PriorityQueue<Trace>(capacity + 1, FASTEST_FIRST);
+	}
+
+	public synchronized void record(Trace trace) {
+		if (mTraces.size() < mCapacity) {
+			mTraces.add(trace);
+		} else if (trace.getDuration() > mTraces.peek().getDuration()) {
+			mTraces.poll();
+			mTraces.add(trace);
+		}
+	}
+
+	/**
+	 * @return the traces kept, slowest first
+	 */
+	public synchronized List<Trace> getSlowest() {
+		ArrayList<Trace> traces = new ArrayList<Trace>(mTraces);
+		Collections.sort(traces, Collections.reverseOrder(FASTEST_FIRST));
+		return traces;
+	}
+
+	/**
+	 * Forget every trace kept.
+	 */
+	public synchronized void clear() {
+		mTraces.clear();
+	}
+}
@@ -0,0 +1,204 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * An append-only, deduplicating store of strings kept outside of the Java heap.  Each distinct
+ * string is encoded once as UTF-8 into a direct buffer and referred to by an <code>int</code> handle,
+ * so holding millions of (mostly repeated) strings costs the garbage collector nothing.
+ *
+ * Interning is synchronized; reading a string back by its handle is not, as the bytes behind a
+ * handle never change once it has been returned.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class StringArena {
+	/** The handle used to represent <code>null</code>. */
+	public static final int NULL_HANDLE = 0;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int CHUNK_BITS = 20;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+
+	private volatile ByteBuffer[] mChunks;
+	private int mChunkCount;
+	private int mChunkOffset;
+
+	// Open-addressed table of handles, used to find an existing copy of a string
+	private int[] mSlots;
+	private int[] mSlotHashes;
+	private int mSize;
+
+	public StringArena() {
+		mChunks = new ByteBuffer[16];
+		mChunks[0] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		mChunkCount = 1;
+		// Offset zero of the first chunk is never handed out, so that it can stand for null
+		mChunkOffset = 4;
+		mSlots = new int[1024];
+		mSlotHashes = new int[1024];
+	}
+
+	/**
+	 * Store a string, or find the copy that is already stored.
+	 * @param s the string to store
+	 * @return the handle for the string, or {@link #NULL_HANDLE} if <code>s</code> is <code>null</code>
+	 */
+	public synchronized int intern(String s) {
+		if (s == null)
+			return NULL_HANDLE;
+
+		byte[] bytes = s.getBytes(UTF_8);
+		if (bytes.length + 4 > CHUNK_SIZE)
+			throw new IllegalArgumentException("String of " + bytes.length + " bytes is too large for the arena");
+
+		int hash = hash(bytes);
+		int mask = mSlots.length - 1;
+		int i = hash & mask;
+		while (mSlots[i] != NULL_HANDLE) {
+			if (mSlotHashes[i] == hash && equalsAt(mSlots[i], bytes))
+				return mSlots[i];
+			i = (i + 1) & mask;
+		}
+
+		int handle = append(bytes);
+		mSlots[i] = handle;
+		mSlotHashes[i] = hash;
+		if (++mSize * 2 > mSlots.length)
+			rehash();
+
+		return handle;
+	}
+
+	/**
+	 * Find the handle of a string without storing it.
+	 * @param s the string to look for
+	 * @return the handle for the string, or {@link #NULL_HANDLE} if it has never been stored
+	 */
+	public synchronized int find(String s) {
+		if (s == null)
+			return NULL_HANDLE;
+
+		byte[] bytes = s.getBytes(UTF_8);
+		int hash = hash(bytes);
+		int mask = mSlots.length - 1;
+		int i = hash & mask;
+		while (mSlots[i] != NULL_HANDLE) {
+			if (mSlotHashes[i] == hash && equalsAt(mSlots[i], bytes))
+				return mSlots[i];
+			i = (i + 1) & mask;
+		}
+
+		return NULL_HANDLE;
+	}
+
+	/**
+	 * Decode the string behind a handle.
+	 * @param handle a handle returned by {@link #intern(String)}
+	 * @return the stored string, or <code>null</code> for {@link #NULL_HANDLE}
+	 */
+	public String get(int handle) {
+		if (handle == NULL_HANDLE)
+			return null;
+
+		ByteBuffer chunk = mChunks[handle >>> CHUNK_BITS];
+		int offset = handle & (CHUNK_SIZE - 1);
+		int length = chunk.getInt(offset);
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = chunk.get(offset + 4 + i);
+		}
+
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * Get the number of distinct strings stored.
+	 * @return the number of strings in the arena
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * Get the number of bytes of off-heap memory reserved by the arena.
+	 * @return the reserved capacity in bytes
+	 */
+	public synchronized long getCapacity() {
+		return (long) mChunkCount * CHUNK_SIZE;
+	}
+
+	private int append(byte[] bytes) {
+		if (mChunkOffset + 4 + bytes.length > CHUNK_SIZE) {
+			if (mChunkCount == MAX_CHUNKS)
+				throw new IllegalStateException("String arena is full");
+
+			ByteBuffer[] chunks = mChunks;
+			if (mChunkCount == chunks.length) {
+				ByteBuffer[] grown = new ByteBuffer[Math.min(chunks.length * 2, MAX_CHUNKS)];
+				System.arraycopy(chunks, 0, grown, 0, chunks.length);
+				chunks = grown;
+			}
+			chunks[mChunkCount++] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+			// Publish the new chunk before handing out any handle that points into it
+			mChunks = chunks;
+			mChunkOffset = 0;
+		}
+
+		ByteBuffer chunk = mChunks[mChunkCount - 1];
+		int offset = mChunkOffset;
+		chunk.putInt(offset, bytes.length);
+		for (int i = 0; i < bytes.length; i++) {
+			chunk.put(offset + 4 + i, bytes[i]);
+		}
+		mChunkOffset += 4 + bytes.length;
+
+		return ((mChunkCount - 1) << CHUNK_BITS) | offset;
+	}
+
+	private boolean equalsAt(int handle, byte[] bytes) {
+		ByteBuffer chunk = mChunks[handle >>> CHUNK_BITS];
+		int offset = handle & (CHUNK_SIZE - 1);
+		if (chunk.getInt(offset) != bytes.length)
+			return false;
+
+		for (int i = 0; i < bytes.length; i++) {
+			if (chunk.get(offset + 4 + i) != bytes[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	private void rehash() {
+		int[] slots = new int[mSlots.length * 2];
+		int[] hashes = new int[slots.length];
+		int mask = slots.length - 1;
+		for (int j = 0; j < mSlots.length; j++) {
+			if (mSlots[j] == NULL_HANDLE)
+				continue;
+
+			int i = mSlotHashes[j] & mask;
+			while (slots[i] != NULL_HANDLE) {
+				i = (i + 1) & mask;
+			}
+			slots[i] = mSlots[j];
+			hashes[i] = mSlotHashes[j];
+		}
+
+		mSlots = slots;
+		mSlotHashes = hashes;
+	}
+
+	private static int hash(byte[] bytes) {
+		int h = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			h = 31 * h + bytes[i];
+		}
+		// Spread the bits, as the table is indexed by the low bits only
+		return h ^ (h >>> 16);
+	}
+}
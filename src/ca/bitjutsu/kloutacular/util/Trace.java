@@ -0,0 +1,197 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The timeline of a single sampled request: a span for each stage it went through on its way from
+ * being made to being delivered to listeners, with how long the stage took and how much it handled.
+ * A trace is started by a {@link Tracer} and handed to its {@link TraceSink} once it finishes.
+ *
+ * Requests that aren't sampled carry {@link #OFF}, which records nothing and doesn't read the clock.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class Trace {
+	/** The trace carried by requests that aren't sampled. */
+	public static final Trace OFF = new Trace(null, null, null) {
+		@Override
+		public long start() {
+			return 0;
+		}
+
+		@Override
+		public void end(Stage stage, long started, long size) {
+		}
+
+		@Override
+		public void finish() {
+		}
+	};
+
+	/**
+	 * The stages a request goes through.
+	 */
+	public enum Stage {
+		/** Resolving the user's Klout ID, including any lookup's time in the queue; sized in nothing. */
+		IDENTITY,
+		/** Waiting in the fetch queue for a worker; sized in nothing. */
+		QUEUE,
+		/** The call to the Klout API; sized in characters of response, or <code>-1</code> if it failed. */
+		HTTP,
+		/** Decoding the response; sized in characters of response. */
+		PARSE,
+		/** Updating the cached profiles; sized in profiles updated. */
+		STORE,
+		/** Passing the result to listeners and waiting callbacks; sized in listeners. */
+		DISPATCH
+	}
+
+	private final String mOperation;
+	private final String mScreenName;
+	private final TraceSink mSink;
+	private final long mStartTime;
+	private final long mStarted;
+	// Guarded by this
+	private final ArrayList<Span> mSpans;
+	private long mDuration = -1;
+
+	/* package */ Trace(String operation, String screenName, TraceSink sink) {
+		mOperation = operation;
+		mScreenName = screenName;
+		mSink = sink;
+		mStartTime = System.currentTimeMillis();
+		mStarted = System.nanoTime();
+		mSpans = new ArrayList<Span>(6);
+	}
+
+	/**
+	 * Mark the start of a stage.
+	 * @return the time to pass to {@link #end(Stage, long, long)}
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record a stage.
+	 * @param stage the stage
+	 * @param started what {@link #start()} returned when the stage started
+	 * @param size how much the stage handled, as described by the stage
+	 */
+	public void end(Stage stage, long started, long size) {
+		long now = System.nanoTime();
+		synchronized (this) {
+			mSpans.add(new Span(stage, started - mStarted, now - started, size));
+		}
+	}
+
+	/**
+	 * Finish the trace and hand it to the sink.  Only the first call counts.
+	 */
+	public void finish() {
+		synchronized (this) {
+			if (mDuration != -1)
+				return;
+			mDuration = System.nanoTime() - mStarted;
+		}
+		mSink.record(this);
+	}
+
+	/**
+	 * @return the name of the request, such as <code>requestInfluence</code>
+	 */
+	public String getOperation() {
+		return mOperation;
+	}
+
+	/**
+	 * @return the user the request was for
+	 */
+	public String getScreenName() {
+		return mScreenName;
+	}
+
+	/**
+	 * @return when the request was made, in milliseconds since the epoch
+	 */
+	public long getStartTime() {
+		return mStartTime;
+	}
+
+	/**
+	 * @return how long the request took, in nanoseconds, or <code>-1</code> if it hasn't finished
+	 */
+	public synchronized long getDuration() {
+		return mDuration;
+	}
+
+	/**
+	 * @return the stages recorded so far, in the order they ended
+	 */
+	public synchronized List<Span> getSpans() {
+		return Collections.unmodifiableList(new ArrayList<Span>(mSpans));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(mOperation).append(' ').append(mScreenName).append(": ").append(getDuration() / 1000000.0).append(" ms");
+		for (Span span : getSpans()) {
+			sb.append("\n  ").append(span);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A stage of a request.
+	 */
+	public static class Span {
+		private final Stage mStage;
+		private final long mOffset;
+		private final long mDuration;
+		private final long mSize;
+
+		private Span(Stage stage, long offset, long duration, long size) {
+			mStage = stage;
+			mOffset = offset;
+			mDuration = duration;
+			mSize = size;
+		}
+
+		/**
+		 * @return the stage
+		 */
+		public Stage getStage() {
+			return mStage;
+		}
+
+		/**
+		 * @return when the stage started, in nanoseconds after the request was made
+		 */
+		public long getOffset() {
+			return mOffset;
+		}
+
+		/**
+		 * @return how long the stage took, in nanoseconds
+		 */
+		public long getDuration() {
+			return mDuration;
+		}
+
+		/**
+		 * @return how much the stage handled, as described by its {@link Stage}
+		 */
+		public long getSize() {
+			return mSize;
+		}
+
+		@Override
+		public String toString() {
+			return mStage + " +" + (mOffset / 1000000.0) + " ms, " + (mDuration / 1000000.0) + " ms, size " + mSize;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package ca.bitjutsu.kloutacular.util;
+
+/**
+ * Receives finished {@link Trace}s, such as {@link SlowestTraces}.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public interface TraceSink {
+	/**
+	 * Take a finished trace.  Called on whichever thread finished the request, so must be quick.
+	 * @param trace the trace
+	 */
+	public void record(Trace trace);
+}
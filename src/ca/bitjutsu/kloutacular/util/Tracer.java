@@ -0,0 +1,53 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which requests to trace and where their {@link Trace}s go.  Sampling is off until both a
+ * sample rate and a sink are set; until then every request carries {@link Trace#OFF}.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class Tracer {
+	private volatile double mSampleRate;
+	private volatile TraceSink mSink;
+
+	/**
+	 * Set the share of requests to trace.
+	 * @param rate from <code>0</code> for none to <code>1</code> for every request
+	 */
+	public void setSampleRate(double rate) {
+		mSampleRate = rate;
+	}
+
+	/**
+	 * @return the share of requests traced
+	 */
+	public double getSampleRate() {
+		return mSampleRate;
+	}
+
+	/**
+	 * Set where finished traces go.
+	 * @param sink the sink, or <code>null</code> to stop tracing
+	 */
+	public void setSink(TraceSink sink) {
+		mSink = sink;
+	}
+
+	/**
+	 * Start tracing a request, if it is sampled.
+	 * @param operation the name of the request, such as <code>requestInfluence</code>
+	 * @param screenName the user the request is for
+	 * @return the request's trace, or {@link Trace#OFF} if it isn't sampled
+	 */
+	public Trace start(String operation, String screenName) {
+		double rate = mSampleRate;
+		if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate))
+			return Trace.OFF;
+
+		TraceSink sink = mSink;
+		return (sink != null) ? new Trace(operation, screenName, sink) : Trace.OFF;
+	}
+}
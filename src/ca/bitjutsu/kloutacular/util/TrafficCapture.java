@@ -0,0 +1,217 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The calls to the Klout API recorded by a {@link TrafficRecorder}, read back from its file in the
+ * order they were made, to be played back with a {@link ReplayTransport} and a {@link ReplayDriver}.
+ *
+ * The file is gzipped, all numbers big-endian: the magic number <code>KREC</code> and the format
+ * version, then a record per call, written as each call finishes: when the call started and how
+ * long it took in milliseconds (a long and an int), the URL (length-prefixed UTF-8), whether it had
+ * to be fresh, and its outcome, one of {@link #OK} and the response body, {@link #HTTP_ERROR} and
+ * the status code and message, {@link #CIRCUIT_OPEN} and the endpoint, or {@link #IO_ERROR} and the
+ * message.  Strings are length-prefixed UTF-8, with length <code>-1</code> for null.  A file that
+ * was cut off by a crash is read up to its last whole record.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class TrafficCapture {
+	/* package */ static final int MAGIC = 0x4b524543;
+	/* package */ static final int VERSION = 1;
+	/* package */ static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The call succeeded. */
+	public static final int OK = 0;
+	/** The server responded with an error status. */
+	public static final int HTTP_ERROR = 1;
+	/** The call was refused by an open {@link CircuitBreaker}. */
+	public static final int CIRCUIT_OPEN = 2;
+	/** The call failed some other way. */
+	public static final int IO_ERROR = 3;
+
+	private List<Call> mCalls;
+
+	private TrafficCapture(List<Call> calls) {
+		mCalls = calls;
+	}
+
+	/**
+	 * Read a capture file.
+	 * @param file the file a {@link TrafficRecorder} wrote
+	 * @return the recorded calls
+	 * @throws IOException if the file can't be read or isn't a capture
+	 */
+	public static TrafficCapture read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)), 64 * 1024));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a traffic capture");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported traffic capture version " + version);
+
+			ArrayList<Call> calls = new ArrayList<Call>();
+			try {
+				while (true) {
+					calls.add(readCall(in));
+				}
+			} catch (EOFException e) {
+				// The end of the capture, or of what was written before a crash
+			}
+
+			// Records are written as calls finish, so put them back in the order they started
+			Collections.sort(calls, new Comparator<Call>() {
+				public int compare(Call a, Call b) {
+					return Long.compare(a.mStart, b.mStart);
+				}
+			});
+			return new TrafficCapture(Collections.unmodifiableList(calls));
+		} finally {
+			in.close();
+		}
+	}
+
+	private static Call readCall(DataInputStream in) throws IOException {
+		long start = in.readLong();
+		int duration = in.readInt();
+		String url = readString(in);
+		boolean fresh = in.readBoolean();
+		int outcome = in.readByte();
+		switch (outcome) {
+		case OK:
+			return new Call(start, duration, url, fresh, outcome, readString(in), 0, null);
+		case HTTP_ERROR:
+			int status = in.readInt();
+			return new Call(start, duration, url, fresh, outcome, null, status, readString(in));
+		case CIRCUIT_OPEN:
+		case IO_ERROR:
+			return new Call(start, duration, url, fresh, outcome, null, 0, readString(in));
+		default:
+			throw new IOException("Unknown outcome " + outcome + " in traffic capture");
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * @return the recorded calls, in the order they started
+	 */
+	public List<Call> getCalls() {
+		return mCalls;
+	}
+
+	/**
+	 * @return how long the recording ran for, from its start to the end of its last call, in milliseconds
+	 */
+	public long getDuration() {
+		long end = 0;
+		for (Call call : mCalls) {
+			end = Math.max(end, call.mStart + call.mDuration);
+		}
+		return end;
+	}
+
+	/**
+	 * A call to the Klout API and how it turned out.
+	 */
+	public static class Call {
+		private final long mStart;
+		private final int mDuration;
+		private final String mUrl;
+		private final boolean mFresh;
+		private final int mOutcome;
+		private final String mResponse;
+		private final int mStatusCode;
+		private final String mMessage;
+
+		/* package */ Call(long start, int duration, String url, boolean fresh, int outcome, String response,
+							int statusCode, String message) {
+			mStart = start;
+			mDuration = duration;
+			mUrl = url;
+			mFresh = fresh;
+			mOutcome = outcome;
+			mResponse = response;
+			mStatusCode = statusCode;
+			mMessage = message;
+		}
+
+		/**
+		 * @return when the call started, in milliseconds since the recording started
+		 */
+		public long getStart() {
+			return mStart;
+		}
+
+		/**
+		 * @return how long the call took, in milliseconds
+		 */
+		public int getDuration() {
+			return mDuration;
+		}
+
+		/**
+		 * @return the URL, without an API key
+		 */
+		public String getUrl() {
+			return mUrl;
+		}
+
+		/**
+		 * @return whether the response had to come from the server rather than any cache
+		 */
+		public boolean isFresh() {
+			return mFresh;
+		}
+
+		/**
+		 * @return how the call turned out: {@link #OK}, {@link #HTTP_ERROR}, {@link #CIRCUIT_OPEN} or {@link #IO_ERROR}
+		 */
+		public int getOutcome() {
+			return mOutcome;
+		}
+
+		/**
+		 * @return the response body, or <code>null</code> if the call failed
+		 */
+		public String getResponse() {
+			return mResponse;
+		}
+
+		/**
+		 * @return the HTTP status code of a {@link #HTTP_ERROR}, otherwise <code>0</code>
+		 */
+		public int getStatusCode() {
+			return mStatusCode;
+		}
+
+		/**
+		 * @return the error message, or for {@link #CIRCUIT_OPEN} the name of the endpoint, or
+		 * <code>null</code> if the call succeeded
+		 */
+		public String getMessage() {
+			return mMessage;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * A {@link Transport} that records every call it makes, with its timing and its response or error,
+ * to a capture file that can be read back as a {@link TrafficCapture}.  Put it in front of any
+ * {@link KeyedTransport}, so API keys are never recorded.
+ *
+ * Failures to write the capture are logged and recording stops; the calls themselves carry on.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class TrafficRecorder implements Transport {
+	private volatile Transport mTransport;
+	private long mStarted;
+	// Guarded by this
+	private DataOutputStream mOut;
+
+	/**
+	 * @param transport makes the calls
+	 * @param file the file to record to, which is replaced
+	 * @throws IOException if the file can't be created
+	 */
+	public TrafficRecorder(Transport transport, File file) throws IOException {
+		mTransport = transport;
+		mOut = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file)), 64 * 1024));
+		mOut.writeInt(TrafficCapture.MAGIC);
+		mOut.writeInt(TrafficCapture.VERSION);
+		mStarted = System.nanoTime();
+	}
+
+	/**
+	 * @return the transport making the calls
+	 */
+	public Transport getTransport() {
+		return mTransport;
+	}
+
+	/**
+	 * Carry on recording, with the calls made by another transport from now on.
+	 * @param transport makes the calls
+	 */
+	public void setTransport(Transport transport) {
+		mTransport = transport;
+	}
+
+	@Override
+	public String get(String url, boolean fresh) throws IOException {
+		long start = System.nanoTime();
+		try {
+			String body = mTransport.get(url, fresh);
+			record(start, url, fresh, TrafficCapture.OK, body, 0);
+			return body;
+		} catch (HttpResponseException e) {
+			record(start, url, fresh, TrafficCapture.HTTP_ERROR, e.getMessage(), e.getStatusCode());
+			throw e;
+		} catch (CircuitOpenException e) {
+			record(start, url, fresh, TrafficCapture.CIRCUIT_OPEN, e.getEndpoint().name(), 0);
+			throw e;
+		} catch (IOException e) {
+			record(start, url, fresh, TrafficCapture.IO_ERROR, e.getMessage(), 0);
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop recording, and finish the capture file.  Calls made afterwards are not recorded.
+	 * @throws IOException if the capture could not be finished
+	 */
+	public synchronized void close() throws IOException {
+		if (mOut == null)
+			return;
+
+		DataOutputStream out = mOut;
+		mOut = null;
+		out.close();
+	}
+
+	private synchronized void record(long start, String url, boolean fresh, int outcome, String detail, int statusCode) {
+		if (mOut == null)
+			return;
+
+		long now = System.nanoTime();
+		try {
+			mOut.writeLong((start - mStarted) / 1000000);
+			mOut.writeInt((int) ((now - start) / 1000000));
+			writeString(url);
+			mOut.writeBoolean(fresh);
+			mOut.writeByte(outcome);
+			if (outcome == TrafficCapture.HTTP_ERROR)
+				mOut.writeInt(statusCode);
+			writeString(detail);
+		} catch (IOException e) {
+			e.printStackTrace();
+			try {
+				close();
+			} catch (IOException e1) {
+				// Already failing
+			}
+		}
+	}
+
+	// Must hold the lock on this
+	private void writeString(String s) throws IOException {
+		if (s == null) {
+			mOut.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = s.getBytes(TrafficCapture.UTF_8);
+		mOut.writeInt(bytes.length);
+		mOut.write(bytes);
+	}
+}
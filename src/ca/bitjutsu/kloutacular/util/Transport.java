@@ -0,0 +1,21 @@
+package ca.bitjutsu.kloutacular.util;
+
+import java.io.IOException;
+
+/**
+ * Makes GET requests to the Klout API on behalf of a KloutScoreManager.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public interface Transport {
+	/**
+	 * Fetch a URL.  Should not ever be called on the main thread.
+	 * @param url the URL to fetch
+	 * @param fresh whether the response must come from the server rather than any cache
+	 * @return the body of the response
+	 * @throws org.apache.http.client.HttpResponseException if the server responds with anything but 200
+	 * @throws IOException if the request fails
+	 */
+	public String get(String url, boolean fresh) throws IOException;
+}
@@ -0,0 +1,217 @@
+package ca.bitjutsu.kloutacular.v1;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ca.bitjutsu.kloutacular.v1.KloutScoreManager.OnProfileChangedListener;
+
+/**
+ * Turns the stream of published profiles into a stream of {@link ProfileChange}s.  Every profile
+ * published for a user within a window of the first is coalesced, and at the end of the window the
+ * latest is compared with the last profile a change was delivered for.  Only if a field actually
+ * differs is a change delivered, so re-publishing an unchanged profile, or a burst of updates that
+ * ends where it started, delivers nothing.
+ *
+ * The feed does nothing, and remembers nothing, until a listener is added.
+ *
+ * Changes are delivered on a thread of the feed's own, in sequence order, so a slow listener
+ * holds up later changes but never the scheduler that closes the windows.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+/* package */ class ChangeFeed {
+	private CopyOnWriteArrayList<OnProfileChangedListener> mListeners;
+	// The last profile a change was delivered for, per user
+	private ConcurrentHashMap<String, KloutProfile> mDelivered;
+	// The latest profile published in each open window
+	private ConcurrentHashMap<String, KloutProfile> mPending;
+	private ScheduledExecutorService mScheduler;
+	private ExecutorService mDelivery;
+	private volatile long mWindow;
+	private long mSequence;
+
+	/* package */ ChangeFeed(ScheduledExecutorService scheduler, long window) {
+		mListeners = new CopyOnWriteArrayList<OnProfileChangedListener>();
+		mDelivered = new ConcurrentHashMap<String, KloutProfile>();
+		mPending = new ConcurrentHashMap<String, KloutProfile>();
+		mScheduler = scheduler;
+		mDelivery = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "KloutChangeFeed");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mWindow = window;
+	}
+
+	/* package */ void addListener(OnProfileChangedListener l) {
+		mListeners.add(l);
+	}
+
+	/* package */ void removeListener(OnProfileChangedListener l) {
+		mListeners.remove(l);
+		if (mListeners.isEmpty()) {
+			mDelivered.clear();
+			mPending.clear();
+		}
+	}
+
+	/* package */ void setWindow(long millis) {
+		mWindow = millis;
+	}
+
+	/**
+	 * Stop the delivery thread once the changes already handed to it have been delivered.
+	 */
+	/* package */ void shutdown() {
+		mDelivery.shutdown();
+	}
+
+	/**
+	 * Note that a profile has been published.
+	 * @param kp the published profile
+	 */
+	/* package */ void published(KloutProfile kp) {
+		if (kp == null || mListeners.isEmpty())
+			return;
+
+		final String screenName = kp.getScreenName();
+		while (true) {
+			KloutProfile pending = mPending.putIfAbsent(screenName, kp);
+			if (pending == null)
+				break;
+			// Publications can arrive out of order; keep the newest
+			if (pending.getVersion() > kp.getVersion() || mPending.replace(screenName, pending, kp))
+				return;
+		}
+
+		long window = mWindow;
+		if (window <= 0) {
+			flush(screenName);
+		} else {
+			mScheduler.schedule(new Runnable() {
+				public void run() {
+					flush(screenName);
+				}
+			}, window, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flush(String screenName) {
+		KloutProfile latest = mPending.remove(screenName);
+		if (latest == null)
+			return;
+
+		// Sequence numbers must be handed to the delivery thread, which runs in order, in order
+		synchronized (this) {
+			KloutProfile delivered = mDelivered.get(screenName);
+			// A later window for the user has already been delivered
+			if (delivered != null && delivered.getVersion() > latest.getVersion())
+				return;
+
+			final ProfileChange change = diff(mSequence + 1, delivered, latest);
+			if (change == null)
+				return;
+
+			mSequence++;
+			mDelivered.put(screenName, latest);
+			try {
+				mDelivery.execute(new Runnable() {
+					public void run() {
+						for (OnProfileChangedListener l : mListeners) {
+							try {
+								l.onChange(change);
+							} catch (RuntimeException e) {
+								e.printStackTrace();
+							}
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// The manager has been shut down, and nobody is waiting for changes any more
+			}
+		}
+	}
+
+	/**
+	 * @return the change from <code>before</code> to <code>after</code>, or <code>null</code> if nothing changed
+	 */
+	private static ProfileChange diff(long sequence, KloutProfile before, KloutProfile after) {
+		if (before == after)
+			return null;
+
+		double oldScore = (before != null) ? before.getScore() : 0.0;
+		List<String> topicsAdded = added((before != null) ? before.getTopics() : null, after.getTopics());
+		List<String> topicsRemoved = removed((before != null) ? before.getTopics() : null, after.getTopics());
+		List<String> influencers = screenNames(after.getInfluencedBy());
+		List<String> oldInfluencers = (before != null) ? screenNames(before.getInfluencedBy()) : null;
+		List<String> influencees = screenNames(after.getInfluencerOf());
+		List<String> oldInfluencees = (before != null) ? screenNames(before.getInfluencerOf()) : null;
+		List<String> influencersAdded = added(oldInfluencers, influencers);
+		List<String> influencersRemoved = removed(oldInfluencers, influencers);
+		List<String> influenceesAdded = added(oldInfluencees, influencees);
+		List<String> influenceesRemoved = removed(oldInfluencees, influencees);
+
+		if (oldScore == after.getScore() && topicsAdded.isEmpty() && topicsRemoved.isEmpty()
+				&& influencersAdded.isEmpty() && influencersRemoved.isEmpty()
+				&& influenceesAdded.isEmpty() && influenceesRemoved.isEmpty())
+			return null;
+
+		return new ProfileChange(sequence, after, oldScore, topicsAdded, topicsRemoved,
+				influencersAdded, influencersRemoved, influenceesAdded, influenceesRemoved);
+	}
+
+	/**
+	 * @return the values in <code>after</code> but not in <code>before</code>; nothing if <code>after</code>
+	 * is <code>null</code>, as a list that hasn't been fetched hasn't lost anything
+	 */
+	private static List<String> added(List<String> before, List<String> after) {
+		if (after == null || after.isEmpty())
+			return ProfileChange.none();
+		if (before == null || before.isEmpty())
+			return new ArrayList<String>(after);
+
+		HashSet<String> old = new HashSet<String>(before);
+		ArrayList<String> added = null;
+		for (String value : after) {
+			if (!old.contains(value)) {
+				if (added == null)
+					added = new ArrayList<String>(2);
+				added.add(value);
+			}
+		}
+		return (added != null) ? added : ProfileChange.none();
+	}
+
+	/**
+	 * @return the values in <code>before</code> but not in <code>after</code>; nothing if <code>after</code>
+	 * is <code>null</code>
+	 */
+	private static List<String> removed(List<String> before, List<String> after) {
+		if (after == null)
+			return ProfileChange.none();
+		return added(after, before);
+	}
+
+	private static List<String> screenNames(List<KloutProfile> profiles) {
+		if (profiles == null)
+			return null;
+
+		ArrayList<String> names = new ArrayList<String>(profiles.size());
+		for (KloutProfile kp : profiles) {
+			names.add(kp.getScreenName());
+		}
+		return names;
+	}
+}
@@ -0,0 +1,354 @@
+package ca.bitjutsu.kloutacular.v1;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Streams profiles into a set of columnar files, one per partition, for loading into an analytics
+ * warehouse.  Profiles are assigned to partitions by a hash of their screen name and handed to a
+ * writer thread per partition through a short queue, so partitions are encoded in parallel and
+ * memory use is bounded by the queues and one row group per partition, however many profiles are
+ * exported.
+ *
+ * Each partition is written to <code>part-NNNNN.kcol</code>, all numbers big-endian:
+ * <ul>
+ * <li>the magic number <code>KCOL</code> and the format version;</li>
+ * <li>row groups of up to {@link #ROWS_PER_GROUP} rows, each the row count followed by each column
+ * as its length in bytes and its values: screen name and user description as length-prefixed
+ * UTF-8 (length <code>-1</code> for null); score, amplification, network, true reach, slope, one
+ * day and five day deltas as doubles; class ID as an int; class and class description as
+ * dictionary values; topics as a count (<code>-1</code> for null) and that many dictionary values
+ * per row.  A dictionary value is its ID, <code>-1</code> for null, or <code>-2</code> followed by
+ * the value itself as length-prefixed UTF-8 once the dictionary holds {@link #MAX_DICTIONARY}
+ * strings;</li>
+ * <li>the footer: the class, class description and topic dictionaries, each a count and that many
+ * length-prefixed strings in ID order, then the row group count and each group's offset and row
+ * count;</li>
+ * <li>the offset of the footer as a long, and the magic number again.</li>
+ * </ul>
+ * Dictionaries are built as the partition is written, so they go in the footer; read the last
+ * twelve bytes of the file to find them first.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+/* package */ class ColumnarExporter {
+	/* package */ static final int MAGIC = 0x4b434f4c;
+	/* package */ static final int VERSION = 2;
+	/* package */ static final int ROWS_PER_GROUP = 64 * 1024;
+	/* package */ static final int MAX_DICTIONARY = 64 * 1024;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int QUEUE_SIZE = 1024;
+	// Tells a partition's writer there are no more profiles
+	private static final KloutProfile END = new KloutProfile("", 0.0);
+
+	private Partition[] mPartitions;
+	private Thread[] mThreads;
+	private long mRows;
+
+	/**
+	 * @param dir the directory to write the partitions to
+	 * @param partitions the number of partitions, and of writer threads
+	 * @throws IOException if the partition files can't be created
+	 */
+	/* package */ ColumnarExporter(File dir, int partitions) throws IOException {
+		if (partitions < 1)
+			throw new IllegalArgumentException("partitions must be at least 1");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create " + dir);
+
+		mPartitions = new Partition[partitions];
+		mThreads = new Thread[partitions];
+		try {
+			for (int i = 0; i < partitions; i++) {
+				mPartitions[i] = new Partition(new File(dir, String.format("part-%05d.kcol", i)));
+			}
+		} catch (IOException e) {
+			// Don't leave an export that is missing partitions behind
+			for (Partition p : mPartitions) {
+				if (p != null) {
+					p.close();
+					p.mFile.delete();
+				}
+			}
+			throw e;
+		}
+
+		for (int i = 0; i < partitions; i++) {
+			mThreads[i] = new Thread(mPartitions[i], "KloutExport-" + i);
+			mThreads[i].start();
+		}
+	}
+
+	/**
+	 * Export a profile.  Blocks while its partition's writer is behind.
+	 * @param kp the profile
+	 * @throws IOException if the partition could not be written
+	 */
+	/* package */ void add(KloutProfile kp) throws IOException {
+		int h = kp.getScreenName().hashCode();
+		h ^= (h >>> 16);
+		Partition p = mPartitions[(h & 0x7fffffff) % mPartitions.length];
+		if (p.mError != null)
+			throw p.mError;
+
+		try {
+			p.mQueue.put(kp);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while exporting profiles");
+		}
+		mRows++;
+	}
+
+	/**
+	 * Wait for every partition to be written and closed.
+	 * @return the number of profiles exported
+	 * @throws IOException if any partition could not be written
+	 */
+	/* package */ long finish() throws IOException {
+		IOException error = null;
+		for (int i = 0; i < mPartitions.length; i++) {
+			try {
+				mPartitions[i].mQueue.put(END);
+				mThreads[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				error = new InterruptedIOException("Interrupted while exporting profiles");
+			}
+			if (mPartitions[i].mError != null && error == null)
+				error = mPartitions[i].mError;
+		}
+
+		if (error != null)
+			throw error;
+		return mRows;
+	}
+
+	/**
+	 * Stop exporting, and delete whatever has been written, because the export can't be finished.
+	 */
+	/* package */ void abort() {
+		for (Partition p : mPartitions) {
+			if (p.mError == null)
+				p.mError = new IOException("Export aborted");
+		}
+
+		try {
+			finish();
+		} catch (IOException e) {
+			// Expected, as every partition has failed
+		}
+	}
+
+	private static class Partition implements Runnable {
+		private final ArrayBlockingQueue<KloutProfile> mQueue = new ArrayBlockingQueue<KloutProfile>(QUEUE_SIZE);
+		private final File mFile;
+		private final DataOutputStream mOut;
+		private volatile IOException mError;
+
+		private final Dictionary mClasses = new Dictionary();
+		private final Dictionary mClassDescriptions = new Dictionary();
+		private final Dictionary mTopics = new Dictionary();
+		private final ArrayList<long[]> mGroups = new ArrayList<long[]>();
+		private long mOffset;
+
+		// The row group being built, a buffer per column
+		private final Column mScreenName = new Column();
+		private final Column mUserDescription = new Column();
+		private final Column mScore = new Column();
+		private final Column mAmplification = new Column();
+		private final Column mNetwork = new Column();
+		private final Column mTrueReach = new Column();
+		private final Column mSlope = new Column();
+		private final Column mOneDayDelta = new Column();
+		private final Column mFiveDayDelta = new Column();
+		private final Column mClassId = new Column();
+		private final Column mClass = new Column();
+		private final Column mClassDescription = new Column();
+		private final Column mTopicIds = new Column();
+		private final Column[] mColumns = { mScreenName, mUserDescription, mScore, mAmplification, mNetwork,
+				mTrueReach, mSlope, mOneDayDelta, mFiveDayDelta, mClassId, mClass, mClassDescription, mTopicIds };
+		private int mGroupRows;
+
+		private Partition(File file) throws IOException {
+			mFile = file;
+			mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		}
+
+		public void run() {
+			try {
+				mOut.writeInt(MAGIC);
+				mOut.writeInt(VERSION);
+				mOffset = 8;
+			} catch (IOException e) {
+				mError = e;
+			}
+
+			while (true) {
+				KloutProfile kp;
+				try {
+					kp = mQueue.take();
+				} catch (InterruptedException e) {
+					mError = new InterruptedIOException("Interrupted while exporting profiles");
+					break;
+				}
+				if (kp == END)
+					break;
+				// Keep draining after a failure, so the exporter never blocks on a full queue
+				if (mError != null)
+					continue;
+
+				try {
+					append(kp);
+					if (mGroupRows == ROWS_PER_GROUP)
+						flushGroup();
+				} catch (IOException e) {
+					mError = e;
+				}
+			}
+
+			try {
+				if (mError == null) {
+					if (mGroupRows > 0)
+						flushGroup();
+					writeFooter();
+				}
+			} catch (IOException e) {
+				mError = e;
+			} finally {
+				close();
+			}
+
+			if (mError != null)
+				mFile.delete();
+		}
+
+		private void append(KloutProfile kp) throws IOException {
+			writeString(mScreenName.mData, kp.getScreenName());
+			writeString(mUserDescription.mData, kp.getUserDescription());
+			mScore.mData.writeDouble(kp.getScore());
+			mAmplification.mData.writeDouble(kp.getAmplification());
+			mNetwork.mData.writeDouble(kp.getNetwork());
+			mTrueReach.mData.writeDouble(kp.getTrueReach());
+			mSlope.mData.writeDouble(kp.getSlope());
+			mOneDayDelta.mData.writeDouble(kp.getOneDayDelta());
+			mFiveDayDelta.mData.writeDouble(kp.getFiveDayDelta());
+			mClassId.mData.writeInt(kp.getKloutClassId());
+			mClasses.write(mClass.mData, kp.getKloutClass());
+			mClassDescriptions.write(mClassDescription.mData, kp.getKloutClassDescription());
+
+			List<String> topics = kp.getTopics();
+			if (topics == null) {
+				mTopicIds.mData.writeInt(-1);
+			} else {
+				mTopicIds.mData.writeInt(topics.size());
+				for (String topic : topics) {
+					mTopics.write(mTopicIds.mData, topic);
+				}
+			}
+
+			mGroupRows++;
+		}
+
+		private void flushGroup() throws IOException {
+			mGroups.add(new long[] { mOffset, mGroupRows });
+			mOut.writeInt(mGroupRows);
+			mOffset += 4;
+			for (Column c : mColumns) {
+				c.mData.flush();
+				mOut.writeInt(c.mBytes.size());
+				c.mBytes.writeTo(mOut);
+				mOffset += 4 + c.mBytes.size();
+				c.mBytes.reset();
+			}
+			mGroupRows = 0;
+		}
+
+		private void writeFooter() throws IOException {
+			long footer = mOffset;
+			mClasses.writeTo(mOut);
+			mClassDescriptions.writeTo(mOut);
+			mTopics.writeTo(mOut);
+			mOut.writeInt(mGroups.size());
+			for (long[] group : mGroups) {
+				mOut.writeLong(group[0]);
+				mOut.writeInt((int) group[1]);
+			}
+			mOut.writeLong(footer);
+			mOut.writeInt(MAGIC);
+		}
+
+		private void close() {
+			try {
+				mOut.close();
+			} catch (IOException e) {
+				if (mError == null)
+					mError = e;
+			}
+		}
+	}
+
+	private static class Column {
+		private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream(64 * 1024);
+		private final DataOutputStream mData = new DataOutputStream(mBytes);
+	}
+
+	/**
+	 * Assigns each distinct string a dense ID, in the order they are first seen, until it holds
+	 * {@link #MAX_DICTIONARY} strings.  Strings seen after that are written out in full.
+	 */
+	private static class Dictionary {
+		private final HashMap<String, Integer> mIds = new HashMap<String, Integer>();
+		private final ArrayList<String> mValues = new ArrayList<String>();
+
+		private void write(DataOutputStream out, String value) throws IOException {
+			if (value == null) {
+				out.writeInt(-1);
+				return;
+			}
+
+			Integer id = mIds.get(value);
+			if (id == null) {
+				// A column of mostly distinct values would otherwise hold them all in memory
+				if (mValues.size() >= MAX_DICTIONARY) {
+					out.writeInt(-2);
+					writeString(out, value);
+					return;
+				}
+				id = mValues.size();
+				mIds.put(value, id);
+				mValues.add(value);
+			}
+			out.writeInt(id);
+		}
+
+		private void writeTo(DataOutputStream out) throws IOException {
+			out.writeInt(mValues.size());
+			for (String value : mValues) {
+				writeString(out, value);
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = s.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
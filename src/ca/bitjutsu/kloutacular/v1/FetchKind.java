@@ -0,0 +1,29 @@
+package ca.bitjutsu.kloutacular.v1;
+
+/**
+ * The kinds of request that can be made to the Klout API for a user.
+ * 
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+/* package */ enum FetchKind {
+	SCORE,
+	USER,
+	TOPICS,
+	INFLUENCED_BY,
+	INFLUENCER_OF;
+	
+	/* package */ int bit() {
+		return 1 << ordinal();
+	}
+	
+	/**
+	 * Checks if the response to a request of this kind also answers a request of another kind.
+	 * A user object includes the user's score, so a user request covers a score request.
+	 * @param other the kind of request to check
+	 * @return whether or not this kind of request covers the other
+	 */
+	/* package */ boolean covers(FetchKind other) {
+		return this == other || (this == USER && other == SCORE);
+	}
+}
@@ -0,0 +1,379 @@
+package ca.bitjutsu.kloutacular.v1;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ca.bitjutsu.kloutacular.util.Priority;
+import ca.bitjutsu.kloutacular.util.Promotable;
+
+/**
+ * Collects the requests made for each user over a short window and works out the fewest calls
+ * to the Klout API that will answer all of them.  Requests that are already answered by a call in
+ * flight, or by a richer call planned in the same window (a user object includes the score), don't
+ * cause calls of their own; they are attached to the richer call and completed with its result.
+ * Requests that are cancelled or expire before their call is planned are failed without one, and a
+ * call is only worth making while {@link #isWanted(String, FetchKind)} says so.  A call goes at
+ * the priority of its most urgent request, and is promoted if a more urgent one attaches to it
+ * while it is still queued.  A forced request only attaches to a call that skips the cache; if a
+ * call of its kind is already in flight without doing so, it waits for that call to finish and then
+ * gets a fresh call of its own.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+/* package */ class FetchPlanner {
+	private ConcurrentHashMap<String, Plan> mPlans;
+	private ScheduledExecutorService mScheduler;
+	private Dispatcher mDispatcher;
+	private volatile long mWindow;
+
+	/* package */ FetchPlanner(Dispatcher dispatcher, ScheduledExecutorService scheduler, long window) {
+		mPlans = new ConcurrentHashMap<String, Plan>();
+		mDispatcher = dispatcher;
+		mScheduler = scheduler;
+		mWindow = window;
+	}
+
+	/**
+	 * Carries out the plans made by a {@link FetchPlanner}.
+	 */
+	/* package */ interface Dispatcher {
+		/**
+		 * @return whether or not the cache can already answer a request of the given kind
+		 */
+		public boolean isCached(String screenName, FetchKind kind);
+
+		/**
+		 * Broadcast the cached profile for the user.
+		 * @return the profile that was broadcast
+		 */
+		public KloutProfile serveCached(String screenName);
+
+		/**
+		 * Make a call to the Klout API.  {@link FetchPlanner#finished(String, FetchKind, KloutProfile)}
+		 * must be called once the call has completed, whether or not it succeeded.
+		 * @param priority the most urgent priority of the requests the call answers
+		 * @param fresh whether any of the requests the call answers was forced, so the response must not come from a cache
+		 * @return the task making the call, to promote if a more urgent request attaches to it
+		 */
+		public Promotable dispatch(String screenName, FetchKind kind, Priority priority, boolean fresh);
+	}
+
+	private static class Plan {
+		private ArrayList<FetchRequest> mPending = new ArrayList<FetchRequest>(2);
+		// The requests waiting on each call in flight, indexed by kind, or null if no call of that kind is in flight
+		private ArrayList<?>[] mInFlight = new ArrayList<?>[FetchKind.values().length];
+		// The priority of each call in flight, and the task making it once it has been dispatched
+		private Priority[] mPriorities = new Priority[FetchKind.values().length];
+		private Promotable[] mTasks = new Promotable[FetchKind.values().length];
+		// Whether each call in flight skips the cache
+		private boolean[] mFresh = new boolean[FetchKind.values().length];
+		// Forced requests waiting for a call of their kind that may be cached to finish
+		private ArrayList<FetchRequest> mDeferred = new ArrayList<FetchRequest>(0);
+		private boolean mRemoved;
+
+		@SuppressWarnings("unchecked")
+		private ArrayList<FetchRequest> getCall(FetchKind kind) {
+			return (ArrayList<FetchRequest>) mInFlight[kind.ordinal()];
+		}
+
+		private FetchKind getCoveringKind(FetchKind kind, boolean forced) {
+			for (FetchKind k : FetchKind.values()) {
+				if (mInFlight[k.ordinal()] != null && k.covers(kind) && (!forced || mFresh[k.ordinal()]))
+					return k;
+			}
+
+			return null;
+		}
+
+		/**
+		 * Attach a request to a call in flight.
+		 * @return the task to promote, if the request is more urgent than the call and the call has been dispatched
+		 */
+		private Promotable attach(FetchKind kind, FetchRequest request) {
+			getCall(kind).add(request);
+			int k = kind.ordinal();
+			Priority priority = Priority.max(mPriorities[k], request.getPriority());
+			if (priority == mPriorities[k])
+				return null;
+
+			// Not dispatched yet: the dispatcher will see the new priority once it has been
+			mPriorities[k] = priority;
+			return mTasks[k];
+		}
+
+		private boolean isEmpty() {
+			if (!mPending.isEmpty() || !mDeferred.isEmpty())
+				return false;
+
+			for (ArrayList<?> call : mInFlight) {
+				if (call != null)
+					return false;
+			}
+
+			return true;
+		}
+	}
+
+	/* package */ void setWindow(long window) {
+		mWindow = window;
+	}
+
+	/**
+	 * Add a request to the plan for its user.
+	 * @param request the request
+	 */
+	/* package */ void submit(FetchRequest request) {
+		final String screenName = request.getScreenName();
+		while (true) {
+			Plan plan = mPlans.get(screenName);
+			if (plan == null) {
+				plan = new Plan();
+				Plan existing = mPlans.putIfAbsent(screenName, plan);
+				if (existing != null)
+					plan = existing;
+			}
+
+			boolean schedule = false;
+			Promotable promote = null;
+			synchronized (plan) {
+				// The plan finished while we were looking it up, so start again
+				if (plan.mRemoved)
+					continue;
+
+				// A call in flight will answer this request
+				FetchKind covering = plan.getCoveringKind(request.getKind(), request.isForced());
+				if (covering != null) {
+					promote = plan.attach(covering, request);
+				} else {
+					schedule = plan.mPending.isEmpty();
+					plan.mPending.add(request);
+				}
+			}
+
+			if (promote != null) {
+				promote.promote(request.getPriority());
+				return;
+			}
+
+			if (schedule) {
+				long window = mWindow;
+				if (window <= 0) {
+					flush(screenName);
+				} else {
+					mScheduler.schedule(new Runnable() {
+						public void run() {
+							flush(screenName);
+						}
+					}, window, TimeUnit.MILLISECONDS);
+				}
+			}
+
+			return;
+		}
+	}
+
+	/**
+	 * Record that a call made by {@link Dispatcher#dispatch(String, FetchKind, Priority, boolean)} has completed, and
+	 * complete the requests that were waiting on it.
+	 * @param screenName the user's Twitter handle
+	 * @param kind the kind of call
+	 * @param result the profile published by the call, or <code>null</code> if it failed
+	 */
+	/* package */ void finished(String screenName, FetchKind kind, KloutProfile result) {
+		Plan plan = mPlans.get(screenName);
+		if (plan == null)
+			return;
+
+		ArrayList<FetchRequest> requests;
+		boolean flush = false;
+		synchronized (plan) {
+			requests = plan.getCall(kind);
+			plan.mInFlight[kind.ordinal()] = null;
+			plan.mPriorities[kind.ordinal()] = null;
+			plan.mTasks[kind.ordinal()] = null;
+			plan.mFresh[kind.ordinal()] = false;
+
+			// The forced requests that were waiting for this call can have their own now
+			if (!plan.mDeferred.isEmpty()) {
+				flush = plan.mPending.isEmpty();
+				plan.mPending.addAll(plan.mDeferred);
+				plan.mDeferred.clear();
+			}
+			removeIfDone(screenName, plan);
+		}
+
+		if (requests != null) {
+			for (FetchRequest request : requests) {
+				request.complete(result);
+			}
+		}
+
+		if (flush)
+			flush(screenName);
+	}
+
+	/**
+	 * Check whether a call is still worth making: whether any of the requests waiting on it has been
+	 * neither cancelled nor passed its deadline.
+	 * @param screenName the user's Twitter handle
+	 * @param kind the kind of call
+	 * @return whether anybody still wants the call's result
+	 */
+	/* package */ boolean isWanted(String screenName, FetchKind kind) {
+		Plan plan = mPlans.get(screenName);
+		if (plan == null)
+			return false;
+
+		synchronized (plan) {
+			ArrayList<FetchRequest> call = plan.getCall(kind);
+			if (call == null)
+				return false;
+
+			for (FetchRequest request : call) {
+				if (request.isLive())
+					return true;
+			}
+			return false;
+		}
+	}
+
+	private void flush(String screenName) {
+		Plan plan = mPlans.get(screenName);
+		if (plan == null)
+			return;
+
+		ArrayList<FetchKind> calls = new ArrayList<FetchKind>(2);
+		ArrayList<ArrayList<FetchRequest>> callRequests = new ArrayList<ArrayList<FetchRequest>>(2);
+		ArrayList<Priority> priorities = new ArrayList<Priority>(2);
+		ArrayList<Boolean> fresh = new ArrayList<Boolean>(2);
+		ArrayList<FetchRequest> served = new ArrayList<FetchRequest>(0);
+		ArrayList<FetchRequest> dropped = new ArrayList<FetchRequest>(0);
+		ArrayList<Promotable> promoted = new ArrayList<Promotable>(0);
+		ArrayList<Priority> promotedTo = new ArrayList<Priority>(0);
+		synchronized (plan) {
+			ArrayList<FetchRequest> pending = plan.mPending;
+			plan.mPending = new ArrayList<FetchRequest>(2);
+
+			boolean wantUser = false;
+			for (FetchRequest request : pending) {
+				wantUser |= (request.getKind() == FetchKind.USER);
+			}
+
+			for (FetchRequest request : pending) {
+				// Nobody wants the answer any more
+				if (!request.isLive()) {
+					dropped.add(request);
+					continue;
+				}
+				
+				FetchKind kind = request.getKind();
+				// The user object answers the score request too
+				if (kind == FetchKind.SCORE && wantUser)
+					kind = FetchKind.USER;
+
+				FetchKind covering = plan.getCoveringKind(kind, request.isForced());
+				if (covering == null && request.isForced()) {
+					// A call planned in this window hasn't gone yet, so it can still be made to skip the cache
+					for (FetchKind k : calls) {
+						if (k.covers(kind))
+							covering = k;
+					}
+				}
+				if (covering != null) {
+					Promotable task = plan.attach(covering, request);
+					if (task != null) {
+						promoted.add(task);
+						promotedTo.add(request.getPriority());
+					}
+					continue;
+				}
+
+				// Another call may have answered the request while the window was open
+				if (!request.isForced() && mDispatcher.isCached(screenName, kind)) {
+					served.add(request);
+					continue;
+				}
+
+				// A call of this kind that may be answered from a cache is in flight, so wait for it to finish
+				if (plan.mInFlight[kind.ordinal()] != null) {
+					plan.mDeferred.add(request);
+					continue;
+				}
+
+				ArrayList<FetchRequest> call = new ArrayList<FetchRequest>(2);
+				call.add(request);
+				plan.mInFlight[kind.ordinal()] = call;
+				calls.add(kind);
+				callRequests.add(call);
+			}
+
+			// Each call goes at the priority of its most urgent request
+			for (FetchKind kind : calls) {
+				Priority priority = Priority.BACKGROUND;
+				boolean forced = false;
+				for (FetchRequest request : plan.getCall(kind)) {
+					priority = Priority.max(priority, request.getPriority());
+					forced |= request.isForced();
+				}
+				plan.mPriorities[kind.ordinal()] = priority;
+				plan.mFresh[kind.ordinal()] = forced;
+				priorities.add(priority);
+				fresh.add(forced);
+			}
+
+			removeIfDone(screenName, plan);
+		}
+
+		for (FetchRequest request : dropped) {
+			request.complete(null);
+		}
+
+		if (!served.isEmpty()) {
+			KloutProfile kp = mDispatcher.serveCached(screenName);
+			for (FetchRequest request : served) {
+				request.complete(kp);
+			}
+		}
+
+		for (int i = 0; i < promoted.size(); i++) {
+			promoted.get(i).promote(promotedTo.get(i));
+		}
+
+		for (int i = 0; i < calls.size(); i++) {
+			FetchKind kind = calls.get(i);
+			Promotable task = mDispatcher.dispatch(screenName, kind, priorities.get(i), fresh.get(i));
+			if (task != null)
+				dispatched(plan, kind, callRequests.get(i), task, priorities.get(i));
+		}
+	}
+
+	/**
+	 * Record the task making a call, and promote it straight away if a more urgent request
+	 * attached to the call while it was being dispatched.
+	 */
+	private void dispatched(Plan plan, FetchKind kind, ArrayList<FetchRequest> call, Promotable task, Priority dispatchedAt) {
+		Priority priority;
+		synchronized (plan) {
+			// The call may already have finished, and another of its kind started
+			if (plan.getCall(kind) != call)
+				return;
+
+			plan.mTasks[kind.ordinal()] = task;
+			priority = plan.mPriorities[kind.ordinal()];
+		}
+
+		if (priority != dispatchedAt)
+			task.promote(priority);
+	}
+
+	// Must hold the lock on the plan
+	private void removeIfDone(String screenName, Plan plan) {
+		if (plan.isEmpty()) {
+			plan.mRemoved = true;
+			mPlans.remove(screenName, plan);
+		}
+	}
+}
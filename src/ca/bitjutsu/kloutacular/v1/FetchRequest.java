@@ -0,0 +1,69 @@
+package ca.bitjutsu.kloutacular.v1;
+
+import ca.bitjutsu.kloutacular.util.Priority;
+import ca.bitjutsu.kloutacular.util.RequestHandle;
+
+/**
+ * A single request for a user's information, as it makes its way through the
+ * {@link FetchPlanner} to a call to the Klout API.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+/* package */ class FetchRequest {
+	private final String mScreenName;
+	private final FetchKind mKind;
+	private final boolean mForce;
+	private final Priority mPriority;
+	private final RequestHandle mHandle;
+	private final Callback mCallback;
+
+	/* package */ FetchRequest(String screenName, FetchKind kind, boolean force, Priority priority, RequestHandle handle,
+								Callback callback) {
+		mScreenName = screenName;
+		mKind = kind;
+		mForce = force;
+		mPriority = priority;
+		mHandle = handle;
+		mCallback = callback;
+	}
+
+	/**
+	 * Receives the outcome of a request.
+	 */
+	/* package */ interface Callback {
+		/**
+		 * @param kp the profile answering the request, or <code>null</code> if the request failed
+		 */
+		public void onComplete(KloutProfile kp);
+	}
+
+	/* package */ String getScreenName() {
+		return mScreenName;
+	}
+
+	/* package */ FetchKind getKind() {
+		return mKind;
+	}
+
+	/* package */ boolean isForced() {
+		return mForce;
+	}
+
+	/* package */ Priority getPriority() {
+		return mPriority;
+	}
+
+	/**
+	 * @return whether the request has been neither cancelled nor has passed its deadline
+	 */
+	/* package */ boolean isLive() {
+		return mHandle.isLive();
+	}
+
+	/* package */ void complete(KloutProfile kp) {
+		// Nobody is listening for a cancelled request
+		if (mCallback != null && !mHandle.isCancelled())
+			mCallback.onComplete(kp);
+	}
+}
@@ -1,6 +1,8 @@
 package ca.bitjutsu.kloutacular.v1;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A data model for holding a user's Klout information.  This includes their influencers, who
@@ -8,25 +10,33 @@ import java.util.ArrayList;
  * (amplification, network, true reach) their Klout class (networker, observer, etc), the
  * descriptions of their class, as well as their 1- and 5-day score changes.
  * 
+ * Profiles are immutable snapshots: every update publishes a new profile with a higher
+ * {@link #getVersion() version}, so a profile can be read from any thread without seeing a
+ * half-applied update.  The lists it returns are shared between versions, so they are read-only.
+ * 
+ * The string fields of the user object are kept encoded until one of them is first read, as most
+ * profiles are only ever asked for their scores.
+ * 
  * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
  *
  */
 public class KloutProfile {
-	private String mScreenName;
-	private double mScore;
-	private double mAmplification;
-	private double mNetwork;
-	private double mTrueReach;
-	private ArrayList<KloutProfile> mInfluencedBy;
-	private ArrayList<KloutProfile> mInfluencerOf;
-	private double mSlope;
-	private String mUserDescription;
-	private String mClass;
-	private String mClassDescription;
-	private int mClassId;
-	private double mOneDayDelta;
-	private double mFiveDayDelta;
-	private ArrayList<String> mTopics;
+	private final long mVersion;
+	private final String mScreenName;
+	private final double mScore;
+	// False until a score or user request has filled in the score
+	private final boolean mHasScore;
+	private final double mAmplification;
+	private final double mNetwork;
+	private final double mTrueReach;
+	private final List<KloutProfile> mInfluencedBy;
+	private final List<KloutProfile> mInfluencerOf;
+	private final double mSlope;
+	private final UserText mUserText;
+	private final int mClassId;
+	private final double mOneDayDelta;
+	private final double mFiveDayDelta;
+	private final List<String> mTopics;
 	
 	/**
 	 * Constructor used for basic Klout score requests.
@@ -34,8 +44,14 @@ public class KloutProfile {
 	 * @param score the user's Klout score
 	 */
 	/* package */ KloutProfile(String screenName, double score) {
-		mScreenName = screenName;
-		mScore = score;
+		this(1L, screenName, score);
+	}
+	
+	/**
+	 * Constructor for scores read back from an {@link OffHeapProfileStore}, which keeps its own versions.
+	 */
+	/* package */ KloutProfile(long version, String screenName, double score) {
+		this(version, screenName, score, true, 0.0, null, 0, 0.0, 0.0, 0.0, 0.0, 0.0, null, null, null);
 	}
 	
 	/**
@@ -44,11 +60,8 @@ public class KloutProfile {
 	 * @param influencerOf
 	 */
 	/* package */ KloutProfile(String screenName, ArrayList<KloutProfile> influencers, boolean isInfluencedBy) {
-		mScreenName = screenName;
-		if (isInfluencedBy)
-			mInfluencedBy = influencers;
-		else
-			mInfluencerOf = influencers;
+		this(1L, screenName, 0.0, false, 0.0, null, 0, 0.0, 0.0, 0.0, 0.0, 0.0, null,
+				isInfluencedBy ? readOnly(influencers) : null, isInfluencedBy ? null : readOnly(influencers));
 	}
 	
 	/**
@@ -68,18 +81,23 @@ public class KloutProfile {
 	 */
 	/* package */ KloutProfile(String screenName, double score, double slope, String userDesc, int kclassId, String kclass,
 								String kclassDesc, double network, double amp, double reach, double delta1, double delta5) {
-		mScreenName = screenName;
-		mScore = score;
-		mSlope = slope;
-		mUserDescription = userDesc;
-		mClassId = kclassId;
-		mClass = kclass;
-		mClassDescription = kclassDesc;
-		mNetwork = network;
-		mAmplification = amp;
-		mTrueReach = reach;
-		mOneDayDelta = delta1;
-		mFiveDayDelta = delta5;
+		this(screenName, score, slope, UserText.of(userDesc, kclass, kclassDesc), kclassId, network, amp, reach, delta1, delta5);
+	}
+	
+	/**
+	 * Constructor for "user" requests whose strings are already encoded.
+	 */
+	/* package */ KloutProfile(String screenName, double score, double slope, UserText text, int kclassId, double network,
+								double amp, double reach, double delta1, double delta5) {
+		this(1L, screenName, score, slope, text, kclassId, network, amp, reach, delta1, delta5);
+	}
+	
+	/**
+	 * Constructor for user objects read back from an {@link OffHeapProfileStore}, which keeps its own versions.
+	 */
+	/* package */ KloutProfile(long version, String screenName, double score, double slope, UserText text, int kclassId,
+								double network, double amp, double reach, double delta1, double delta5) {
+		this(version, screenName, score, true, slope, text, kclassId, network, amp, reach, delta1, delta5, null, null, null);
 	}
 	
 	/**
@@ -88,39 +106,98 @@ public class KloutProfile {
 	 * @param topics
 	 */
 	/* package */ KloutProfile(String screenName, ArrayList<String> topics) {
-		mScreenName = screenName;
-		mTopics = topics;
+		this(1L, screenName, 0.0, false, 0.0, null, 0, 0.0, 0.0, 0.0, 0.0, 0.0, readOnly(topics), null, null);
 	}
 	
-	/* package */ void updateUser(double score, double slope, String userDesc, int kclassId, String kclass,
-								String kclassDesc, double network, double amp, double reach, double delta1, double delta5) {
+	private KloutProfile(long version, String screenName, double score, boolean hasScore, double slope, UserText text, int kclassId,
+							double network, double amp, double reach, double delta1, double delta5, List<String> topics, List<KloutProfile> influencedBy,
+							List<KloutProfile> influencerOf) {
+		mVersion = version;
+		mScreenName = screenName;
 		mScore = score;
+		mHasScore = hasScore;
 		mSlope = slope;
-		mUserDescription = userDesc;
+		mUserText = text;
 		mClassId = kclassId;
-		mClass = kclass;
-		mClassDescription = kclassDesc;
 		mNetwork = network;
 		mAmplification = amp;
 		mTrueReach = reach;
 		mOneDayDelta = delta1;
 		mFiveDayDelta = delta5;
+		mTopics = topics;
+		mInfluencedBy = influencedBy;
+		mInfluencerOf = influencerOf;
 	}
 	
-	/* package */ void updateScore(double score) {
-		mScore = score;
+	/* package */ KloutProfile withUser(double score, double slope, String userDesc, int kclassId, String kclass,
+								String kclassDesc, double network, double amp, double reach, double delta1, double delta5) {
+		return new KloutProfile(mVersion + 1, mScreenName, score, true, slope, UserText.of(userDesc, kclass, kclassDesc), kclassId,
+				network, amp, reach, delta1, delta5, mTopics, mInfluencedBy, mInfluencerOf);
 	}
 	
-	/* package */ void updateInfluencedBy(ArrayList<KloutProfile> influencedBy) {
-		mInfluencedBy = influencedBy;
+	/* package */ KloutProfile withScore(double score) {
+		return new KloutProfile(mVersion + 1, mScreenName, score, true, mSlope, mUserText, mClassId,
+				mNetwork, mAmplification, mTrueReach, mOneDayDelta, mFiveDayDelta, mTopics,
+				mInfluencedBy, mInfluencerOf);
 	}
 	
-	/* package */ void updateInfluencerOf(ArrayList<KloutProfile> influencerOf) {
-		mInfluencerOf = influencerOf;
+	/* package */ KloutProfile withInfluencedBy(ArrayList<KloutProfile> influencedBy) {
+		return new KloutProfile(mVersion + 1, mScreenName, mScore, mHasScore, mSlope, mUserText, mClassId,
+				mNetwork, mAmplification, mTrueReach, mOneDayDelta, mFiveDayDelta, mTopics,
+				readOnly(influencedBy), mInfluencerOf);
 	}
 	
-	/* package */ void updateTopics(ArrayList<String> topics) {
-		mTopics = topics;
+	/* package */ KloutProfile withInfluencerOf(ArrayList<KloutProfile> influencerOf) {
+		return new KloutProfile(mVersion + 1, mScreenName, mScore, mHasScore, mSlope, mUserText, mClassId,
+				mNetwork, mAmplification, mTrueReach, mOneDayDelta, mFiveDayDelta, mTopics,
+				mInfluencedBy, readOnly(influencerOf));
+	}
+	
+	/* package */ KloutProfile withTopics(ArrayList<String> topics) {
+		return new KloutProfile(mVersion + 1, mScreenName, mScore, mHasScore, mSlope, mUserText, mClassId,
+				mNetwork, mAmplification, mTrueReach, mOneDayDelta, mFiveDayDelta, readOnly(topics),
+				mInfluencedBy, mInfluencerOf);
+	}
+	
+	/**
+	 * Copy the topics and influencers of another profile of the same user onto this one.  The two
+	 * profiles are updated separately, so the result's version is the sum of theirs, which still goes
+	 * up by one with each update to either.
+	 */
+	/* package */ KloutProfile withGraphOf(KloutProfile other) {
+		return new KloutProfile(mVersion + other.mVersion, mScreenName, mScore, mHasScore, mSlope, mUserText, mClassId,
+				mNetwork, mAmplification, mTrueReach, mOneDayDelta, mFiveDayDelta, other.mTopics,
+				other.mInfluencedBy, other.mInfluencerOf);
+	}
+	
+	/**
+	 * Wrap a list handed to a new profile, so that nobody can change it under the versions sharing it.
+	 */
+	private static <T> List<T> readOnly(ArrayList<T> list) {
+		return (list != null) ? Collections.unmodifiableList(list) : null;
+	}
+	
+	/**
+	 * @return whether a score has been fetched for this profile, by a score or a user request
+	 */
+	/* package */ boolean hasScore() {
+		return mHasScore;
+	}
+	
+	/**
+	 * @return whether a user object has been fetched for this profile, without decoding any of its strings
+	 */
+	/* package */ boolean hasUser() {
+		return mUserText != null;
+	}
+	
+	/**
+	 * Get the version of this snapshot of the user's profile.  Each update to a cached profile
+	 * publishes a new snapshot whose version is one higher than the last.
+	 * @return the profile version, starting from <code>1</code>
+	 */
+	public long getVersion() {
+		return mVersion;
 	}
 	
 	/**
@@ -145,7 +222,7 @@ public class KloutProfile {
 	 * @return the users who are influenced by this user or <code>null</code> if
 	 * {@link KloutScoreManager#requestInfluencedBy(String)} was not used to fetch this user's information. 
 	 */
-	public ArrayList<KloutProfile> getInfluencedBy() {
+	public List<KloutProfile> getInfluencedBy() {
 		return mInfluencedBy;
 	}
 	
@@ -154,7 +231,7 @@ public class KloutProfile {
 	 * @return the users who are influenced by this user or <code>null</code> if
 	 * {@link KloutScoreManager#requestInfluencerOf(String)} was not used to fetch this user's information. 
 	 */
-	public ArrayList<KloutProfile> getInfluencerOf() {
+	public List<KloutProfile> getInfluencerOf() {
 		return mInfluencerOf;
 	}
 	
@@ -227,7 +304,7 @@ public class KloutProfile {
 	 * was not used to fetch this user's information.
 	 */
 	public String getKloutClassDescription() {
-		return mClassDescription;
+		return (mUserText == null) ? null : mUserText.getKloutClassDescription();
 	}
 	
 	/**
@@ -236,7 +313,7 @@ public class KloutProfile {
 	 * was not used to fetch this user's information.
 	 */
 	public String getUserDescription() {
-		return mUserDescription;
+		return (mUserText == null) ? null : mUserText.getUserDescription();
 	}
 	
 	/**
@@ -245,7 +322,7 @@ public class KloutProfile {
 	 * was not used to fetch this user's information.
 	 */
 	public String getKloutClass() {
-		return mClass;
+		return (mUserText == null) ? null : mUserText.getKloutClass();
 	}
 	
 	/**
@@ -253,7 +330,7 @@ public class KloutProfile {
 	 * @return the user's topics or <code>null</code> if {@link KloutScoreManager#requestTopics(String)}
 	 * was not used to fetch this user's information.
 	 */
-	public ArrayList<String> getTopics() {
+	public List<String> getTopics() {
 		return mTopics;
 	}
 	
@@ -265,9 +342,9 @@ public class KloutProfile {
 				+ "\nNetwork score: " + mNetwork
 				+ "\nTrue reach: " + mTrueReach
 				+ "\nSlope: " + mSlope
-				+ "\nUser description: " + mUserDescription
-				+ "\nKlout class: " + mClass
-				+ "\nKlout class description: " + mClassDescription
+				+ "\nUser description: " + getUserDescription()
+				+ "\nKlout class: " + getKloutClass()
+				+ "\nKlout class description: " + getKloutClassDescription()
 				+ "\nKlout class ID: " + mClassId
 				+ "\n1-day delta: " + mOneDayDelta
 				+ "\n5-day delta: " + mFiveDayDelta);
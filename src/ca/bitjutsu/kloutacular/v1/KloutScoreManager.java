@@ -1,22 +1,49 @@
 package ca.bitjutsu.kloutacular.v1;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Stream;
 
-import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpResponseException;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import ca.bitjutsu.kloutacular.util.BatchPublisher;
+import ca.bitjutsu.kloutacular.util.AdaptiveExecutor;
+import ca.bitjutsu.kloutacular.util.BreakerTransport;
+import ca.bitjutsu.kloutacular.util.CachingTransport;
+import ca.bitjutsu.kloutacular.util.CircuitBreaker;
+import ca.bitjutsu.kloutacular.util.CircuitOpenException;
+import ca.bitjutsu.kloutacular.util.Endpoint;
+import ca.bitjutsu.kloutacular.util.HttpTransport;
+import ca.bitjutsu.kloutacular.util.KeyPool;
+import ca.bitjutsu.kloutacular.util.KeyedTransport;
+import ca.bitjutsu.kloutacular.util.LaneQueue;
+import ca.bitjutsu.kloutacular.util.NegativeCache;
+import ca.bitjutsu.kloutacular.util.PrefetchBudget;
+import ca.bitjutsu.kloutacular.util.Priority;
+import ca.bitjutsu.kloutacular.util.Promotable;
+import ca.bitjutsu.kloutacular.util.RefreshScheduler;
+import ca.bitjutsu.kloutacular.util.RequestHandle;
+import ca.bitjutsu.kloutacular.util.ResponseCache;
+import ca.bitjutsu.kloutacular.util.ScoreIndex;
+import ca.bitjutsu.kloutacular.util.ShardGroup;
+import ca.bitjutsu.kloutacular.util.SharedCache;
+import ca.bitjutsu.kloutacular.util.Sheddable;
+import ca.bitjutsu.kloutacular.util.Trace;
+import ca.bitjutsu.kloutacular.util.Tracer;
+import ca.bitjutsu.kloutacular.util.TrafficRecorder;
+import ca.bitjutsu.kloutacular.util.Transport;
+
 /**
  * 
  * KloutScoreManager fetches, stores, caches, and returns Klout scores for users.
@@ -37,22 +64,87 @@ import org.json.JSONObject;
  */
 public class KloutScoreManager {
 	// "If that was a drug deal, I would have shot Hotel Luxury Linens in the face." -- Aziz Ansari.
-	//TODO: pick a number of threads that isn't just an arbitrary choice
+	// How many fetch threads to start with, and the bounds the pool is then sized within
 	private static final int THREAD_COUNT = 10;
+	private static final int MIN_THREADS = 2;
+	private static final int MAX_THREADS = 64;
+	// How long to collect requests for a user before deciding which calls to make, in milliseconds
+	private static final long PLANNING_WINDOW = 10;
+	// The most requests a batch may have outstanding at once
+	private static final int BATCH_CONCURRENCY = 100;
+	// How long a queued fetch may wait before it is served ahead of more urgent work, in milliseconds
+	private static final long AGING_LIMIT = 5000;
+	// Klout's default developer limits for each API key
+	private static final double KEY_CALLS_PER_SECOND = 10;
+	private static final int KEY_DAILY_QUOTA = 10000;
+	// The most fetches to queue; beyond this, the least urgent are shed
+	private static final int QUEUE_CAPACITY = 10000;
+	// How long updates to a profile are coalesced before a change is delivered, in milliseconds
+	private static final long CHANGE_WINDOW = 1000;
+	// How long to remember that Klout doesn't know a user, in milliseconds
+	private static final long UNKNOWN_USER_TTL = 10 * 60 * 1000;
+	// How many unknown users to size the negative cache's filter for
+	private static final int EXPECTED_UNKNOWN_USERS = 10000;
 	
 	private static KloutScoreManager sInstance;
 	private boolean mIsDebugMode;
-	private HashMap<String, KloutProfile> mProfiles;
-	private ArrayList<OnProfileUpdatedListener> mUpdateListeners;
-	private ExecutorService mExecutor;
-	private String mApiKey;
+	private ProfileTable mProfiles;
+	private OffHeapProfileStore mProfileStore;
+	private ScoreIndex mScoreIndex;
+	private CopyOnWriteArrayList<OnProfileUpdatedListener> mUpdateListeners;
+	private AdaptiveExecutor mExecutor;
+	private FetchPlanner mPlanner;
+	private ScheduledExecutorService mScheduler;
+	private RefreshScheduler mRefreshScheduler;
+	private volatile ShardGroup mShards;
+	private TopicRegistry mTopicRegistry;
+	private NegativeCache mUnknownUsers;
+	private volatile Transport mTransport;
+	private BreakerTransport mBreakers;
+	private KeyPool mKeyPool;
+	private TrafficRecorder mRecorder;
+	// Calls that get past any shared cache go to this, the breakers unless a transport was set
+	private Transport mUpstream;
+	private SharedCache mSharedCache;
+	private long mSharedCacheMaxAge;
+	private Tracer mTracer;
+	private volatile int mBatchConcurrency;
+	private ChangeFeed mChangeFeed;
+	private PrefetchBudget mPrefetch;
+	private volatile boolean mPrefetchTopics;
 	
 	private KloutScoreManager(String apiKey, boolean debug) {
-		mApiKey = apiKey;
+		mKeyPool = new KeyPool(KEY_CALLS_PER_SECOND, KEY_DAILY_QUOTA);
+		mKeyPool.add(apiKey);
 		mIsDebugMode = debug;
-		mUpdateListeners = new ArrayList<OnProfileUpdatedListener>();
-		mProfiles = new HashMap<String, KloutProfile>();
-		mExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
+		mBatchConcurrency = BATCH_CONCURRENCY;
+		mUpdateListeners = new CopyOnWriteArrayList<OnProfileUpdatedListener>();
+		mProfiles = new ProfileTable();
+		mTopicRegistry = new TopicRegistry();
+		mUnknownUsers = new NegativeCache(UNKNOWN_USER_TTL, EXPECTED_UNKNOWN_USERS);
+		mScoreIndex = new ScoreIndex();
+		mBreakers = new BreakerTransport(new KeyedTransport(mKeyPool, new HttpTransport()), new BreakerTransport.Classifier() {
+			public Endpoint classify(String url) {
+				if (url.contains("/users/show.json"))
+					return Endpoint.USER;
+				if (url.contains("/users/topics.json"))
+					return Endpoint.TOPICS;
+				if (url.contains("/soi/"))
+					return Endpoint.INFLUENCE;
+				return Endpoint.SCORE;
+			}
+		}, mKeyPool);
+		mUpstream = mBreakers;
+		mTransport = mBreakers;
+		mExecutor = new AdaptiveExecutor(THREAD_COUNT, MIN_THREADS, MAX_THREADS,
+				new LaneQueue(AGING_LIMIT, QUEUE_CAPACITY), new LaneQueue.ShedPolicy(), mKeyPool);
+		mScheduler = Executors.newSingleThreadScheduledExecutor();
+		mExecutor.startTuning(mScheduler);
+		mPlanner = new FetchPlanner(new PlanDispatcher(), mScheduler, PLANNING_WINDOW);
+		mRefreshScheduler = new RefreshScheduler(new BackgroundRefresher(), mScheduler, 0);
+		mChangeFeed = new ChangeFeed(mScheduler, CHANGE_WINDOW);
+		mPrefetch = new PrefetchBudget(mKeyPool, 0);
+		mTracer = new Tracer();
 	}
 	
 	/**
@@ -65,7 +157,8 @@ public class KloutScoreManager {
 	}
 	
 	/**
-	 * Obtain the global KloutScoreManager instance.
+	 * Obtain the global KloutScoreManager instance.  Each different API key passed in is added
+	 * to the instance's {@link KeyPool}, rather than replacing the last one.
 	 * @param apiKey the Klout API key to use
 	 * @param debug specify whether we should print load times to the log
 	 * @return the global KloutScoreManager instance
@@ -93,12 +186,31 @@ public class KloutScoreManager {
 	 * @param forceRequery force a refresh of the Klout score
 	 */
 	public void requestKlout(String screenName, boolean forceRequery) {
-		// If we already have a cached score, and we aren't requerying, return the cached score
-		if (haveScore(screenName) && !forceRequery) {
-			profileUpdate(mProfiles.get(screenName));
-		} else {
-			mExecutor.execute(new KloutScoreFetcher(screenName));
-		}
+		requestKlout(screenName, forceRequery, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request a user's Klout score at the given priority.
+	 * @param screenName the Twitter handle of the user
+	 * @param forceRequery force a refresh of the Klout score
+	 * @param priority how urgently the score is needed
+	 */
+	public void requestKlout(String screenName, boolean forceRequery, Priority priority) {
+		request(screenName, FetchKind.SCORE, forceRequery, priority, RequestHandle.NONE, null);
+	}
+	
+	/**
+	 * Request a user's Klout score at the given priority, giving up if the score can't be fetched in time.
+	 * @param screenName the Twitter handle of the user
+	 * @param forceRequery force a refresh of the Klout score
+	 * @param priority how urgently the score is needed
+	 * @param timeout how long to wait for the score, in milliseconds
+	 * @return a handle to cancel the request with
+	 */
+	public RequestHandle requestKlout(String screenName, boolean forceRequery, Priority priority, long timeout) {
+		RequestHandle handle = new RequestHandle(timeout);
+		request(screenName, FetchKind.SCORE, forceRequery, priority, handle, null);
+		return handle;
 	}
 	
 	/**
@@ -108,7 +220,14 @@ public class KloutScoreManager {
 	 */
 	//TODO: decide whether this is public or private
 	private boolean haveScore(String screenName) {
-		return (mProfiles.get(screenName) != null && mProfiles.get(screenName).getScore() > 0);
+		// Read the score column rather than materialising the profile
+		if (mProfileStore != null) {
+			int id = mProfileStore.getProfileId(screenName);
+			return (id != -1 && mProfileStore.getScore(id) > 0);
+		}
+		
+		KloutProfile kp = mProfiles.get(screenName);
+		return (kp != null && kp.getScore() > 0);
 	}
 	
 	/**
@@ -125,16 +244,38 @@ public class KloutScoreManager {
 	 * @param forceRequery force a refresh of the user's topics
 	 */
 	public void requestTopics(String screenName, boolean forceRequery) {
-		if (haveTopics(screenName) && !forceRequery) {
-			profileUpdate(mProfiles.get(screenName));
-		} else {
-			mExecutor.execute(new KloutTopicsFetcher(screenName));
-		}
+		requestTopics(screenName, forceRequery, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request a user's top topics at the given priority.
+	 * @param screenName the user to request topics for
+	 * @param forceRequery force a refresh of the user's topics
+	 * @param priority how urgently the topics are needed
+	 */
+	public void requestTopics(String screenName, boolean forceRequery, Priority priority) {
+		request(screenName, FetchKind.TOPICS, forceRequery, priority, RequestHandle.NONE, null);
+	}
+	
+	/**
+	 * Request a user's top topics at the given priority, giving up if the topics can't be fetched in time.
+	 * @param screenName the user to request topics for
+	 * @param forceRequery force a refresh of the user's topics
+	 * @param priority how urgently the topics are needed
+	 * @param timeout how long to wait for the topics, in milliseconds
+	 * @return a handle to cancel the request with
+	 */
+	public RequestHandle requestTopics(String screenName, boolean forceRequery, Priority priority, long timeout) {
+		RequestHandle handle = new RequestHandle(timeout);
+		request(screenName, FetchKind.TOPICS, forceRequery, priority, handle, null);
+		return handle;
 	}
 	
 	//TODO: should this be public or private?
 	private boolean haveTopics(String screenName) {
-		return (mProfiles.get(screenName) != null && mProfiles.get(screenName).getTopics() != null);
+		// Topics and influencers are held on the heap even when an off-heap store is in use
+		KloutProfile kp = mProfiles.get(screenName);
+		return (kp != null && kp.getTopics() != null);
 	}
 	
 	/**
@@ -153,17 +294,41 @@ public class KloutScoreManager {
 	 * @param forceRequery force a refresh of the user's information
 	 */
 	public void requestUser(String screenName, boolean forceRequery) {
-		if (haveUser(screenName) && !forceRequery) {
-			profileUpdate(mProfiles.get(screenName));
-		} else {
-			mExecutor.execute(new KloutUserFetcher(screenName));
-		}
+		requestUser(screenName, forceRequery, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request a user object at the given priority.
+	 * @param screenName the user who we want user information about
+	 * @param forceRequery force a refresh of the user's information
+	 * @param priority how urgently the user object is needed
+	 */
+	public void requestUser(String screenName, boolean forceRequery, Priority priority) {
+		request(screenName, FetchKind.USER, forceRequery, priority, RequestHandle.NONE, null);
+	}
+	
+	/**
+	 * Request a user object at the given priority, giving up if the user object can't be fetched in time.
+	 * @param screenName the user who we want user information about
+	 * @param forceRequery force a refresh of the user's information
+	 * @param priority how urgently the user object is needed
+	 * @param timeout how long to wait for the user object, in milliseconds
+	 * @return a handle to cancel the request with
+	 */
+	public RequestHandle requestUser(String screenName, boolean forceRequery, Priority priority, long timeout) {
+		RequestHandle handle = new RequestHandle(timeout);
+		request(screenName, FetchKind.USER, forceRequery, priority, handle, null);
+		return handle;
 	}
 	
 	//TODO: should this be public or private?
 	//XXX: this is not checking if we have the screen name mapped, this is checking if we have a "user object" returned by the Klout API
 	private boolean haveUser(String screenName) {
-		return (mProfiles.get(screenName) != null && mProfiles.get(screenName).getKloutClassDescription() != null);
+		if (mProfileStore != null)
+			return mProfileStore.hasUser(screenName);
+		
+		KloutProfile kp = mProfiles.get(screenName);
+		return (kp != null && kp.hasUser());
 	}
 	
 	/**
@@ -180,16 +345,37 @@ public class KloutScoreManager {
 	 * @param forceRequery force a refresh of the user's influencers
 	 */
 	public void requestInfluencedBy(String screenName, boolean forceRequery) {
-		if (haveInfluencedBy(screenName) && !forceRequery) {
-			profileUpdate(mProfiles.get(screenName));
-		} else {
-			mExecutor.execute(new KloutInfluencerFetcher(screenName, true));
-		}
+		requestInfluencedBy(screenName, forceRequery, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request the user's influencers at the given priority.
+	 * @param screenName the user whose influencers are being requested
+	 * @param forceRequery force a refresh of the user's influencers
+	 * @param priority how urgently the influencers are needed
+	 */
+	public void requestInfluencedBy(String screenName, boolean forceRequery, Priority priority) {
+		request(screenName, FetchKind.INFLUENCED_BY, forceRequery, priority, RequestHandle.NONE, null);
+	}
+	
+	/**
+	 * Request the user's influencers at the given priority, giving up if the influencers can't be fetched in time.
+	 * @param screenName the user whose influencers are being requested
+	 * @param forceRequery force a refresh of the user's influencers
+	 * @param priority how urgently the influencers are needed
+	 * @param timeout how long to wait for the influencers, in milliseconds
+	 * @return a handle to cancel the request with
+	 */
+	public RequestHandle requestInfluencedBy(String screenName, boolean forceRequery, Priority priority, long timeout) {
+		RequestHandle handle = new RequestHandle(timeout);
+		request(screenName, FetchKind.INFLUENCED_BY, forceRequery, priority, handle, null);
+		return handle;
 	}
 	
 	//TODO: should this be public or private?
 	private boolean haveInfluencedBy(String screenName) {
-		return (mProfiles.get(screenName) != null && mProfiles.get(screenName).getInfluencedBy() != null);
+		KloutProfile kp = mProfiles.get(screenName);
+		return (kp != null && kp.getInfluencedBy() != null);
 	}
 	
 	/**
@@ -206,23 +392,676 @@ public class KloutScoreManager {
 	 * @param forceRequery force a refresh of the user's influencees
 	 */
 	public void requestInfluencerOf(String screenName, boolean forceRequery) {
-		if (haveInfluencerOf(screenName) && !forceRequery) {
-			profileUpdate(mProfiles.get(screenName));
-		} else {
-			mExecutor.execute(new KloutInfluencerFetcher(screenName, false));
-		}
+		requestInfluencerOf(screenName, forceRequery, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request the user's influencees at the given priority.
+	 * @param screenName the user whose influencees are being requested
+	 * @param forceRequery force a refresh of the user's influencees
+	 * @param priority how urgently the influencees are needed
+	 */
+	public void requestInfluencerOf(String screenName, boolean forceRequery, Priority priority) {
+		request(screenName, FetchKind.INFLUENCER_OF, forceRequery, priority, RequestHandle.NONE, null);
+	}
+	
+	/**
+	 * Request the user's influencees at the given priority, giving up if the influencees can't be fetched in time.
+	 * @param screenName the user whose influencees are being requested
+	 * @param forceRequery force a refresh of the user's influencees
+	 * @param priority how urgently the influencees are needed
+	 * @param timeout how long to wait for the influencees, in milliseconds
+	 * @return a handle to cancel the request with
+	 */
+	public RequestHandle requestInfluencerOf(String screenName, boolean forceRequery, Priority priority, long timeout) {
+		RequestHandle handle = new RequestHandle(timeout);
+		request(screenName, FetchKind.INFLUENCER_OF, forceRequery, priority, handle, null);
+		return handle;
 	}
 	
 	//TODO: should this be public or private?
 	private boolean haveInfluencerOf(String screenName) {
-		return (mProfiles.get(screenName) != null && mProfiles.get(screenName).getInfluencerOf() != null);
+		KloutProfile kp = mProfiles.get(screenName);
+		return (kp != null && kp.getInfluencerOf() != null);
+	}
+	
+	/**
+	 * Request the Klout scores of a batch of users.  Requests are only made as fast as the subscriber
+	 * asks for results, with at most a fixed number outstanding at once, so the batch can be as large
+	 * as you like.  Profiles are published in the order they are returned, and users whose request
+	 * fails are skipped.  Each subscriber makes its own pass over <code>screenNames</code>.
+	 * Registered listeners are still notified of each profile.
+	 * @param screenNames the Twitter handles of the users
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestKloutBatch(Iterable<String> screenNames) {
+		return requestKloutBatch(screenNames, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request the Klout scores of a batch of users at the given priority.  See {@link #requestKloutBatch(Iterable)}.
+	 * @param screenNames the Twitter handles of the users
+	 * @param priority how urgently the profiles are needed
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestKloutBatch(Iterable<String> screenNames, Priority priority) {
+		return requestBatch(screenNames, FetchKind.SCORE, priority);
+	}
+	
+	/**
+	 * Stream version of {@link #requestKloutBatch(Iterable)}.  The returned publisher may only be subscribed to once.
+	 * @param screenNames the Twitter handles of the users
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestKloutBatch(Stream<String> screenNames) {
+		return requestKloutBatch(screenNames, Priority.NORMAL);
+	}
+	
+	/**
+	 * Stream version of {@link #requestKloutBatch(Iterable, Priority)}.  The returned publisher may only be subscribed to once.
+	 * @param screenNames the Twitter handles of the users
+	 * @param priority how urgently the profiles are needed
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestKloutBatch(Stream<String> screenNames, Priority priority) {
+		return requestBatch(iterable(screenNames), FetchKind.SCORE, priority);
+	}
+	
+	/**
+	 * Request the user objects of a batch of users.  See {@link #requestKloutBatch(Iterable)}.
+	 * @param screenNames the Twitter handles of the users
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestUserBatch(Iterable<String> screenNames) {
+		return requestUserBatch(screenNames, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request the user objects of a batch of users at the given priority.  See {@link #requestKloutBatch(Iterable)}.
+	 * @param screenNames the Twitter handles of the users
+	 * @param priority how urgently the profiles are needed
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestUserBatch(Iterable<String> screenNames, Priority priority) {
+		return requestBatch(screenNames, FetchKind.USER, priority);
+	}
+	
+	/**
+	 * Stream version of {@link #requestUserBatch(Iterable)}.  The returned publisher may only be subscribed to once.
+	 * @param screenNames the Twitter handles of the users
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestUserBatch(Stream<String> screenNames) {
+		return requestUserBatch(screenNames, Priority.NORMAL);
+	}
+	
+	/**
+	 * Stream version of {@link #requestUserBatch(Iterable, Priority)}.  The returned publisher may only be subscribed to once.
+	 * @param screenNames the Twitter handles of the users
+	 * @param priority how urgently the profiles are needed
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestUserBatch(Stream<String> screenNames, Priority priority) {
+		return requestBatch(iterable(screenNames), FetchKind.USER, priority);
+	}
+	
+	/**
+	 * Request the topics of a batch of users.  See {@link #requestKloutBatch(Iterable)}.
+	 * @param screenNames the Twitter handles of the users
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestTopicsBatch(Iterable<String> screenNames) {
+		return requestTopicsBatch(screenNames, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request the topics of a batch of users at the given priority.  See {@link #requestKloutBatch(Iterable)}.
+	 * @param screenNames the Twitter handles of the users
+	 * @param priority how urgently the profiles are needed
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestTopicsBatch(Iterable<String> screenNames, Priority priority) {
+		return requestBatch(screenNames, FetchKind.TOPICS, priority);
+	}
+	
+	/**
+	 * Stream version of {@link #requestTopicsBatch(Iterable)}.  The returned publisher may only be subscribed to once.
+	 * @param screenNames the Twitter handles of the users
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestTopicsBatch(Stream<String> screenNames) {
+		return requestTopicsBatch(screenNames, Priority.NORMAL);
+	}
+	
+	/**
+	 * Stream version of {@link #requestTopicsBatch(Iterable, Priority)}.  The returned publisher may only be subscribed to once.
+	 * @param screenNames the Twitter handles of the users
+	 * @param priority how urgently the profiles are needed
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestTopicsBatch(Stream<String> screenNames, Priority priority) {
+		return requestBatch(iterable(screenNames), FetchKind.TOPICS, priority);
+	}
+	
+	/**
+	 * Request the influencers of a batch of users.  See {@link #requestKloutBatch(Iterable)}.
+	 * @param screenNames the Twitter handles of the users
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestInfluencedByBatch(Iterable<String> screenNames) {
+		return requestInfluencedByBatch(screenNames, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request the influencers of a batch of users at the given priority.  See {@link #requestKloutBatch(Iterable)}.
+	 * @param screenNames the Twitter handles of the users
+	 * @param priority how urgently the profiles are needed
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestInfluencedByBatch(Iterable<String> screenNames, Priority priority) {
+		return requestBatch(screenNames, FetchKind.INFLUENCED_BY, priority);
+	}
+	
+	/**
+	 * Stream version of {@link #requestInfluencedByBatch(Iterable)}.  The returned publisher may only be subscribed to once.
+	 * @param screenNames the Twitter handles of the users
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestInfluencedByBatch(Stream<String> screenNames) {
+		return requestInfluencedByBatch(screenNames, Priority.NORMAL);
+	}
+	
+	/**
+	 * Stream version of {@link #requestInfluencedByBatch(Iterable, Priority)}.  The returned publisher may only be subscribed to once.
+	 * @param screenNames the Twitter handles of the users
+	 * @param priority how urgently the profiles are needed
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestInfluencedByBatch(Stream<String> screenNames, Priority priority) {
+		return requestBatch(iterable(screenNames), FetchKind.INFLUENCED_BY, priority);
+	}
+	
+	/**
+	 * Request the influencees of a batch of users.  See {@link #requestKloutBatch(Iterable)}.
+	 * @param screenNames the Twitter handles of the users
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestInfluencerOfBatch(Iterable<String> screenNames) {
+		return requestInfluencerOfBatch(screenNames, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request the influencees of a batch of users at the given priority.  See {@link #requestKloutBatch(Iterable)}.
+	 * @param screenNames the Twitter handles of the users
+	 * @param priority how urgently the profiles are needed
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestInfluencerOfBatch(Iterable<String> screenNames, Priority priority) {
+		return requestBatch(screenNames, FetchKind.INFLUENCER_OF, priority);
+	}
+	
+	/**
+	 * Stream version of {@link #requestInfluencerOfBatch(Iterable)}.  The returned publisher may only be subscribed to once.
+	 * @param screenNames the Twitter handles of the users
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestInfluencerOfBatch(Stream<String> screenNames) {
+		return requestInfluencerOfBatch(screenNames, Priority.NORMAL);
+	}
+	
+	/**
+	 * Stream version of {@link #requestInfluencerOfBatch(Iterable, Priority)}.  The returned publisher may only be subscribed to once.
+	 * @param screenNames the Twitter handles of the users
+	 * @param priority how urgently the profiles are needed
+	 * @return a publisher of the users' profiles
+	 */
+	public Flow.Publisher<KloutProfile> requestInfluencerOfBatch(Stream<String> screenNames, Priority priority) {
+		return requestBatch(iterable(screenNames), FetchKind.INFLUENCER_OF, priority);
+	}
+	
+	private Flow.Publisher<KloutProfile> requestBatch(Iterable<String> screenNames, final FetchKind kind, final Priority priority) {
+		return new BatchPublisher<KloutProfile>(screenNames, new BatchPublisher.Source<KloutProfile>() {
+			public void request(String screenName, final BatchPublisher.Sink<KloutProfile> sink) {
+				KloutScoreManager.this.request(screenName, kind, false, priority, RequestHandle.NONE, new FetchRequest.Callback() {
+					public void onComplete(KloutProfile kp) {
+						sink.onResult(kp);
+					}
+				});
+			}
+		}, mBatchConcurrency);
+	}
+	
+	private static Iterable<String> iterable(final Stream<String> stream) {
+		return new Iterable<String>() {
+			public Iterator<String> iterator() {
+				return stream.iterator();
+			}
+		};
+	}
+	
+	/**
+	 * Get the registry of topic names shared by every profile this manager has fetched.
+	 * @return the topic registry
+	 */
+	public TopicRegistry getTopicRegistry() {
+		return mTopicRegistry;
+	}
+	
+	/**
+	 * Keep scores and user objects in an {@link OffHeapProfileStore} rather than in heap-allocated
+	 * profiles.  Topics and influencers are still held on the heap.  Profiles already cached are
+	 * not moved into the store, so this should be called before making any requests.
+	 * @param store the store to use, or <code>null</code> to go back to heap-allocated profiles
+	 */
+	public void setProfileStore(OffHeapProfileStore store) {
+		mProfileStore = store;
+	}
+	
+	/**
+	 * Get the cached profile for a user, materialising it from the off-heap store if one is in use.
+	 * @param screenName the user's Twitter handle
+	 * @return the cached profile, or <code>null</code> if we have nothing for the user
+	 */
+	private KloutProfile getCachedProfile(String screenName) {
+		KloutProfile kp = mProfiles.get(screenName);
+		if (mProfileStore == null)
+			return kp;
+		
+		KloutProfile stored = mProfileStore.getProfile(screenName);
+		if (stored == null)
+			return kp;
+		
+		// Attach whatever we hold on the heap for the user
+		if (kp != null) {
+			stored = stored.withGraphOf(kp);
+		}
+		
+		return stored;
+	}
+	
+	/**
+	 * Set how long requests for a user are collected before deciding which calls to make to the
+	 * Klout API.  Requests collected together share calls: a user request and a score request for the
+	 * same user, for example, are answered by a single call.
+	 * @param millis the planning window in milliseconds, or <code>0</code> to make calls straight away
+	 */
+	public void setPlanningWindow(long millis) {
+		mPlanner.setWindow(millis);
+	}
+	
+	/**
+	 * Set how calls to the Klout API are made, for example through a
+	 * {@link ca.bitjutsu.kloutacular.util.CachingTransport} to share responses between processes.
+	 * Forced requeries always go to the server.  The URLs passed to the transport have no API key:
+	 * use a {@link KeyedTransport} with {@link #getKeyPool()} to add one, underneath any cache.
+	 * @param transport the transport to use
+	 */
+	public synchronized void setTransport(Transport transport) {
+		mUpstream = transport;
+		mSharedCache = null;
+		if (mRecorder != null)
+			mRecorder.setTransport(transport);
+		buildTransport();
+	}
+	
+	/**
+	 * Record every call made to the Klout API from now on, with when it was made, how long it took
+	 * and its response or error, to a capture file that a {@link TrafficReplayer} can play back
+	 * offline.  API keys are not recorded, and nor are responses served from a shared cache, so the
+	 * capture holds only the calls that reached the Klout API.  Any earlier recording is stopped first.
+	 * @param file the file to record to, which is replaced
+	 * @throws IOException if the file can't be created
+	 */
+	public synchronized void startRecording(File file) throws IOException {
+		stopRecording();
+		mRecorder = new TrafficRecorder(mUpstream, file);
+		buildTransport();
+	}
+	
+	/**
+	 * Stop recording calls to the Klout API, and finish the capture file.
+	 * @throws IOException if the capture could not be finished
+	 */
+	public synchronized void stopRecording() throws IOException {
+		if (mRecorder == null)
+			return;
+		
+		TrafficRecorder recorder = mRecorder;
+		mRecorder = null;
+		buildTransport();
+		recorder.close();
+	}
+	
+	/**
+	 * Consult a cache shared with other processes, such as a {@link ResponseCache} or a cache
+	 * server, before calling the Klout API, and write every response to it.  Popular users are then
+	 * fetched once for every process sharing the cache, rather than once per process.  This replaces
+	 * any transport set with {@link #setTransport(Transport)}, but not a recording in progress.
+	 * @param cache the shared cache, or <code>null</code> to stop using one
+	 * @param maxAge the oldest cached response to use, in milliseconds
+	 */
+	public synchronized void setSharedCache(SharedCache cache, long maxAge) {
+		mUpstream = mBreakers;
+		// A recording in progress carries on with the breakers underneath it
+		if (mRecorder != null)
+			mRecorder.setTransport(mBreakers);
+		mSharedCache = cache;
+		mSharedCacheMaxAge = maxAge;
+		buildTransport();
+	}
+	
+	/**
+	 * Put the transport chain back together: any shared cache on top, any recorder underneath it so
+	 * that only calls which reach the Klout API are recorded, then the upstream transport.
+	 */
+	private synchronized void buildTransport() {
+		Transport transport = (mRecorder != null) ? mRecorder : mUpstream;
+		if (mSharedCache != null)
+			transport = new CachingTransport(transport, mSharedCache, mSharedCacheMaxAge);
+		mTransport = transport;
+	}
+	
+	/**
+	 * Get the circuit breaker for a family of Klout API endpoints, to check on it or change its
+	 * thresholds.  While a breaker is open, requests that need its endpoints are answered with
+	 * whatever is cached for the user, which may be stale or nothing at all, without waiting on the
+	 * Klout API.
+	 * @param endpoint the endpoint family
+	 * @return the endpoint family's breaker
+	 */
+	public CircuitBreaker getCircuitBreaker(Endpoint endpoint) {
+		return mBreakers.getBreaker(endpoint);
+	}
+	
+	/**
+	 * Export every cached profile to a set of columnar files, one per partition, in the format
+	 * described by {@link ColumnarExporter}.  Partitions are written in parallel, each by a thread
+	 * of its own, and profiles are streamed out of the cache rather than copied, so the export needs
+	 * little memory however many profiles there are.  Profiles published during the export may or
+	 * may not be included.
+	 * @param dir the directory to write the partitions to
+	 * @param partitions the number of partitions, usually the number of cores
+	 * @return the number of profiles exported
+	 * @throws IOException if the export failed, in which case no partitions are left behind
+	 */
+	public long exportProfiles(File dir, int partitions) throws IOException {
+		ColumnarExporter exporter = new ColumnarExporter(dir, partitions);
+		boolean finished = false;
+		try {
+			OffHeapProfileStore store = mProfileStore;
+			if (store != null) {
+				int size = store.size();
+				for (int id = 0; id < size; id++) {
+					KloutProfile kp = store.getProfile(id);
+					KloutProfile heap = mProfiles.get(kp.getScreenName());
+					exporter.add((heap != null) ? kp.withGraphOf(heap) : kp);
+				}
+			}
+			
+			Iterator<KloutProfile> it = mProfiles.iterator();
+			while (it.hasNext()) {
+				KloutProfile kp = it.next();
+				// Users in the store have been exported with it
+				if (store == null || store.getProfileId(kp.getScreenName()) == -1)
+					exporter.add(kp);
+			}
+			
+			long rows = exporter.finish();
+			finished = true;
+			return rows;
+		} finally {
+			if (!finished)
+				exporter.abort();
+		}
+	}
+	
+	/**
+	 * Set the most requests each batch, as returned by the <code>request...Batch</code> methods,
+	 * may have outstanding at once.  Batches already subscribed to keep their old limit.
+	 * @param concurrency the most requests to have outstanding per batch
+	 */
+	public void setBatchConcurrency(int concurrency) {
+		if (concurrency < 1)
+			throw new IllegalArgumentException("concurrency must be at least 1");
+		mBatchConcurrency = concurrency;
+	}
+	
+	/**
+	 * Stop every thread this manager has started, once the work already queued has been done.
+	 * Nothing can be requested from the manager afterwards; call this when the application is done
+	 * with it, so the JVM can exit.
+	 */
+	public void shutdown() {
+		mRefreshScheduler.stop();
+		mScheduler.shutdown();
+		mExecutor.shutdown();
+		ShardGroup shards = mShards;
+		if (shards != null)
+			shards.shutdown();
+		mChangeFeed.shutdown();
+	}
+	
+	/**
+	 * Give each user's profile a single writer.  Users are hashed onto <code>count</code> shards,
+	 * each with its own thread, and a fetch's result is handed to the shard that owns its user to be
+	 * published, so updates to a profile never contend with each other however many fetches
+	 * complete at once.  Listeners are then notified on the shard threads.  Call this before making
+	 * any requests.
+	 * @param count the number of shards, usually the number of cores, or <code>0</code> to publish
+	 * results on the fetching threads (the default)
+	 */
+	public void setShardCount(int count) {
+		ShardGroup old = mShards;
+		mShards = (count > 0) ? new ShardGroup(count, "KloutShard") : null;
+		// The old shards run whatever is already queued for them before they stop
+		if (old != null)
+			old.shutdown();
+	}
+	
+	/**
+	 * Keep cached scores fresh in the background, spending at most <code>callsPerMinute</code> calls
+	 * to the Klout API a minute.  Users who are requested often and whose scores move quickly are
+	 * refreshed first; users nobody requests are left alone.  Refreshes go at
+	 * {@link Priority#BACKGROUND} priority, and their results are published to listeners as usual.
+	 * Background refreshing is off by default.
+	 * @param callsPerMinute the refresh budget, or <code>0</code> to stop refreshing
+	 */
+	public void setRefreshBudget(int callsPerMinute) {
+		mRefreshScheduler.setCallsPerMinute(callsPerMinute);
+		if (callsPerMinute > 0)
+			mRefreshScheduler.start();
+		else
+			mRefreshScheduler.stop();
+	}
+	
+	/**
+	 * Speculatively fetch the neighbours found by each influence fetch, spending at most
+	 * <code>callsPerMinute</code> calls to the Klout API a minute, on the hunch that they are asked
+	 * for next.  Neighbours whose user object (and topics, if <code>topics</code> is set) are already
+	 * cached, or whom Klout doesn't know, are skipped.  Prefetches go at {@link Priority#BACKGROUND}
+	 * priority, are made only while the key pool has a quarter of its daily quota left, and are
+	 * dropped if they wait more than a minute.  Prefetching is off by default.
+	 * @param callsPerMinute the prefetch budget, or <code>0</code> to stop prefetching
+	 * @param topics whether to prefetch neighbours' topics as well as their user objects
+	 */
+	public void setNeighbourPrefetch(int callsPerMinute, boolean topics) {
+		mPrefetchTopics = topics;
+		mPrefetch.setCallsPerMinute(callsPerMinute);
+	}
+	
+	/**
+	 * Set how long to remember that Klout doesn't know a user.  Until then, requests for the user
+	 * complete straight away with a <code>null</code> profile, without a call to the Klout API.
+	 * @param millis the time to remember unknown users for, in milliseconds
+	 */
+	public void setUnknownUserTtl(long millis) {
+		mUnknownUsers.setTtl(millis);
+	}
+	
+	/**
+	 * Get the most recently published profile for a user, without making any requests.
+	 * @param screenName the user's Twitter handle
+	 * @return the user's cached profile or <code>null</code> if we have nothing cached for them
+	 */
+	public KloutProfile getProfile(String screenName) {
+		return getCachedProfile(screenName);
+	}
+	
+	/**
+	 * Get a specific version of a user's profile, as returned by {@link KloutProfile#getVersion()}.
+	 * Only the versions kept by {@link #setHistoryDepth(int)} can be read back, and only the latest
+	 * while an {@link OffHeapProfileStore} is in use, as the store keeps no history.
+	 * @param screenName the user's Twitter handle
+	 * @param version the profile version
+	 * @return that version of the user's profile or <code>null</code> if it is no longer kept
+	 */
+	public KloutProfile getProfile(String screenName, long version) {
+		if (mProfileStore != null) {
+			KloutProfile kp = getCachedProfile(screenName);
+			return (kp != null && kp.getVersion() == version) ? kp : null;
+		}
+		
+		return mProfiles.get(screenName, version);
+	}
+	
+	/**
+	 * Set how many versions of each user's profile are kept for {@link #getProfile(String, long)}.
+	 * Only the latest version is kept by default, and always while an {@link OffHeapProfileStore} is in use.
+	 * @param depth the number of versions to keep, at least <code>1</code>
+	 */
+	public void setHistoryDepth(int depth) {
+		mProfiles.setHistoryDepth(depth);
+	}
+	
+	/**
+	 * Get the index of cached Klout scores, for leaderboard, rank and score range queries.  Users
+	 * who have had a user object fetched are grouped by their Klout class ID.
+	 * @return the score index
+	 */
+	public ScoreIndex getScoreIndex() {
+		return mScoreIndex;
+	}
+	
+	/**
+	 * Get the cached profiles with the highest Klout scores.
+	 * @param count the maximum number of profiles to return
+	 * @return up to <code>count</code> profiles, highest score first
+	 */
+	public ArrayList<KloutProfile> getTopProfiles(int count) {
+		return toProfiles(mScoreIndex.getTop(count));
+	}
+	
+	/**
+	 * Get the cached profiles with the highest Klout scores in a Klout class.
+	 * @param count the maximum number of profiles to return
+	 * @param kloutClassId the Klout class ID, as returned by {@link KloutProfile#getKloutClassId()}
+	 * @return up to <code>count</code> profiles, highest score first
+	 */
+	public ArrayList<KloutProfile> getTopProfiles(int count, int kloutClassId) {
+		return toProfiles(mScoreIndex.getTop(count, kloutClassId));
+	}
+	
+	/**
+	 * Start a query over the cached profiles, for the profiles matching conditions on their fields,
+	 * topics and influencers.  See {@link ProfileQuery} for how it is evaluated.
+	 * @return a new query, matching every cached profile until it is narrowed down
+	 */
+	public ProfileQuery query() {
+		return new ProfileQuery(mProfiles, mProfileStore, mScoreIndex, mTopicRegistry);
+	}
+	
+	private ArrayList<KloutProfile> toProfiles(List<ScoreIndex.Entry> entries) {
+		ArrayList<KloutProfile> profiles = new ArrayList<KloutProfile>(entries.size());
+		for (ScoreIndex.Entry e : entries) {
+			KloutProfile kp = getCachedProfile(e.getKey());
+			if (kp != null)
+				profiles.add(kp);
+		}
+		
+		return profiles;
+	}
+	
+	/**
+	 * Answer a request from the cache if we can, otherwise plan a call to the Klout API for it.
+	 */
+	private void request(String screenName, FetchKind kind, boolean forceRequery, Priority priority,
+							RequestHandle handle, FetchRequest.Callback callback) {
+		// Cancelled or out of time before it even started
+		if (!handle.isLive()) {
+			if (callback != null && !handle.isCancelled())
+				callback.onComplete(null);
+			return;
+		}
+		
+		mRefreshScheduler.recordAccess(screenName);
+		
+		// Klout recently told us it doesn't know the user, so don't ask again
+		if (mUnknownUsers.contains(screenName)) {
+			if (callback != null)
+				callback.onComplete(null);
+			return;
+		}
+		
+		// If we already have a cached answer, and we aren't requerying, return the cached profile
+		if (!forceRequery && isCached(screenName, kind)) {
+			KloutProfile kp = getCachedProfile(screenName);
+			profileUpdate(kp);
+			if (callback != null)
+				callback.onComplete(kp);
+		} else {
+			mPlanner.submit(new FetchRequest(screenName, kind, forceRequery, priority, handle, callback));
+		}
+	}
+	
+	private boolean isCached(String screenName, FetchKind kind) {
+		switch (kind) {
+		case SCORE:
+			return haveScore(screenName);
+		case USER:
+			return haveUser(screenName);
+		case TOPICS:
+			return haveTopics(screenName);
+		case INFLUENCED_BY:
+			return haveInfluencedBy(screenName);
+		default:
+			return haveInfluencerOf(screenName);
+		}
 	}
 	
 	private void setApiKey(String apiKey) {
-		mApiKey = apiKey;
+		mKeyPool.add(apiKey);
+	}
+	
+	/**
+	 * Get the pool of API keys calls are spread across, to add keys or change their limits.
+	 * @return the key pool
+	 */
+	public KeyPool getKeyPool() {
+		return mKeyPool;
+	}
+	
+	/**
+	 * Get the tracer that samples fetches, to set how many are traced and where their traces go,
+	 * such as a {@link ca.bitjutsu.kloutacular.util.SlowestTraces}.  Each traced fetch records how
+	 * long it spent in the queue, calling the Klout API, decoding the response, updating the cache and
+	 * notifying listeners.  Tracing is off by default.
+	 * @return the tracer
+	 */
+	public Tracer getTracer() {
+		return mTracer;
+	}
+	
+	/**
+	 * Get the pool of threads fetches are made on, to monitor its size, queue and the latency and
+	 * throughput it is sized from, or to change the bounds it is sized within.
+	 * @return the worker pool
+	 */
+	public AdaptiveExecutor getWorkerPool() {
+		return mExecutor;
 	}
 	
 	private void profileUpdate(KloutProfile kp) {
+		mChangeFeed.published(kp);
 		for (OnProfileUpdatedListener l : mUpdateListeners) {
 			try {
 				l.onUpdate(kp);
@@ -250,29 +1089,54 @@ public class KloutScoreManager {
 	public void removeOnProfileUpdatedListener(OnProfileUpdatedListener l) {
 		mUpdateListeners.remove(l);
 	}
+	
+	/**
+	 * Add a listener to be told about changes to profiles.  Unlike {@link OnProfileUpdatedListener},
+	 * which is passed every profile published, including ones that are exactly as they were, a
+	 * change listener is only told about fields that actually changed, and updates to a profile in
+	 * quick succession are coalesced into a single change.  Changes are delivered on a thread of
+	 * their own, one at a time, so a slow listener delays later changes but not requests.
+	 * @param l the listener to be registered
+	 */
+	public void addOnProfileChangedListener(OnProfileChangedListener l) {
+		mChangeFeed.addListener(l);
+	}
+	
+	/**
+	 * Remove a change listener.  Once there are none left, the next listener added is told about
+	 * every profile as though it were new.
+	 * @param l the listener to unregister
+	 */
+	public void removeOnProfileChangedListener(OnProfileChangedListener l) {
+		mChangeFeed.removeListener(l);
+	}
+	
+	/**
+	 * Set how long updates to a profile are coalesced before the change is delivered to change
+	 * listeners.
+	 * @param millis the coalescing window in milliseconds, or <code>0</code> to deliver every change straight away
+	 */
+	public void setChangeWindow(long millis) {
+		mChangeFeed.setWindow(millis);
+	}
 
 	private void setDebugMode(boolean debug) {
 		mIsDebugMode = debug;
 	}
 	
-	private JSONObject makeRequest(String url) throws ClientProtocolException, IOException, IllegalStateException, JSONException {
-		HttpGet get = new HttpGet(url);
-		HttpResponse response = new DefaultHttpClient().execute(get);
-
-		if (response.getStatusLine().getStatusCode() != 200)
-			throw new HttpResponseException(response.getStatusLine().getStatusCode(),
-	        		"Remote server responded with code " + response.getStatusLine().getStatusCode());
-		
-		BufferedReader in = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
-		StringBuilder sb = new StringBuilder();
-		String line;
-		while ((line = in.readLine()) != null) {
-			sb.append(line);
+	private JSONObject makeRequest(String url, boolean fresh, Trace trace) throws ClientProtocolException, IOException, IllegalStateException, JSONException {
+		long started = trace.start();
+		String body = null;
+		try {
+			body = mTransport.get(url, fresh);
+		} finally {
+			trace.end(Trace.Stage.HTTP, started, (body != null) ? body.length() : -1);
 		}
 		
-		in.close();
-		
-		return new JSONObject(sb.toString());
+		started = trace.start();
+		JSONObject obj = new JSONObject(body);
+		trace.end(Trace.Stage.PARSE, started, body.length());
+		return obj;
 	}
 
 	/**
@@ -292,180 +1156,575 @@ public class KloutScoreManager {
 		public void onUpdate(KloutProfile kp);
 	}
 	
-	private class KloutScoreFetcher implements Runnable {
+	/**
+	 * Listener interface for changes to Klout profiles.
+	 */
+	public interface OnProfileChangedListener {
+		/**
+		 * Passes a change to a profile.  Changes are passed one at a time, in order of their
+		 * sequence numbers.
+		 * @param change the fields that changed
+		 */
+		public void onChange(ProfileChange change);
+	}
+	
+	private class PlanDispatcher implements FetchPlanner.Dispatcher {
+		public boolean isCached(String screenName, FetchKind kind) {
+			return KloutScoreManager.this.isCached(screenName, kind);
+		}
+		
+		public KloutProfile serveCached(String screenName) {
+			KloutProfile kp = getCachedProfile(screenName);
+			profileUpdate(kp);
+			return kp;
+		}
+		
+		public Promotable dispatch(String screenName, FetchKind kind, Priority priority, boolean fresh) {
+			Promotable fetcher;
+			switch (kind) {
+			case SCORE:
+				fetcher = new KloutScoreFetcher(screenName, priority, fresh, mTracer.start("requestKlout", screenName));
+				break;
+			case USER:
+				fetcher = new KloutUserFetcher(screenName, priority, fresh, mTracer.start("requestUser", screenName));
+				break;
+			case TOPICS:
+				fetcher = new KloutTopicsFetcher(screenName, priority, fresh, mTracer.start("requestTopics", screenName));
+				break;
+			case INFLUENCED_BY:
+				fetcher = new KloutInfluencerFetcher(screenName, true, priority, fresh,
+						mTracer.start("requestInfluencedBy", screenName));
+				break;
+			default:
+				fetcher = new KloutInfluencerFetcher(screenName, false, priority, fresh,
+						mTracer.start("requestInfluencerOf", screenName));
+			}
+			mExecutor.execute((Runnable) fetcher);
+			return fetcher;
+		}
+	}
+	
+	/**
+	 * Queue prefetches for the neighbours an influence fetch found, until the prefetch budget runs out.
+	 */
+	private void prefetchNeighbours(List<KloutProfile> neighbours) {
+		if (!mPrefetch.isEnabled())
+			return;
+		
+		for (KloutProfile neighbour : neighbours) {
+			String screenName = neighbour.getScreenName();
+			if (mUnknownUsers.contains(screenName))
+				continue;
+			
+			if (!prefetch(screenName, FetchKind.USER))
+				return;
+			if (mPrefetchTopics && !prefetch(screenName, FetchKind.TOPICS))
+				return;
+		}
+	}
+	
+	/**
+	 * @return whether there was budget left for the prefetch, or it wasn't needed
+	 */
+	private boolean prefetch(String screenName, FetchKind kind) {
+		// Already fresh, so the prefetch would be wasted
+		if (isCached(screenName, kind))
+			return true;
+		if (!mPrefetch.tryAcquire())
+			return false;
+		
+		// Straight to the planner, so the prefetch doesn't count as an access
+		mPlanner.submit(new FetchRequest(screenName, kind, false, Priority.BACKGROUND, mPrefetch.newHandle(), null));
+		return true;
+	}
+	
+	private class BackgroundRefresher implements RefreshScheduler.Refresher {
+		public void refresh(String screenName) {
+			// Refresh the user object if we have one, so the deltas keep feeding the scheduler
+			FetchKind kind = haveUser(screenName) ? FetchKind.USER : FetchKind.SCORE;
+			// Straight to the planner, so the refresh doesn't count as an access
+			mPlanner.submit(new FetchRequest(screenName, kind, true, Priority.BACKGROUND, RequestHandle.NONE, null));
+		}
+	}
+	
+	/**
+	 * Get the user a response is about.  Klout answers with no users at all for a screen name it
+	 * doesn't know, and the screen name is then remembered as unknown.
+	 * @return the user, or <code>null</code> if Klout doesn't know them
+	 */
+	private JSONObject getUser(String screenName, JSONObject response) throws JSONException {
+		JSONArray users = response.has("users") ? response.getJSONArray("users") : null;
+		if (users == null || users.length() == 0) {
+			mUnknownUsers.add(screenName);
+			return null;
+		}
+		
+		return users.getJSONObject(0);
+	}
+	
+	/**
+	 * The half of a fetch that publishes its result, run straight after the call or, when sharding,
+	 * by the shard that owns the user.  Finishes the call with the planner once it has published.
+	 */
+	private abstract class Publication implements Runnable {
+		private String mScreenName;
+		private FetchKind mKind;
+		private Trace mTrace;
+		
+		public Publication(String screenName, FetchKind kind, Trace trace) {
+			mScreenName = screenName;
+			mKind = kind;
+			mTrace = trace;
+		}
+		
+		/**
+		 * Update the cached profile.
+		 * @return the updated profile, which is then passed to listeners
+		 */
+		protected abstract KloutProfile publish();
+		
+		@Override
+		public void run() {
+			KloutProfile result = null;
+			boolean dispatched = false;
+			long started = mTrace.start();
+			try {
+				result = publish();
+				mTrace.end(Trace.Stage.STORE, started, 1);
+				
+				started = mTrace.start();
+				dispatched = true;
+				profileUpdate(result);
+			} finally {
+				mPlanner.finished(mScreenName, mKind, result);
+				// If the store failed, the listeners were never called and there is nothing to time
+				if (dispatched)
+					mTrace.end(Trace.Stage.DISPATCH, started, mUpdateListeners.size());
+				mTrace.finish();
+			}
+		}
+	}
+	
+	/**
+	 * Run a mutation of a user's profile on the thread that owns the user.
+	 */
+	private void mutate(String screenName, Runnable mutation) {
+		ShardGroup shards = mShards;
+		if (shards == null || shards.isOwner(screenName))
+			mutation.run();
+		else
+			shards.execute(screenName, mutation);
+	}
+	
+	private class KloutScoreFetcher implements Runnable, Promotable, Sheddable {
 		private String mScreenName;
+		private volatile Priority mPriority;
+		private boolean mFresh;
+		private Trace mTrace;
+		private long mQueued;
 		
-		public KloutScoreFetcher(String screenName) {
+		public KloutScoreFetcher(String screenName, Priority priority, boolean fresh, Trace trace) {
 			mScreenName = screenName;
+			mPriority = priority;
+			mFresh = fresh;
+			mTrace = trace;
+			mQueued = trace.start();
+		}
+		
+		public Priority getPriority() {
+			return mPriority;
+		}
+		
+		public synchronized void promote(Priority priority) {
+			mPriority = Priority.max(mPriority, priority);
+			LaneQueue.promote(mExecutor, this);
+		}
+		
+		public void shed() {
+			// Answer with whatever we have rather than nothing
+			mPlanner.finished(mScreenName, FetchKind.SCORE, getCachedProfile(mScreenName));
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
+			mTrace.finish();
 		}
 		
 		@Override
 		public void run() {
+			boolean published = false;
+			KloutProfile stale = null;
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
 			try {
-				JSONObject obj = makeRequest("http://api.klout.com/1/klout.json?users=" + mScreenName + "&key=" + mApiKey);
-				JSONArray users = obj.getJSONArray("users");
+				// Nobody wants the answer any more, so don't spend a call on it
+				if (!mPlanner.isWanted(mScreenName, FetchKind.SCORE))
+					return;
+				JSONObject obj = makeRequest("http://api.klout.com/1/klout.json?users=" + mScreenName, mFresh, mTrace);
+				JSONObject user = getUser(mScreenName, obj);
+				if (user == null)
+					return;
 				
-				double score = users.getJSONObject(0).getDouble("kscore");
+				final double score = user.getDouble("kscore");
+				mScoreIndex.update(mScreenName, score);
+				mRefreshScheduler.recordFetch(mScreenName, score, Double.NaN);
 				
-				//Put the new score in the map, unless we already have a mapping and we're just adding/updating the score
-				if (mProfiles.get(mScreenName) != null) {
-					mProfiles.get(mScreenName).updateScore(score);
-					profileUpdate(mProfiles.get(mScreenName));
-				} else {
-					KloutProfile k = new KloutProfile(mScreenName, score);
-					mProfiles.put(mScreenName, k);
-					profileUpdate(k);
-				}
+				mutate(mScreenName, new Publication(mScreenName, FetchKind.SCORE, mTrace) {
+					protected KloutProfile publish() {
+						//Publish the new score, unless we already have a mapping and we're just adding/updating the score
+						KloutProfile result;
+						if (mProfileStore != null) {
+							mProfileStore.putScore(mScreenName, score);
+							result = getCachedProfile(mScreenName);
+						} else {
+							result = mProfiles.update(mScreenName, new ProfileTable.Mutation() {
+								public KloutProfile apply(KloutProfile current) {
+									return (current != null) ? current.withScore(score) : new KloutProfile(mScreenName, score);
+								}
+							});
+						}
+						return result;
+					}
+				});
+				published = true;
 				
+			} catch (CircuitOpenException e) {
+				// Klout is failing, so serve what we have
+				stale = getCachedProfile(mScreenName);
 			} catch (HttpResponseException e) {
-				e.printStackTrace();
+				if (e.getStatusCode() == 404)
+					mUnknownUsers.add(mScreenName);
+				else
+					e.printStackTrace();
 			} catch (ClientProtocolException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
 				e.printStackTrace();
 			} catch (JSONException e) {
 				e.printStackTrace();
+			} finally {
+				// Once published, the publication finishes the call
+				if (!published) {
+					mPlanner.finished(mScreenName, FetchKind.SCORE, stale);
+					mTrace.finish();
+				}
 			}
 		}
 	}
 	
-	private class KloutTopicsFetcher implements Runnable {
+	private class KloutTopicsFetcher implements Runnable, Promotable, Sheddable {
 		private String mScreenName;
+		private volatile Priority mPriority;
+		private boolean mFresh;
+		private Trace mTrace;
+		private long mQueued;
 		
-		public KloutTopicsFetcher(String screenName) {
+		public KloutTopicsFetcher(String screenName, Priority priority, boolean fresh, Trace trace) {
 			mScreenName = screenName;
+			mPriority = priority;
+			mFresh = fresh;
+			mTrace = trace;
+			mQueued = trace.start();
+		}
+		
+		public Priority getPriority() {
+			return mPriority;
+		}
+		
+		public synchronized void promote(Priority priority) {
+			mPriority = Priority.max(mPriority, priority);
+			LaneQueue.promote(mExecutor, this);
+		}
+		
+		public void shed() {
+			// Answer with whatever we have rather than nothing
+			mPlanner.finished(mScreenName, FetchKind.TOPICS, getCachedProfile(mScreenName));
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
+			mTrace.finish();
 		}
 		
 		@Override
 		public void run() {
+			boolean published = false;
+			KloutProfile stale = null;
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
 			try {
-				JSONObject obj = makeRequest("http://api.klout.com/1/users/topics.json?users=" + mScreenName + "&key=" + mApiKey);
-				JSONArray users = obj.getJSONArray("users");
+				// Nobody wants the answer any more, so don't spend a call on it
+				if (!mPlanner.isWanted(mScreenName, FetchKind.TOPICS))
+					return;
+				JSONObject obj = makeRequest("http://api.klout.com/1/users/topics.json?users=" + mScreenName, mFresh, mTrace);
+				JSONObject user = getUser(mScreenName, obj);
+				if (user == null)
+					return;
 				
-				JSONArray topx = users.getJSONObject(0).getJSONArray("topics");
-				ArrayList<String> topics = new ArrayList<String>();
+				JSONArray topx = user.getJSONArray("topics");
+				final ArrayList<String> topics = new ArrayList<String>(topx.length());
 				for (int i = 0; i < topx.length(); i++) {
-					topics.add(topx.getString(i));
+					// Share a single instance of each topic name across all profiles
+					topics.add(mTopicRegistry.intern(topx.getString(i)));
 				}
 				
-				// Put the new topics in the map, unless we already have a mapping and we're just adding/updating the topics
-				if (mProfiles.get(mScreenName) != null) {
-					mProfiles.get(mScreenName).updateTopics(topics);
-					profileUpdate(mProfiles.get(mScreenName));
-				} else {
-					KloutProfile k = new KloutProfile(mScreenName, topics);
-					mProfiles.put(mScreenName, k);
-					profileUpdate(k);
-				}
+				mutate(mScreenName, new Publication(mScreenName, FetchKind.TOPICS, mTrace) {
+					protected KloutProfile publish() {
+						// Publish the new topics, unless we already have a mapping and we're just adding/updating the topics
+						mProfiles.update(mScreenName, new ProfileTable.Mutation() {
+							public KloutProfile apply(KloutProfile current) {
+								return (current != null) ? current.withTopics(topics) : new KloutProfile(mScreenName, topics);
+							}
+						});
+						KloutProfile result = getCachedProfile(mScreenName);
+						return result;
+					}
+				});
+				published = true;
 				
+			} catch (CircuitOpenException e) {
+				// Klout is failing, so serve what we have
+				stale = getCachedProfile(mScreenName);
 			} catch (HttpResponseException e) {
-				e.printStackTrace();
+				if (e.getStatusCode() == 404)
+					mUnknownUsers.add(mScreenName);
+				else
+					e.printStackTrace();
 			} catch (ClientProtocolException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
 				e.printStackTrace();
 			} catch (JSONException e) {
 				e.printStackTrace();
+			} finally {
+				if (!published) {
+					mPlanner.finished(mScreenName, FetchKind.TOPICS, stale);
+					mTrace.finish();
+				}
 			}
 		}
 	}
 	
-	private class KloutUserFetcher implements Runnable {
+	private class KloutUserFetcher implements Runnable, Promotable, Sheddable {
 		private String mScreenName;
+		private volatile Priority mPriority;
+		private boolean mFresh;
+		private Trace mTrace;
+		private long mQueued;
 		
-		public KloutUserFetcher(String screenName) {
+		public KloutUserFetcher(String screenName, Priority priority, boolean fresh, Trace trace) {
 			mScreenName = screenName;
+			mPriority = priority;
+			mFresh = fresh;
+			mTrace = trace;
+			mQueued = trace.start();
+		}
+		
+		public Priority getPriority() {
+			return mPriority;
+		}
+		
+		public synchronized void promote(Priority priority) {
+			mPriority = Priority.max(mPriority, priority);
+			LaneQueue.promote(mExecutor, this);
+		}
+		
+		public void shed() {
+			// Answer with whatever we have rather than nothing
+			mPlanner.finished(mScreenName, FetchKind.USER, getCachedProfile(mScreenName));
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
+			mTrace.finish();
 		}
 		
 		@Override
 		public void run() {
+			boolean published = false;
+			KloutProfile stale = null;
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
 			try {
-				JSONObject obj = makeRequest("http://api.klout.com/1/users/show.json?users=" + mScreenName + "&key=" + mApiKey);
-				JSONObject score = obj.getJSONArray("users").getJSONObject(0).getJSONObject("score");
+				// Nobody wants the answer any more, so don't spend a call on it
+				if (!mPlanner.isWanted(mScreenName, FetchKind.USER))
+					return;
+				JSONObject obj = makeRequest("http://api.klout.com/1/users/show.json?users=" + mScreenName, mFresh, mTrace);
+				JSONObject user = getUser(mScreenName, obj);
+				if (user == null)
+					return;
+				JSONObject score = user.getJSONObject("score");
 				
-				double kscore = score.getDouble("kscore");
-				double slope = score.getDouble("slope");
-				String userDesc = score.getString("description");
-				int kclassid = score.getInt("kclass_id");
-				String kclass = score.getString("kclass");
-				String kclassDesc = score.getString("kclass_description");
-				double network = score.getDouble("network_score");
-				double amp = score.getDouble("amplification_score");
-				double reach = score.getDouble("true_reach");
-				double delta1 = score.getDouble("delta_1day");
-				double delta5 = score.getDouble("delta_5day");
+				final double kscore = score.getDouble("kscore");
+				final double slope = score.getDouble("slope");
+				final String userDesc = score.getString("description");
+				final int kclassid = score.getInt("kclass_id");
+				final String kclass = score.getString("kclass");
+				final String kclassDesc = score.getString("kclass_description");
+				final double network = score.getDouble("network_score");
+				final double amp = score.getDouble("amplification_score");
+				final double reach = score.getDouble("true_reach");
+				final double delta1 = score.getDouble("delta_1day");
+				final double delta5 = score.getDouble("delta_5day");
+				mScoreIndex.update(mScreenName, kscore, kclassid);
+				mRefreshScheduler.recordFetch(mScreenName, kscore, Math.max(Math.abs(delta1), Math.abs(slope)));
 				
-				// Put the new user in the map, unless we already have a mapping and we're just adding/updating the user
-				if (mProfiles.get(mScreenName) != null) {
-					mProfiles.get(mScreenName).updateUser(kscore, slope, userDesc, kclassid, kclass, kclassDesc,
-															network, amp, reach, delta1, delta5);
-					profileUpdate(mProfiles.get(mScreenName));
-				} else {
-					KloutProfile k = new KloutProfile(mScreenName, kscore, slope, userDesc, kclassid, kclass, kclassDesc,
-														network, amp, reach, delta1, delta5);
-					mProfiles.put(mScreenName, k);
-					profileUpdate(k);
-				}
+				mutate(mScreenName, new Publication(mScreenName, FetchKind.USER, mTrace) {
+					protected KloutProfile publish() {
+						// Publish the new user, unless we already have a mapping and we're just adding/updating the user
+						KloutProfile result;
+						if (mProfileStore != null) {
+							mProfileStore.putUser(mScreenName, kscore, slope, userDesc, kclassid, kclass, kclassDesc,
+																	network, amp, reach, delta1, delta5);
+							result = getCachedProfile(mScreenName);
+						} else {
+							result = mProfiles.update(mScreenName, new ProfileTable.Mutation() {
+								public KloutProfile apply(KloutProfile current) {
+									if (current != null)
+										return current.withUser(kscore, slope, userDesc, kclassid, kclass, kclassDesc,
+																	network, amp, reach, delta1, delta5);
+									
+									return new KloutProfile(mScreenName, kscore, slope, userDesc, kclassid, kclass, kclassDesc,
+																network, amp, reach, delta1, delta5);
+								}
+							});
+						}
+						return result;
+					}
+				});
+				published = true;
 				
+			} catch (CircuitOpenException e) {
+				// Klout is failing, so serve what we have
+				stale = getCachedProfile(mScreenName);
 			} catch (HttpResponseException e) {
-				e.printStackTrace();
+				if (e.getStatusCode() == 404)
+					mUnknownUsers.add(mScreenName);
+				else
+					e.printStackTrace();
 			} catch (ClientProtocolException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
 				e.printStackTrace();
 			} catch (JSONException e) {
 				e.printStackTrace();
+			} finally {
+				if (!published) {
+					mPlanner.finished(mScreenName, FetchKind.USER, stale);
+					mTrace.finish();
+				}
 			}
 		}
 	}
 	
-	private class KloutInfluencerFetcher implements Runnable {
+	private class KloutInfluencerFetcher implements Runnable, Promotable, Sheddable {
 		private String mScreenName;
 		private boolean mIsInfluencedBy;
+		private volatile Priority mPriority;
+		private boolean mFresh;
+		private Trace mTrace;
+		private long mQueued;
 		
-		public KloutInfluencerFetcher(String screenName, boolean isInfluencedBy) {
+		public KloutInfluencerFetcher(String screenName, boolean isInfluencedBy, Priority priority, boolean fresh, Trace trace) {
 			mScreenName = screenName;
 			mIsInfluencedBy = isInfluencedBy;
+			mPriority = priority;
+			mFresh = fresh;
+			mTrace = trace;
+			mQueued = trace.start();
+		}
+		
+		public Priority getPriority() {
+			return mPriority;
+		}
+		
+		public synchronized void promote(Priority priority) {
+			mPriority = Priority.max(mPriority, priority);
+			LaneQueue.promote(mExecutor, this);
+		}
+		
+		public void shed() {
+			// Answer with whatever we have rather than nothing
+			mPlanner.finished(mScreenName, mIsInfluencedBy ? FetchKind.INFLUENCED_BY : FetchKind.INFLUENCER_OF,
+					getCachedProfile(mScreenName));
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
+			mTrace.finish();
 		}
 		
 		@Override
 		public void run() {
+			final FetchKind kind = mIsInfluencedBy ? FetchKind.INFLUENCED_BY : FetchKind.INFLUENCER_OF;
+			boolean published = false;
+			KloutProfile stale = null;
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
 			try {
-				JSONObject obj = makeRequest("http://api.klout.com/1/soi/influence" + (mIsInfluencedBy ? "d_by" : "r_of") + ".json?users=" + mScreenName + "&key=" + mApiKey);
-				JSONArray influenceUsers = obj.getJSONArray("users").getJSONObject(0).getJSONArray(mIsInfluencedBy ? "influencers" : "influencees");
+				// Nobody wants the answer any more, so don't spend a call on it
+				if (!mPlanner.isWanted(mScreenName, kind))
+					return;
+				JSONObject obj = makeRequest("http://api.klout.com/1/soi/influence" + (mIsInfluencedBy ? "d_by" : "r_of") + ".json?users=" + mScreenName, mFresh, mTrace);
+				JSONObject user = getUser(mScreenName, obj);
+				if (user == null)
+					return;
+				JSONArray influenceUsers = user.getJSONArray(mIsInfluencedBy ? "influencers" : "influencees");
 				
-				ArrayList<KloutProfile> profiles = new ArrayList<KloutProfile>();
+				long started = mTrace.start();
+				final ArrayList<KloutProfile> profiles = new ArrayList<KloutProfile>(influenceUsers.length());
 				for (int i = 0; i < influenceUsers.length(); i++) {
-					String screenName = influenceUsers.getJSONObject(i).getString("twitter_screen_name");
-					double kscore = influenceUsers.getJSONObject(i).getDouble("kscore");
-					KloutProfile k = new KloutProfile(screenName, kscore);
-					profiles.add(k);
-					//Add to the map for future queries
-					mProfiles.put(screenName, k);
+					final String screenName = influenceUsers.getJSONObject(i).getString("twitter_screen_name");
+					final double kscore = influenceUsers.getJSONObject(i).getDouble("kscore");
+					mScoreIndex.update(screenName, kscore);
+					//Add to the map for future queries, keeping anything else we know about the user
+					if (mProfileStore != null) {
+						mProfileStore.putScore(screenName, kscore);
+						profiles.add(new KloutProfile(screenName, kscore));
+					} else if (mShards != null) {
+						// Each influencer belongs to its own shard, so update it there and keep a snapshot of the score
+						mutate(screenName, new Runnable() {
+							public void run() {
+								mProfiles.update(screenName, new ProfileTable.Mutation() {
+									public KloutProfile apply(KloutProfile current) {
+										return (current != null) ? current.withScore(kscore) : new KloutProfile(screenName, kscore);
+									}
+								});
+							}
+						});
+						profiles.add(new KloutProfile(screenName, kscore));
+					} else {
+						profiles.add(mProfiles.update(screenName, new ProfileTable.Mutation() {
+							public KloutProfile apply(KloutProfile current) {
+								return (current != null) ? current.withScore(kscore) : new KloutProfile(screenName, kscore);
+							}
+						}));
+					}
 				}
+				mTrace.end(Trace.Stage.STORE, started, profiles.size());
 				
-				// Put the new user in the map, unless we already have a mapping and we're just adding/updating the user
-				if (mProfiles.get(mScreenName) != null) {
-					if (mIsInfluencedBy)
-						mProfiles.get(mScreenName).updateInfluencedBy(profiles);
-					else
-						mProfiles.get(mScreenName).updateInfluencerOf(profiles);
-					
-					profileUpdate(mProfiles.get(mScreenName));
-				} else {
-					KloutProfile k = new KloutProfile(mScreenName, profiles, mIsInfluencedBy);
-					mProfiles.put(mScreenName, k);
-					profileUpdate(k);
-				}
+				mutate(mScreenName, new Publication(mScreenName, kind, mTrace) {
+					protected KloutProfile publish() {
+						// Publish the new user, unless we already have a mapping and we're just adding/updating the user
+						mProfiles.update(mScreenName, new ProfileTable.Mutation() {
+							public KloutProfile apply(KloutProfile current) {
+								if (current == null)
+									return new KloutProfile(mScreenName, profiles, mIsInfluencedBy);
+								
+								return mIsInfluencedBy ? current.withInfluencedBy(profiles) : current.withInfluencerOf(profiles);
+							}
+						});
+						KloutProfile result = getCachedProfile(mScreenName);
+						return result;
+					}
+				});
+				published = true;
 				
+				prefetchNeighbours(profiles);
+				
+			} catch (CircuitOpenException e) {
+				// Klout is failing, so serve what we have
+				stale = getCachedProfile(mScreenName);
 			} catch (HttpResponseException e) {
-				e.printStackTrace();
+				if (e.getStatusCode() == 404)
+					mUnknownUsers.add(mScreenName);
+				else
+					e.printStackTrace();
 			} catch (ClientProtocolException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
 				e.printStackTrace();
 			} catch (JSONException e) {
 				e.printStackTrace();
+			} finally {
+				if (!published) {
+					mPlanner.finished(mScreenName, kind, stale);
+					mTrace.finish();
+				}
 			}
 		}
 	}
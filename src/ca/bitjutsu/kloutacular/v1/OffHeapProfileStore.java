@@ -0,0 +1,345 @@
+package ca.bitjutsu.kloutacular.v1;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ca.bitjutsu.kloutacular.util.StringArena;
+
+/**
+ * An alternative store for the score and "user object" fields of Klout profiles, for caches
+ * holding millions of users.  Rather than keeping a {@link KloutProfile} on the heap per user, each
+ * user is given a dense profile ID, and their numeric fields live at that index in columns of
+ * direct (off-heap) memory.  Their strings live in a deduplicating {@link StringArena}, so each
+ * user costs a fixed number of off-heap bytes plus a few bytes of index, however many are stored.
+ *
+ * {@link KloutProfile} instances are only materialised when asked for, and are copies: later
+ * updates to the store are not reflected in profiles that have already been handed out.  Each
+ * user's row keeps a version, bumped by every update, which is the version of the profiles
+ * materialised from it.
+ *
+ * Install a store with {@link KloutScoreManager#setProfileStore(OffHeapProfileStore)}.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class OffHeapProfileStore {
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_ROWS = 1 << CHUNK_BITS;
+
+	// Double columns
+	private static final int SCORE = 0;
+	private static final int AMPLIFICATION = 1;
+	private static final int NETWORK = 2;
+	private static final int TRUE_REACH = 3;
+	private static final int SLOPE = 4;
+	private static final int ONE_DAY_DELTA = 5;
+	private static final int FIVE_DAY_DELTA = 6;
+	private static final int DOUBLE_COLUMNS = 7;
+
+	// Int columns
+	private static final int CLASS_ID = 0;
+	private static final int SCREEN_NAME = 1;
+	private static final int USER_DESCRIPTION = 2;
+	private static final int CLASS = 3;
+	private static final int CLASS_DESCRIPTION = 4;
+	private static final int FLAGS = 5;
+	private static final int VERSION = 6;
+	private static final int INT_COLUMNS = 7;
+
+	private static final int FLAG_HAS_USER = 1;
+
+	private ByteBuffer[][] mDoubleColumns;
+	private ByteBuffer[][] mIntColumns;
+	private int mChunkCount;
+	private int mSize;
+	private StringArena mStrings;
+
+	// Open-addressed table from screen name handle to profile ID + 1
+	private int[] mIdSlots;
+	private int[] mIdNames;
+
+	private ReentrantReadWriteLock mLock;
+
+	public OffHeapProfileStore() {
+		mDoubleColumns = new ByteBuffer[DOUBLE_COLUMNS][16];
+		mIntColumns = new ByteBuffer[INT_COLUMNS][16];
+		mStrings = new StringArena();
+		mIdSlots = new int[1024];
+		mIdNames = new int[1024];
+		mLock = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Get the number of profiles held in the store.
+	 * @return the number of profiles
+	 */
+	public int size() {
+		mLock.readLock().lock();
+		try {
+			return mSize;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the dense profile ID assigned to a user.
+	 * @param screenName the user's Twitter handle
+	 * @return the profile ID, or <code>-1</code> if the user is not in the store
+	 */
+	public int getProfileId(String screenName) {
+		mLock.readLock().lock();
+		try {
+			return findId(screenName);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Materialise the profile for a user.
+	 * @param screenName the user's Twitter handle
+	 * @return a new profile holding the stored values, or <code>null</code> if the user is not in the store
+	 */
+	public KloutProfile getProfile(String screenName) {
+		mLock.readLock().lock();
+		try {
+			int id = findId(screenName);
+			return (id == -1) ? null : materialise(id);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Materialise the profile with the given profile ID.
+	 * @param profileId a profile ID returned by {@link #getProfileId(String)}
+	 * @return a new profile holding the stored values
+	 */
+	public KloutProfile getProfile(int profileId) {
+		mLock.readLock().lock();
+		try {
+			checkId(profileId);
+			return materialise(profileId);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Read a user's Klout score without materialising their profile.
+	 * @param profileId a profile ID returned by {@link #getProfileId(String)}
+	 * @return the user's Klout score
+	 */
+	public double getScore(int profileId) {
+		mLock.readLock().lock();
+		try {
+			checkId(profileId);
+			return getDouble(SCORE, profileId);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Read a user's Klout class ID without materialising their profile.
+	 * @param profileId a profile ID returned by {@link #getProfileId(String)}
+	 * @return the user's Klout class ID, or <code>0</code> if no user object has been stored for them
+	 */
+	public int getKloutClassId(int profileId) {
+		mLock.readLock().lock();
+		try {
+			checkId(profileId);
+			return getInt(CLASS_ID, profileId);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks if a user object, and not just a score, has been stored for the user.
+	 * @param screenName the user's Twitter handle
+	 * @return whether or not a user object is stored
+	 */
+	public boolean hasUser(String screenName) {
+		mLock.readLock().lock();
+		try {
+			int id = findId(screenName);
+			return id != -1 && (getInt(FLAGS, id) & FLAG_HAS_USER) != 0;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of bytes of off-heap memory reserved by the store, including its strings.
+	 * @return the reserved capacity in bytes
+	 */
+	public long getCapacity() {
+		mLock.readLock().lock();
+		try {
+			return (long) mChunkCount * CHUNK_ROWS * (DOUBLE_COLUMNS * 8 + INT_COLUMNS * 4) + mStrings.getCapacity();
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/* package */ int putScore(String screenName, double score) {
+		mLock.writeLock().lock();
+		try {
+			int id = findOrAddId(screenName);
+			putDouble(SCORE, id, score);
+			putInt(VERSION, id, getInt(VERSION, id) + 1);
+			return id;
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/* package */ int putUser(String screenName, double score, double slope, String userDesc, int kclassId, String kclass,
+								String kclassDesc, double network, double amp, double reach, double delta1, double delta5) {
+		mLock.writeLock().lock();
+		try {
+			int id = findOrAddId(screenName);
+			putDouble(SCORE, id, score);
+			putDouble(SLOPE, id, slope);
+			putDouble(NETWORK, id, network);
+			putDouble(AMPLIFICATION, id, amp);
+			putDouble(TRUE_REACH, id, reach);
+			putDouble(ONE_DAY_DELTA, id, delta1);
+			putDouble(FIVE_DAY_DELTA, id, delta5);
+			putInt(CLASS_ID, id, kclassId);
+			putInt(USER_DESCRIPTION, id, mStrings.intern(userDesc));
+			putInt(CLASS, id, mStrings.intern(kclass));
+			putInt(CLASS_DESCRIPTION, id, mStrings.intern(kclassDesc));
+			putInt(FLAGS, id, getInt(FLAGS, id) | FLAG_HAS_USER);
+			putInt(VERSION, id, getInt(VERSION, id) + 1);
+			return id;
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	private KloutProfile materialise(int id) {
+		String screenName = mStrings.get(getInt(SCREEN_NAME, id));
+		long version = getInt(VERSION, id);
+		if ((getInt(FLAGS, id) & FLAG_HAS_USER) == 0)
+			return new KloutProfile(version, screenName, getDouble(SCORE, id));
+
+		// Arena handles never change, so the strings can be decoded later without the lock
+		UserText text = UserText.of(mStrings, getInt(USER_DESCRIPTION, id), getInt(CLASS, id), getInt(CLASS_DESCRIPTION, id));
+		return new KloutProfile(version, screenName, getDouble(SCORE, id), getDouble(SLOPE, id), text, getInt(CLASS_ID, id),
+				getDouble(NETWORK, id), getDouble(AMPLIFICATION, id), getDouble(TRUE_REACH, id),
+				getDouble(ONE_DAY_DELTA, id), getDouble(FIVE_DAY_DELTA, id));
+	}
+
+	private void checkId(int id) {
+		if (id < 0 || id >= mSize)
+			throw new IndexOutOfBoundsException("No profile with ID " + id);
+	}
+
+	private int findId(String screenName) {
+		int name = mStrings.find(screenName);
+		if (name == StringArena.NULL_HANDLE)
+			return -1;
+
+		int mask = mIdSlots.length - 1;
+		int i = spread(name) & mask;
+		while (mIdSlots[i] != 0) {
+			if (mIdNames[i] == name)
+				return mIdSlots[i] - 1;
+			i = (i + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	private int findOrAddId(String screenName) {
+		int name = mStrings.intern(screenName);
+		int mask = mIdSlots.length - 1;
+		int i = spread(name) & mask;
+		while (mIdSlots[i] != 0) {
+			if (mIdNames[i] == name)
+				return mIdSlots[i] - 1;
+			i = (i + 1) & mask;
+		}
+
+		int id = mSize;
+		if ((id & (CHUNK_ROWS - 1)) == 0)
+			addChunk();
+		mSize++;
+
+		putInt(SCREEN_NAME, id, name);
+		mIdSlots[i] = id + 1;
+		mIdNames[i] = name;
+		if (mSize * 2 > mIdSlots.length)
+			rehash();
+
+		return id;
+	}
+
+	private void addChunk() {
+		if (mChunkCount == mDoubleColumns[0].length) {
+			for (int c = 0; c < DOUBLE_COLUMNS; c++) {
+				ByteBuffer[] grown = new ByteBuffer[mChunkCount * 2];
+				System.arraycopy(mDoubleColumns[c], 0, grown, 0, mChunkCount);
+				mDoubleColumns[c] = grown;
+			}
+			for (int c = 0; c < INT_COLUMNS; c++) {
+				ByteBuffer[] grown = new ByteBuffer[mChunkCount * 2];
+				System.arraycopy(mIntColumns[c], 0, grown, 0, mChunkCount);
+				mIntColumns[c] = grown;
+			}
+		}
+
+		// Direct buffers start zeroed, so every field of a new row starts at 0.0, 0 or NULL_HANDLE
+		for (int c = 0; c < DOUBLE_COLUMNS; c++) {
+			mDoubleColumns[c][mChunkCount] = ByteBuffer.allocateDirect(CHUNK_ROWS * 8);
+		}
+		for (int c = 0; c < INT_COLUMNS; c++) {
+			mIntColumns[c][mChunkCount] = ByteBuffer.allocateDirect(CHUNK_ROWS * 4);
+		}
+		mChunkCount++;
+	}
+
+	private void rehash() {
+		int[] slots = new int[mIdSlots.length * 2];
+		int[] names = new int[slots.length];
+		int mask = slots.length - 1;
+		for (int j = 0; j < mIdSlots.length; j++) {
+			if (mIdSlots[j] == 0)
+				continue;
+
+			int i = spread(mIdNames[j]) & mask;
+			while (slots[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			slots[i] = mIdSlots[j];
+			names[i] = mIdNames[j];
+		}
+
+		mIdSlots = slots;
+		mIdNames = names;
+	}
+
+	private double getDouble(int column, int id) {
+		return mDoubleColumns[column][id >>> CHUNK_BITS].getDouble((id & (CHUNK_ROWS - 1)) * 8);
+	}
+
+	private void putDouble(int column, int id, double value) {
+		mDoubleColumns[column][id >>> CHUNK_BITS].putDouble((id & (CHUNK_ROWS - 1)) * 8, value);
+	}
+
+	private int getInt(int column, int id) {
+		return mIntColumns[column][id >>> CHUNK_BITS].getInt((id & (CHUNK_ROWS - 1)) * 4);
+	}
+
+	private void putInt(int column, int id, int value) {
+		mIntColumns[column][id >>> CHUNK_BITS].putInt((id & (CHUNK_ROWS - 1)) * 4, value);
+	}
+
+	private static int spread(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,148 @@
+package ca.bitjutsu.kloutacular.v1;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The fields of a user's profile that actually changed, as delivered by the change feed (see
+ * {@link KloutScoreManager#addOnProfileChangedListener(KloutScoreManager.OnProfileChangedListener)}).
+ * Changes carry a sequence number that increases by one with each change delivered, so a consumer
+ * can tell that it has missed none.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class ProfileChange {
+	private final long mSequence;
+	private final KloutProfile mProfile;
+	private final double mOldScore;
+	private final List<String> mTopicsAdded;
+	private final List<String> mTopicsRemoved;
+	private final List<String> mInfluencersAdded;
+	private final List<String> mInfluencersRemoved;
+	private final List<String> mInfluenceesAdded;
+	private final List<String> mInfluenceesRemoved;
+
+	/* package */ ProfileChange(long sequence, KloutProfile profile, double oldScore,
+								List<String> topicsAdded, List<String> topicsRemoved,
+								List<String> influencersAdded, List<String> influencersRemoved,
+								List<String> influenceesAdded, List<String> influenceesRemoved) {
+		mSequence = sequence;
+		mProfile = profile;
+		mOldScore = oldScore;
+		mTopicsAdded = topicsAdded;
+		mTopicsRemoved = topicsRemoved;
+		mInfluencersAdded = influencersAdded;
+		mInfluencersRemoved = influencersRemoved;
+		mInfluenceesAdded = influenceesAdded;
+		mInfluenceesRemoved = influenceesRemoved;
+	}
+
+	/**
+	 * @return the change's sequence number
+	 */
+	public long getSequence() {
+		return mSequence;
+	}
+
+	/**
+	 * @return the user's screen name
+	 */
+	public String getScreenName() {
+		return mProfile.getScreenName();
+	}
+
+	/**
+	 * @return the user's profile as of this change
+	 */
+	public KloutProfile getProfile() {
+		return mProfile;
+	}
+
+	/**
+	 * @return whether the score changed
+	 */
+	public boolean isScoreChanged() {
+		return mOldScore != mProfile.getScore();
+	}
+
+	/**
+	 * @return the score before the change, or <code>0</code> if there wasn't one
+	 */
+	public double getOldScore() {
+		return mOldScore;
+	}
+
+	/**
+	 * @return the score after the change
+	 */
+	public double getNewScore() {
+		return mProfile.getScore();
+	}
+
+	/**
+	 * @return the topics the user gained, possibly none
+	 */
+	public List<String> getTopicsAdded() {
+		return mTopicsAdded;
+	}
+
+	/**
+	 * @return the topics the user lost, possibly none
+	 */
+	public List<String> getTopicsRemoved() {
+		return mTopicsRemoved;
+	}
+
+	/**
+	 * @return the screen names of the user's new influencers, possibly none
+	 */
+	public List<String> getInfluencersAdded() {
+		return mInfluencersAdded;
+	}
+
+	/**
+	 * @return the screen names of users who no longer influence the user, possibly none
+	 */
+	public List<String> getInfluencersRemoved() {
+		return mInfluencersRemoved;
+	}
+
+	/**
+	 * @return the screen names of users the user has started to influence, possibly none
+	 */
+	public List<String> getInfluenceesAdded() {
+		return mInfluenceesAdded;
+	}
+
+	/**
+	 * @return the screen names of users the user no longer influences, possibly none
+	 */
+	public List<String> getInfluenceesRemoved() {
+		return mInfluenceesRemoved;
+	}
+
+	/* package */ static List<String> none() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append('#').append(mSequence).append(' ').append(getScreenName());
+		if (isScoreChanged())
+			sb.append(" score ").append(mOldScore).append(" -> ").append(getNewScore());
+		append(sb, " topics +", mTopicsAdded);
+		append(sb, " topics -", mTopicsRemoved);
+		append(sb, " influencers +", mInfluencersAdded);
+		append(sb, " influencers -", mInfluencersRemoved);
+		append(sb, " influencees +", mInfluenceesAdded);
+		append(sb, " influencees -", mInfluenceesRemoved);
+		return sb.toString();
+	}
+
+	private static void append(StringBuilder sb, String label, List<String> values) {
+		if (!values.isEmpty())
+			sb.append(label).append(values);
+	}
+}
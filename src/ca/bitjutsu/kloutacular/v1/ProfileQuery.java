@@ -0,0 +1,530 @@
+package ca.bitjutsu.kloutacular.v1;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import ca.bitjutsu.kloutacular.util.ParallelScan;
+import ca.bitjutsu.kloutacular.util.ScoreIndex;
+
+/**
+ * A query over the profiles cached by a {@link KloutScoreManager}, such as "users in Klout class 3
+ * scoring between 40 and 60 with the topic 'java', highest true reach first".  Build one with
+ * {@link KloutScoreManager#query()}, narrow it down with the <code>where</code> methods, which must
+ * all hold for a profile to match, then run it with {@link #list()}, {@link #select(Field...)} or
+ * {@link #count()}.
+ *
+ * The cache is scanned in partitions spread over several threads: the {@link OffHeapProfileStore}, if
+ * one is in use, in ranges of profile IDs, with score and class conditions tested against its
+ * columns before any profile is materialised, and the heap-allocated profiles in chunks.  Where
+ * it is cheaper, the {@link ScoreIndex} picks out the candidates instead: the users in a narrow
+ * score range, or in a Klout class.  A topic no cached profile has, according to the
+ * {@link TopicRegistry}, matches nothing without any scan at all.
+ *
+ * Profiles published while a query runs may or may not be seen by it.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class ProfileQuery {
+	// Use the score index when a score range holds at most this fraction of the cache
+	private static final int INDEX_SELECTIVITY = 8;
+	// How many heap profiles, candidates or profile IDs make up a partition
+	private static final int CHUNK_SIZE = 4096;
+	private static final int STORE_CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * The fields of a profile that can be tested, ordered by and selected.  Numeric conditions on a
+	 * graph degree never match a profile whose influencers haven't been fetched.
+	 */
+	public enum Field {
+		SCREEN_NAME(false) {
+			Object get(KloutProfile kp) {
+				return kp.getScreenName();
+			}
+		},
+		SCORE(true) {
+			double value(KloutProfile kp) {
+				return kp.hasScore() ? kp.getScore() : Double.NaN;
+			}
+		},
+		SLOPE(true) {
+			double value(KloutProfile kp) {
+				return kp.hasUser() ? kp.getSlope() : Double.NaN;
+			}
+		},
+		AMPLIFICATION(true) {
+			double value(KloutProfile kp) {
+				return kp.hasUser() ? kp.getAmplification() : Double.NaN;
+			}
+		},
+		TRUE_REACH(true) {
+			double value(KloutProfile kp) {
+				return kp.hasUser() ? kp.getTrueReach() : Double.NaN;
+			}
+		},
+		NETWORK(true) {
+			double value(KloutProfile kp) {
+				return kp.hasUser() ? kp.getNetwork() : Double.NaN;
+			}
+		},
+		ONE_DAY_DELTA(true) {
+			double value(KloutProfile kp) {
+				return kp.hasUser() ? kp.getOneDayDelta() : Double.NaN;
+			}
+		},
+		FIVE_DAY_DELTA(true) {
+			double value(KloutProfile kp) {
+				return kp.hasUser() ? kp.getFiveDayDelta() : Double.NaN;
+			}
+		},
+		KLOUT_CLASS_ID(true) {
+			double value(KloutProfile kp) {
+				return kp.hasUser() ? kp.getKloutClassId() : Double.NaN;
+			}
+		},
+		KLOUT_CLASS(false) {
+			Object get(KloutProfile kp) {
+				return kp.getKloutClass();
+			}
+		},
+		KLOUT_CLASS_DESCRIPTION(false) {
+			Object get(KloutProfile kp) {
+				return kp.getKloutClassDescription();
+			}
+		},
+		USER_DESCRIPTION(false) {
+			Object get(KloutProfile kp) {
+				return kp.getUserDescription();
+			}
+		},
+		/** The number of users the user is influenced by. */
+		INFLUENCED_BY_COUNT(true) {
+			double value(KloutProfile kp) {
+				List<KloutProfile> list = kp.getInfluencedBy();
+				return (list != null) ? list.size() : Double.NaN;
+			}
+		},
+		/** The number of users the user is an influencer of. */
+		INFLUENCER_OF_COUNT(true) {
+			double value(KloutProfile kp) {
+				List<KloutProfile> list = kp.getInfluencerOf();
+				return (list != null) ? list.size() : Double.NaN;
+			}
+		},
+		/** The user's topics; can be selected, but not ordered by. */
+		TOPICS(false) {
+			Object get(KloutProfile kp) {
+				return kp.getTopics();
+			}
+		};
+
+		private final boolean mNumeric;
+
+		private Field(boolean numeric) {
+			mNumeric = numeric;
+		}
+
+		/**
+		 * @return whether the field is a number, which can be tested with {@link ProfileQuery#where(Field, double, double)}
+		 */
+		public boolean isNumeric() {
+			return mNumeric;
+		}
+
+		// Numeric fields give their value here, unboxed; NaN if it hasn't been fetched
+		double value(KloutProfile kp) {
+			throw new IllegalStateException(name() + " is not numeric");
+		}
+
+		Object get(KloutProfile kp) {
+			double value = value(kp);
+			return Double.isNaN(value) ? null : Double.valueOf(value);
+		}
+	}
+
+	private final ProfileTable mProfiles;
+	private final OffHeapProfileStore mStore;
+	private final ScoreIndex mScoreIndex;
+	private final TopicRegistry mTopicRegistry;
+
+	private final EnumMap<Field, double[]> mRanges = new EnumMap<Field, double[]>(Field.class);
+	private final ArrayList<String> mTopics = new ArrayList<String>();
+	private final ArrayList<ParallelScan.Filter<KloutProfile>> mFilters = new ArrayList<ParallelScan.Filter<KloutProfile>>();
+	private final ArrayList<Field> mOrderFields = new ArrayList<Field>();
+	private final ArrayList<Boolean> mOrderDescending = new ArrayList<Boolean>();
+	private int mLimit = Integer.MAX_VALUE;
+	private int mParallelism = Runtime.getRuntime().availableProcessors();
+
+	/* package */ ProfileQuery(ProfileTable profiles, OffHeapProfileStore store, ScoreIndex scoreIndex, TopicRegistry topics) {
+		mProfiles = profiles;
+		mStore = store;
+		mScoreIndex = scoreIndex;
+		mTopicRegistry = topics;
+	}
+
+	/**
+	 * Only match profiles whose numeric field lies in a range.  Several ranges on the same field
+	 * must all hold.  Profiles whose field hasn't been fetched, such as the score of a user whose
+	 * topics alone have been fetched, never match.
+	 * @param field a numeric field
+	 * @param min the lowest value to match
+	 * @param max the highest value to match
+	 * @return this query
+	 */
+	public ProfileQuery where(Field field, double min, double max) {
+		if (!field.isNumeric())
+			throw new IllegalArgumentException(field + " is not numeric");
+
+		double[] range = mRanges.get(field);
+		if (range == null) {
+			mRanges.put(field, new double[] { min, max });
+		} else {
+			range[0] = Math.max(range[0], min);
+			range[1] = Math.min(range[1], max);
+		}
+		return this;
+	}
+
+	/**
+	 * Only match users in a Klout class.
+	 * @param kloutClassId the Klout class ID, as returned by {@link KloutProfile#getKloutClassId()}
+	 * @return this query
+	 */
+	public ProfileQuery whereKloutClass(int kloutClassId) {
+		return where(Field.KLOUT_CLASS_ID, kloutClassId, kloutClassId);
+	}
+
+	/**
+	 * Only match users with a topic.  Several topics must all be held.
+	 * @param topic the topic name
+	 * @return this query
+	 */
+	public ProfileQuery whereTopic(String topic) {
+		mTopics.add(topic);
+		return this;
+	}
+
+	/**
+	 * Only match profiles that pass a filter of your own.  The filter is called from several
+	 * threads at once.
+	 * @param filter the filter
+	 * @return this query
+	 */
+	public ProfileQuery where(ParallelScan.Filter<KloutProfile> filter) {
+		mFilters.add(filter);
+		return this;
+	}
+
+	/**
+	 * Order the results by a field.  Further calls break ties of earlier ones; any remaining ties
+	 * are broken by screen name.  Unknown values come last either way.
+	 * @param field the field to order by
+	 * @param descending whether the highest values come first
+	 * @return this query
+	 */
+	public ProfileQuery orderBy(Field field, boolean descending) {
+		if (field == Field.TOPICS)
+			throw new IllegalArgumentException("Can't order by " + field);
+
+		mOrderFields.add(field);
+		mOrderDescending.add(descending);
+		return this;
+	}
+
+	/**
+	 * Return at most <code>count</code> profiles.  Without an order, any <code>count</code>
+	 * matching profiles are returned, and the scan stops once they are found.
+	 * @param count the most profiles to return
+	 * @return this query
+	 */
+	public ProfileQuery limit(int count) {
+		if (count < 0)
+			throw new IllegalArgumentException("count must not be negative");
+
+		mLimit = count;
+		return this;
+	}
+
+	/**
+	 * Set how many threads scan the cache.  This defaults to the number of cores.
+	 * @param threads the number of threads
+	 * @return this query
+	 */
+	public ProfileQuery setParallelism(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be at least 1");
+
+		mParallelism = threads;
+		return this;
+	}
+
+	/**
+	 * Run the query.
+	 * @return the matching profiles
+	 * @throws InterruptedException if interrupted while the query runs
+	 */
+	public ArrayList<KloutProfile> list() throws InterruptedException {
+		return new ArrayList<KloutProfile>(run(newScan(mLimit)));
+	}
+
+	/**
+	 * Run the query, returning only some fields of each matching profile.
+	 * @param fields the fields to return
+	 * @return a row per matching profile, holding the value of each field in the order given, or
+	 * <code>null</code> where a value is unknown
+	 * @throws InterruptedException if interrupted while the query runs
+	 */
+	public ArrayList<Object[]> select(Field... fields) throws InterruptedException {
+		List<KloutProfile> profiles = run(newScan(mLimit));
+		ArrayList<Object[]> rows = new ArrayList<Object[]>(profiles.size());
+		for (KloutProfile kp : profiles) {
+			Object[] row = new Object[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				row[i] = fields[i].get(kp);
+			}
+			rows.add(row);
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Count the matching profiles, ignoring any limit.
+	 * @return the number of matching profiles
+	 * @throws InterruptedException if interrupted while the query runs
+	 */
+	public int count() throws InterruptedException {
+		ParallelScan<KloutProfile> scan = newScan(0);
+		run(scan);
+		return scan.getCount();
+	}
+
+	private ParallelScan<KloutProfile> newScan(int limit) {
+		ArrayList<ParallelScan.Filter<KloutProfile>> filters = new ArrayList<ParallelScan.Filter<KloutProfile>>();
+		for (Map.Entry<Field, double[]> e : mRanges.entrySet()) {
+			final Field field = e.getKey();
+			final double min = e.getValue()[0];
+			final double max = e.getValue()[1];
+			filters.add(new ParallelScan.Filter<KloutProfile>() {
+				public boolean matches(KloutProfile kp) {
+					double value = field.value(kp);
+					return value >= min && value <= max;
+				}
+			});
+		}
+
+		if (!mTopics.isEmpty()) {
+			final ArrayList<String> topics = new ArrayList<String>(mTopics);
+			filters.add(new ParallelScan.Filter<KloutProfile>() {
+				public boolean matches(KloutProfile kp) {
+					List<String> held = kp.getTopics();
+					return held != null && held.containsAll(topics);
+				}
+			});
+		}
+
+		filters.addAll(mFilters);
+		return new ParallelScan<KloutProfile>(filters, newOrder(), limit, mParallelism);
+	}
+
+	private Comparator<KloutProfile> newOrder() {
+		if (mOrderFields.isEmpty())
+			return null;
+
+		final Field[] fields = mOrderFields.toArray(new Field[mOrderFields.size()]);
+		final boolean[] descending = new boolean[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			descending[i] = mOrderDescending.get(i);
+		}
+
+		return new Comparator<KloutProfile>() {
+			public int compare(KloutProfile a, KloutProfile b) {
+				for (int i = 0; i < fields.length; i++) {
+					int c = fields[i].isNumeric() ? compareValues(fields[i].value(a), fields[i].value(b), descending[i])
+							: compareObjects(fields[i].get(a), fields[i].get(b), descending[i]);
+					if (c != 0)
+						return c;
+				}
+				return a.getScreenName().compareTo(b.getScreenName());
+			}
+		};
+	}
+
+	private static int compareValues(double a, double b, boolean descending) {
+		boolean unknownA = Double.isNaN(a);
+		boolean unknownB = Double.isNaN(b);
+		if (unknownA || unknownB)
+			return (unknownA == unknownB) ? 0 : (unknownA ? 1 : -1);
+		return descending ? Double.compare(b, a) : Double.compare(a, b);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compareObjects(Object a, Object b, boolean descending) {
+		if (a == null || b == null)
+			return (a == b) ? 0 : ((a == null) ? 1 : -1);
+		int c = ((Comparable<Object>) a).compareTo(b);
+		return descending ? -c : c;
+	}
+
+	/**
+	 * Feed the scan its partitions, from whichever source is cheapest, and wait for its results.
+	 */
+	private List<KloutProfile> run(ParallelScan<KloutProfile> scan) throws InterruptedException {
+		boolean finished = false;
+		try {
+			if (!isEmpty()) {
+				List<ScoreIndex.Entry> candidates = indexCandidates();
+				if (candidates != null) {
+					scanCandidates(scan, candidates);
+				} else {
+					if (mStore != null)
+						scanStore(scan, mStore);
+					scanTable(scan);
+				}
+			}
+
+			List<KloutProfile> results = scan.finish();
+			finished = true;
+			return results;
+		} finally {
+			if (!finished)
+				scan.cancel();
+		}
+	}
+
+	/**
+	 * @return whether the query can be seen to match nothing without a scan
+	 */
+	private boolean isEmpty() {
+		for (double[] range : mRanges.values()) {
+			if (!(range[0] <= range[1]))
+				return true;
+		}
+		for (String topic : mTopics) {
+			if (!mTopicRegistry.contains(topic))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Pick out the candidates for the query from the score index, if it narrows them down enough
+	 * to beat a scan.
+	 * @return the candidates or <code>null</code> to scan the whole cache
+	 */
+	private List<ScoreIndex.Entry> indexCandidates() {
+		// Profiles without a fetched score (just topics, say) aren't indexed, but they never match a
+		// score range either
+		double[] scores = mRanges.get(Field.SCORE);
+		if (scores != null) {
+			int size = mProfiles.size() + ((mStore != null) ? mStore.size() : 0);
+			if (mScoreIndex.countRange(scores[0], scores[1]) <= size / INDEX_SELECTIVITY)
+				return mScoreIndex.getRange(scores[0], scores[1], Integer.MAX_VALUE);
+		}
+
+		// Users are grouped by class once their user object has been fetched, and only then have one
+		double[] classes = mRanges.get(Field.KLOUT_CLASS_ID);
+		if (classes != null && classes[0] == classes[1] && classes[0] != ScoreIndex.NO_GROUP && classes[0] == (int) classes[0])
+			return mScoreIndex.getTop(Integer.MAX_VALUE, (int) classes[0]);
+
+		return null;
+	}
+
+	private void scanCandidates(ParallelScan<KloutProfile> scan, List<ScoreIndex.Entry> candidates) throws InterruptedException {
+		final OffHeapProfileStore store = mStore;
+		final double[] scores = mRanges.get(Field.SCORE);
+		final double[] classes = mRanges.get(Field.KLOUT_CLASS_ID);
+		for (int from = 0; from < candidates.size() && !scan.isDone(); from += CHUNK_SIZE) {
+			final List<ScoreIndex.Entry> chunk = candidates.subList(from, Math.min(from + CHUNK_SIZE, candidates.size()));
+			scan.submit(new ParallelScan.Partition<KloutProfile>() {
+				public void scan(ParallelScan.Matches<KloutProfile> matches) {
+					for (ScoreIndex.Entry e : chunk) {
+						KloutProfile kp = mProfiles.get(e.getKey());
+						int id = (store != null) ? store.getProfileId(e.getKey()) : -1;
+						if (id != -1) {
+							if (!inColumns(store, id, scores, classes))
+								continue;
+
+							// Attach whatever we hold on the heap for the user, as the manager does
+							KloutProfile stored = store.getProfile(id);
+							kp = (kp != null) ? stored.withGraphOf(kp) : stored;
+						}
+						if (kp != null && !matches.offer(kp))
+							return;
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Test the score and class conditions against a stored user's columns, so users who fail
+	 * them are never materialised.
+	 */
+	private static boolean inColumns(OffHeapProfileStore store, int id, double[] scores, double[] classes) {
+		if (scores != null) {
+			double score = store.getScore(id);
+			if (!(score >= scores[0] && score <= scores[1]))
+				return false;
+		}
+		if (classes != null) {
+			int kclassId = store.getKloutClassId(id);
+			if (!(kclassId >= classes[0] && kclassId <= classes[1]))
+				return false;
+		}
+		return true;
+	}
+
+	private void scanStore(ParallelScan<KloutProfile> scan, final OffHeapProfileStore store) throws InterruptedException {
+		final double[] scores = mRanges.get(Field.SCORE);
+		final double[] classes = mRanges.get(Field.KLOUT_CLASS_ID);
+		int size = store.size();
+		for (int from = 0; from < size && !scan.isDone(); from += STORE_CHUNK_SIZE) {
+			final int start = from;
+			final int end = Math.min(from + STORE_CHUNK_SIZE, size);
+			scan.submit(new ParallelScan.Partition<KloutProfile>() {
+				public void scan(ParallelScan.Matches<KloutProfile> matches) {
+					for (int id = start; id < end; id++) {
+						if ((id & 0xfff) == 0 && !matches.isOpen())
+							return;
+
+						if (!inColumns(store, id, scores, classes))
+							continue;
+
+						KloutProfile kp = store.getProfile(id);
+						KloutProfile heap = mProfiles.get(kp.getScreenName());
+						if (!matches.offer((heap != null) ? kp.withGraphOf(heap) : kp))
+							return;
+					}
+				}
+			});
+		}
+	}
+
+	private void scanTable(ParallelScan<KloutProfile> scan) throws InterruptedException {
+		final OffHeapProfileStore store = mStore;
+		Iterator<KloutProfile> it = mProfiles.iterator();
+		while (it.hasNext() && !scan.isDone()) {
+			final ArrayList<KloutProfile> chunk = new ArrayList<KloutProfile>(CHUNK_SIZE);
+			while (it.hasNext() && chunk.size() < CHUNK_SIZE) {
+				chunk.add(it.next());
+			}
+
+			scan.submit(new ParallelScan.Partition<KloutProfile>() {
+				public void scan(ParallelScan.Matches<KloutProfile> matches) {
+					for (KloutProfile kp : chunk) {
+						// Users in the store have been scanned with it
+						if (store != null && store.getProfileId(kp.getScreenName()) != -1)
+							continue;
+						if (!matches.offer(kp))
+							return;
+					}
+				}
+			});
+		}
+	}
+}
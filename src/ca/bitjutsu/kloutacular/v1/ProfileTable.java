@@ -0,0 +1,125 @@
+package ca.bitjutsu.kloutacular.v1;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The cache of published {@link KloutProfile} snapshots, keyed by screen name.  Readers never
+ * lock: they get whichever snapshot was most recently published for a user.  Writers build a new
+ * snapshot from the current one and publish it with an atomic swap of that user's entry,
+ * retrying if another writer got there first.
+ *
+ * A few of the most recent snapshots of each user can optionally be kept, so that a specific
+ * version of a profile can be read back.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+/* package */ class ProfileTable {
+	private ConcurrentHashMap<String, KloutProfile[]> mProfiles;
+	private volatile int mHistoryDepth;
+
+	/* package */ ProfileTable() {
+		mProfiles = new ConcurrentHashMap<String, KloutProfile[]>();
+		mHistoryDepth = 1;
+	}
+
+	/**
+	 * Computes a new snapshot of a profile from the currently published one.  Mutations may be
+	 * run more than once if writers race, so they must not have side effects.
+	 */
+	/* package */ interface Mutation {
+		/**
+		 * @param current the currently published profile, or <code>null</code> if there is none
+		 * @return the profile to publish in its place
+		 */
+		public KloutProfile apply(KloutProfile current);
+	}
+
+	/* package */ KloutProfile get(String screenName) {
+		KloutProfile[] history = mProfiles.get(screenName);
+		return (history != null) ? history[0] : null;
+	}
+
+	/* package */ KloutProfile get(String screenName, long version) {
+		KloutProfile[] history = mProfiles.get(screenName);
+		if (history == null)
+			return null;
+
+		for (KloutProfile kp : history) {
+			if (kp.getVersion() == version)
+				return kp;
+		}
+
+		return null;
+	}
+
+	/* package */ KloutProfile update(String screenName, Mutation mutation) {
+		while (true) {
+			KloutProfile[] history = mProfiles.get(screenName);
+			KloutProfile next = mutation.apply((history != null) ? history[0] : null);
+			KloutProfile[] nextHistory = push(history, next);
+
+			if (history == null) {
+				if (mProfiles.putIfAbsent(screenName, nextHistory) == null)
+					return next;
+			} else if (mProfiles.replace(screenName, history, nextHistory)) {
+				return next;
+			}
+		}
+	}
+
+	/* package */ Collection<KloutProfile> values() {
+		ArrayList<KloutProfile> values = new ArrayList<KloutProfile>(mProfiles.size());
+		for (KloutProfile[] history : mProfiles.values()) {
+			values.add(history[0]);
+		}
+
+		return values;
+	}
+
+	/**
+	 * Iterate over the published profiles without copying them.  As with any iteration of a
+	 * {@link ConcurrentHashMap}, profiles published while iterating may or may not be seen.
+	 */
+	/* package */ Iterator<KloutProfile> iterator() {
+		final Iterator<KloutProfile[]> histories = mProfiles.values().iterator();
+		return new Iterator<KloutProfile>() {
+			public boolean hasNext() {
+				return histories.hasNext();
+			}
+
+			public KloutProfile next() {
+				return histories.next()[0];
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/* package */ int size() {
+		return mProfiles.size();
+	}
+
+	/* package */ void setHistoryDepth(int depth) {
+		if (depth < 1)
+			throw new IllegalArgumentException("History depth must be at least 1");
+
+		mHistoryDepth = depth;
+	}
+
+	private KloutProfile[] push(KloutProfile[] history, KloutProfile next) {
+		int depth = mHistoryDepth;
+		if (history == null || depth == 1)
+			return new KloutProfile[] { next };
+
+		KloutProfile[] nextHistory = new KloutProfile[Math.min(history.length + 1, depth)];
+		nextHistory[0] = next;
+		System.arraycopy(history, 0, nextHistory, 1, nextHistory.length - 1);
+		return nextHistory;
+	}
+}
@@ -0,0 +1,50 @@
+package ca.bitjutsu.kloutacular.v1;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry of canonical topic names.  The same handful of topics show up for a great many users,
+ * so every profile shares the single <code>String</code> instance held here instead of keeping the
+ * copy that was decoded from its own response.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class TopicRegistry {
+	private ConcurrentHashMap<String, String> mTopics;
+
+	/* package */ TopicRegistry() {
+		mTopics = new ConcurrentHashMap<String, String>();
+	}
+
+	/**
+	 * Get the canonical instance of a topic name, registering it if we haven't seen it before.
+	 * @param topic the topic name as decoded from a response
+	 * @return the shared instance of the topic name
+	 */
+	/* package */ String intern(String topic) {
+		String existing = mTopics.get(topic);
+		if (existing != null)
+			return existing;
+
+		existing = mTopics.putIfAbsent(topic, topic);
+		return (existing != null) ? existing : topic;
+	}
+
+	/**
+	 * Checks whether any fetched profile has had the given topic.
+	 * @param topic the topic name
+	 * @return whether or not the topic has been seen
+	 */
+	public boolean contains(String topic) {
+		return mTopics.containsKey(topic);
+	}
+
+	/**
+	 * Get the number of distinct topics held by the registry.
+	 * @return the number of registered topics
+	 */
+	public int size() {
+		return mTopics.size();
+	}
+}
@@ -0,0 +1,54 @@
+package ca.bitjutsu.kloutacular.v1;
+
+import ca.bitjutsu.kloutacular.util.Priority;
+import ca.bitjutsu.kloutacular.util.ReplayDriver;
+import ca.bitjutsu.kloutacular.util.ReplayTransport;
+import ca.bitjutsu.kloutacular.util.TrafficCapture;
+
+/**
+ * Replays traffic recorded with {@link KloutScoreManager#startRecording(java.io.File)} through a
+ * manager, offline.  Each recorded call is turned back into the request that made it, forced so
+ * that it is made again rather than answered from the cache:
+ * <pre>
+ * TrafficCapture capture = TrafficCapture.read(file);
+ * manager.setTransport(new ReplayTransport(capture, 10));
+ * long millis = new TrafficReplayer(manager).replay(capture, 10);
+ * </pre>
+ * and the manager's {@link KloutScoreManager#getWorkerPool() worker pool} reports the latency and
+ * throughput it achieved.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class TrafficReplayer extends ReplayDriver {
+	private KloutScoreManager mManager;
+
+	/**
+	 * @param manager the manager to replay through, already using a {@link ReplayTransport}
+	 */
+	public TrafficReplayer(KloutScoreManager manager) {
+		super(manager.getWorkerPool());
+		mManager = manager;
+	}
+
+	@Override
+	protected void issue(TrafficCapture.Call call) {
+		String url = call.getUrl();
+		int users = url.indexOf("users=");
+		if (users < 0)
+			return;
+		int end = url.indexOf('&', users);
+		String screenName = url.substring(users + "users=".length(), (end < 0) ? url.length() : end);
+
+		if (url.contains("/klout.json"))
+			mManager.requestKlout(screenName, true, Priority.NORMAL);
+		else if (url.contains("/users/show.json"))
+			mManager.requestUser(screenName, true, Priority.NORMAL);
+		else if (url.contains("/users/topics.json"))
+			mManager.requestTopics(screenName, true, Priority.NORMAL);
+		else if (url.contains("/soi/influenced_by.json"))
+			mManager.requestInfluencedBy(screenName, true, Priority.NORMAL);
+		else if (url.contains("/soi/influencer_of.json"))
+			mManager.requestInfluencerOf(screenName, true, Priority.NORMAL);
+	}
+}
@@ -0,0 +1,116 @@
+package ca.bitjutsu.kloutacular.v1;
+
+import java.nio.charset.Charset;
+
+import ca.bitjutsu.kloutacular.util.StringArena;
+
+/**
+ * The string fields of a user object: the user's description, and their Klout class and its
+ * description.  Most profiles are only ever asked for their scores, so these are kept encoded,
+ * either packed together as UTF-8 or as handles into the profile store's {@link StringArena}, and
+ * decoded into strings the first time any of them is read.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+/* package */ abstract class UserText {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// Decoded on first read; racing readers may each decode, but they get equal strings
+	private volatile String[] mDecoded;
+
+	/**
+	 * @return the user's fields packed as UTF-8
+	 */
+	/* package */ static UserText of(String userDesc, String kclass, String kclassDesc) {
+		return new Packed(userDesc, kclass, kclassDesc);
+	}
+
+	/**
+	 * @return the user's fields as handles into an arena, which must outlive the text
+	 */
+	/* package */ static UserText of(StringArena arena, int userDesc, int kclass, int kclassDesc) {
+		return new Arena(arena, userDesc, kclass, kclassDesc);
+	}
+
+	/* package */ String getUserDescription() {
+		return decoded()[0];
+	}
+
+	/* package */ String getKloutClass() {
+		return decoded()[1];
+	}
+
+	/* package */ String getKloutClassDescription() {
+		return decoded()[2];
+	}
+
+	private String[] decoded() {
+		String[] decoded = mDecoded;
+		if (decoded == null) {
+			decoded = decode();
+			mDecoded = decoded;
+		}
+		return decoded;
+	}
+
+	/**
+	 * @return the user description, class and class description, in that order
+	 */
+	protected abstract String[] decode();
+
+	private static class Packed extends UserText {
+		private final byte[] mBytes;
+		// Where the class and class description start in mBytes; the user description starts at 0
+		private final int mClassStart;
+		private final int mClassDescStart;
+		// A bit for each field that is null, in the order above
+		private final byte mNulls;
+
+		private Packed(String userDesc, String kclass, String kclassDesc) {
+			byte[] a = encode(userDesc);
+			byte[] b = encode(kclass);
+			byte[] c = encode(kclassDesc);
+			mClassStart = a.length;
+			mClassDescStart = a.length + b.length;
+			mBytes = new byte[mClassDescStart + c.length];
+			System.arraycopy(a, 0, mBytes, 0, a.length);
+			System.arraycopy(b, 0, mBytes, mClassStart, b.length);
+			System.arraycopy(c, 0, mBytes, mClassDescStart, c.length);
+			mNulls = (byte) ((userDesc == null ? 1 : 0) | (kclass == null ? 2 : 0) | (kclassDesc == null ? 4 : 0));
+		}
+
+		protected String[] decode() {
+			return new String[] { decode(0, 0, mClassStart), decode(1, mClassStart, mClassDescStart),
+					decode(2, mClassDescStart, mBytes.length) };
+		}
+
+		private String decode(int field, int start, int end) {
+			if ((mNulls & (1 << field)) != 0)
+				return null;
+			return new String(mBytes, start, end - start, UTF_8);
+		}
+
+		private static byte[] encode(String s) {
+			return (s == null) ? new byte[0] : s.getBytes(UTF_8);
+		}
+	}
+
+	private static class Arena extends UserText {
+		private final StringArena mArena;
+		private final int mUserDesc;
+		private final int mClass;
+		private final int mClassDesc;
+
+		private Arena(StringArena arena, int userDesc, int kclass, int kclassDesc) {
+			mArena = arena;
+			mUserDesc = userDesc;
+			mClass = kclass;
+			mClassDesc = kclassDesc;
+		}
+
+		protected String[] decode() {
+			return new String[] { mArena.get(mUserDesc), mArena.get(mClass), mArena.get(mClassDesc) };
+		}
+	}
+}
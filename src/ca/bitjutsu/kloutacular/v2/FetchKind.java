@@ -0,0 +1,13 @@
+package ca.bitjutsu.kloutacular.v2;
+
+/**
+ * The kinds of request that can be made to the Klout API for a user, once their Klout ID is known.
+ * 
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+/* package */ enum FetchKind {
+	SCORE,
+	INFLUENCE,
+	TOPICS
+}
@@ -0,0 +1,255 @@
+package ca.bitjutsu.kloutacular.v2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import ca.bitjutsu.kloutacular.util.LaneQueue;
+import ca.bitjutsu.kloutacular.util.NegativeCache;
+import ca.bitjutsu.kloutacular.util.Priority;
+import ca.bitjutsu.kloutacular.util.Promotable;
+import ca.bitjutsu.kloutacular.util.Sheddable;
+
+/**
+ * Resolves Twitter screen names to Klout IDs, as a stage of its own ahead of the requests that
+ * need them.  Each name is looked up at most once at a time: requests made while a lookup is in
+ * flight wait on that lookup rather than starting their own, and are all dispatched as soon as it
+ * completes; a lookup still queued is promoted if a more urgent request joins it.  Names that Klout doesn't know, or has suspended, are remembered for a while in a
+ * {@link NegativeCache}, so they aren't looked up again on every request.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+/* package */ class IdentityResolver {
+	// How many unknown names to size the negative cache's filter for
+	private static final int EXPECTED_UNKNOWN = 10000;
+
+	private ConcurrentHashMap<String, String> mIdMapping;
+	private NegativeCache mUnknown;
+	private ConcurrentHashMap<String, Pending> mLookups;
+	private Lookup mLookup;
+	private Executor mExecutor;
+
+	/* package */ IdentityResolver(ConcurrentHashMap<String, String> idMapping, Lookup lookup, Executor executor,
+									long negativeTtl) {
+		mIdMapping = idMapping;
+		mUnknown = new NegativeCache(negativeTtl, EXPECTED_UNKNOWN);
+		mLookups = new ConcurrentHashMap<String, Pending>();
+		mLookup = lookup;
+		mExecutor = executor;
+	}
+
+	/**
+	 * Looks up the Klout ID for a screen name.  Should not ever be called on the main thread.
+	 */
+	/* package */ interface Lookup {
+		/**
+		 * @param screenName the Twitter handle to look up
+		 * @return the Klout ID, or <code>null</code> if Klout doesn't know the screen name
+		 * @throws IOException if the lookup failed, and may succeed if tried again
+		 */
+		public String lookup(String screenName) throws IOException;
+	}
+
+	/**
+	 * Receives the result of resolving a screen name.
+	 */
+	/* package */ interface Callback {
+		/**
+		 * @return whether the request waiting on the lookup still wants its result; a lookup nobody
+		 * wants any more isn't made
+		 */
+		public boolean isWanted();
+
+		public void onResolved(String screenName, String kloutId);
+
+		/**
+		 * @param unknown <code>true</code> if Klout doesn't know the screen name, <code>false</code> if the lookup failed
+		 */
+		public void onFailed(String screenName, boolean unknown);
+	}
+
+	/**
+	 * A lookup in flight and the requests waiting on it.
+	 */
+	private static class Pending {
+		private final ArrayList<Callback> mWaiting = new ArrayList<Callback>(3);
+		// The priority of the most urgent request waiting, and the task making the lookup once there is one
+		private Priority mPriority;
+		private LookupTask mTask;
+
+		private Pending(Callback callback, Priority priority) {
+			mWaiting.add(callback);
+			mPriority = priority;
+		}
+	}
+
+	/**
+	 * Resolve a screen name.  If the Klout ID is already known, or the screen name is known not to
+	 * exist, the callback is called straight away on the calling thread; otherwise it is called on
+	 * the thread that made the lookup.
+	 * @param screenName the Twitter handle to resolve
+	 * @param priority the priority to make the lookup at, if one is needed
+	 * @param callback the callback to pass the result to
+	 */
+	/* package */ void resolve(String screenName, Priority priority, Callback callback) {
+		String id = mIdMapping.get(screenName);
+		if (id != null) {
+			callback.onResolved(screenName, id);
+			return;
+		}
+
+		if (isUnknown(screenName)) {
+			callback.onFailed(screenName, true);
+			return;
+		}
+
+		Pending pending = new Pending(callback, priority);
+		while (true) {
+			Pending inFlight = mLookups.putIfAbsent(screenName, pending);
+			if (inFlight == null)
+				break;
+
+			LookupTask promote = null;
+			synchronized (inFlight) {
+				// A completed lookup is removed from mLookups before its callbacks are run
+				if (mLookups.get(screenName) == inFlight) {
+					inFlight.mWaiting.add(callback);
+					if (Priority.max(inFlight.mPriority, priority) != inFlight.mPriority) {
+						inFlight.mPriority = priority;
+						// Not queued yet: the task will be made at the new priority
+						promote = inFlight.mTask;
+					}
+				} else {
+					inFlight = null;
+				}
+			}
+
+			if (inFlight != null) {
+				if (promote != null)
+					promote.promote(priority);
+				return;
+			}
+
+			// The lookup we found has just completed, so its result may now be cached
+			id = mIdMapping.get(screenName);
+			if (id != null) {
+				callback.onResolved(screenName, id);
+				return;
+			}
+
+			if (isUnknown(screenName)) {
+				callback.onFailed(screenName, true);
+				return;
+			}
+		}
+
+		LookupTask task;
+		synchronized (pending) {
+			task = new LookupTask(screenName, pending.mPriority);
+			pending.mTask = task;
+		}
+		mExecutor.execute(task);
+	}
+
+	/**
+	 * Checks if a screen name is known not to exist.
+	 * @param screenName the Twitter handle to check
+	 * @return whether or not a recent lookup found no Klout ID for the screen name
+	 */
+	/* package */ boolean isUnknown(String screenName) {
+		return mUnknown.contains(screenName);
+	}
+
+	/**
+	 * Forget a screen name's Klout ID and treat it as unknown, because Klout no longer has a user for
+	 * it, for example after the account has been suspended or deleted.
+	 * @param screenName the Twitter handle
+	 */
+	/* package */ void markUnknown(String screenName) {
+		mIdMapping.remove(screenName);
+		mUnknown.add(screenName);
+	}
+
+	/* package */ void setNegativeTtl(long millis) {
+		mUnknown.setTtl(millis);
+	}
+
+	private class LookupTask implements Runnable, Promotable, Sheddable {
+		private String mScreenName;
+		private volatile Priority mPriority;
+
+		public LookupTask(String screenName, Priority priority) {
+			mScreenName = screenName;
+			mPriority = priority;
+		}
+
+		public Priority getPriority() {
+			return mPriority;
+		}
+
+		public synchronized void promote(Priority priority) {
+			mPriority = Priority.max(mPriority, priority);
+			LaneQueue.promote(mExecutor, this);
+		}
+
+		public void shed() {
+			// Fail the waiting requests, so the lookup isn't left in flight forever
+			complete(mScreenName, null, false);
+		}
+
+		@Override
+		public void run() {
+			String id = null;
+			boolean unknown = false;
+			try {
+				// Every request waiting on the lookup has been cancelled or run out of time
+				if (!isWanted(mScreenName))
+					return;
+
+				id = mLookup.lookup(mScreenName);
+				if (id != null) {
+					mIdMapping.put(mScreenName, id);
+				} else {
+					unknown = true;
+					mUnknown.add(mScreenName);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				complete(mScreenName, id, unknown);
+			}
+		}
+	}
+
+	private boolean isWanted(String screenName) {
+		Pending pending = mLookups.get(screenName);
+		if (pending == null)
+			return false;
+
+		synchronized (pending) {
+			for (Callback callback : pending.mWaiting) {
+				if (callback.isWanted())
+					return true;
+			}
+			return false;
+		}
+	}
+
+	private void complete(String screenName, String id, boolean unknown) {
+		Pending pending = mLookups.remove(screenName);
+		ArrayList<Callback> callbacks;
+		// Nobody can add themselves to the list once it has been removed
+		synchronized (pending) {
+			callbacks = new ArrayList<Callback>(pending.mWaiting);
+		}
+
+		for (Callback callback : callbacks) {
+			if (id != null)
+				callback.onResolved(screenName, id);
+			else
+				callback.onFailed(screenName, unknown);
+		}
+	}
+}
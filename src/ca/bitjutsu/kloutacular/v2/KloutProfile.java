@@ -19,6 +19,9 @@ public class KloutProfile {
 	private ArrayList<KloutProfile> mInfluencedBy;
 	private ArrayList<KloutProfile> mInfluencerOf;
 	private ArrayList<Topic> mTopics;
+	// Which of the numbers above have been fetched, rather than left at zero
+	private boolean mHasScore;
+	private boolean mHasChanges;
 	
 	/* package */ KloutProfile(String screenName, double score, double daychange, double weekchange, double monthchange) {
 		mScreenName = screenName;
@@ -26,11 +29,14 @@ public class KloutProfile {
 		mDayChange = daychange;
 		mWeekChange = weekchange;
 		mMonthChange = monthchange;
+		mHasScore = true;
+		mHasChanges = true;
 	}
 	
 	/* package */ KloutProfile(String screenName, double score) {
 		mScreenName = screenName;
 		mScore = score;
+		mHasScore = true;
 	}
 	
 	/* package */ KloutProfile(String screenName, ArrayList<KloutProfile> influencers, ArrayList<KloutProfile> influencees) {
@@ -76,15 +82,26 @@ public class KloutProfile {
 		return mTopics;
 	}
 	
+	/* package */ boolean hasScore() {
+		return mHasScore;
+	}
+	
+	/* package */ boolean hasChanges() {
+		return mHasChanges;
+	}
+	
 	/* package */ void updateScore(double score, double daychange, double weekchange, double monthchange) {
 		mScore = score;
 		mDayChange = daychange;
 		mWeekChange = weekchange;
 		mMonthChange = monthchange;
+		mHasScore = true;
+		mHasChanges = true;
 	}
 	
 	/* package */ void updateScore(double score) {
 		mScore = score;
+		mHasScore = true;
 	}
 	
 	/* package */ void updateScore(ArrayList<KloutProfile> influencers, ArrayList<KloutProfile> influencees) {
@@ -1,22 +1,44 @@
 package ca.bitjutsu.kloutacular.v2;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
-import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpResponseException;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import ca.bitjutsu.kloutacular.util.AdaptiveExecutor;
+import ca.bitjutsu.kloutacular.util.BreakerTransport;
+import ca.bitjutsu.kloutacular.util.CachingTransport;
+import ca.bitjutsu.kloutacular.util.CircuitBreaker;
+import ca.bitjutsu.kloutacular.util.CircuitOpenException;
+import ca.bitjutsu.kloutacular.util.Endpoint;
+import ca.bitjutsu.kloutacular.util.HttpTransport;
+import ca.bitjutsu.kloutacular.util.KeyPool;
+import ca.bitjutsu.kloutacular.util.KeyedTransport;
+import ca.bitjutsu.kloutacular.util.LaneQueue;
+import ca.bitjutsu.kloutacular.util.PrefetchBudget;
+import ca.bitjutsu.kloutacular.util.Prioritized;
+import ca.bitjutsu.kloutacular.util.Priority;
+import ca.bitjutsu.kloutacular.util.RefreshScheduler;
+import ca.bitjutsu.kloutacular.util.RequestHandle;
+import ca.bitjutsu.kloutacular.util.ResponseCache;
+import ca.bitjutsu.kloutacular.util.ScoreIndex;
+import ca.bitjutsu.kloutacular.util.ShardGroup;
+import ca.bitjutsu.kloutacular.util.SharedCache;
+import ca.bitjutsu.kloutacular.util.Sheddable;
+import ca.bitjutsu.kloutacular.util.Trace;
+import ca.bitjutsu.kloutacular.util.Tracer;
+import ca.bitjutsu.kloutacular.util.TrafficRecorder;
+import ca.bitjutsu.kloutacular.util.Transport;
+
 /**
  * 
  * KloutProfileManager fetches, stores, caches, and returns Klout scores for users.
@@ -36,26 +58,87 @@ import org.json.JSONObject;
  * 
  */
 public class KloutScoreManager {
-	//TODO: pick a number of threads that isn't just an arbitrary choice
+	// How many fetch threads to start with, and the bounds the pool is then sized within
 	private static final int THREAD_COUNT = 10;
+	private static final int MIN_THREADS = 2;
+	private static final int MAX_THREADS = 64;
+	// How long to remember that Klout doesn't know a screen name, in milliseconds
+	private static final long UNKNOWN_ID_TTL = 10 * 60 * 1000;
+	// How long a queued fetch may wait before it is served ahead of more urgent work, in milliseconds
+	private static final long AGING_LIMIT = 5000;
+	// Klout's default developer limits for each API key
+	private static final double KEY_CALLS_PER_SECOND = 10;
+	private static final int KEY_DAILY_QUOTA = 10000;
+	// The most fetches and lookups to queue; beyond this, the least urgent are shed
+	private static final int QUEUE_CAPACITY = 10000;
 	
 	private static KloutScoreManager sInstance;
 	private boolean mIsDebugMode;
-	private HashMap<String, String> mIdMapping;
-	private HashMap<String, KloutProfile> mScores;
+	private ConcurrentHashMap<String, String> mIdMapping;
+	private IdentityResolver mIdentityResolver;
+	private ConcurrentHashMap<String, KloutProfile> mScores;
 	private ArrayList<OnScoreUpdatedListener> mUpdateListeners;
-	private ExecutorService mExecutor;
-	private String mApiKey;
+	private AdaptiveExecutor mExecutor;
+	private TopicRegistry mTopicRegistry;
+	private ScoreIndex mScoreIndex;
+	private RefreshScheduler mRefreshScheduler;
+	private volatile ShardGroup mShards;
+	private volatile Transport mTransport;
+	private BreakerTransport mBreakers;
+	private KeyPool mKeyPool;
+	private TrafficRecorder mRecorder;
+	// Calls that get past any shared cache go to this, the breakers unless a transport was set
+	private Transport mUpstream;
+	private SharedCache mSharedCache;
+	private long mSharedCacheMaxAge;
+	private Tracer mTracer;
+	private ScheduledExecutorService mScheduler;
+	private PrefetchBudget mPrefetch;
 	
 	private KloutScoreManager(String apiKey, boolean debug) {
-		mApiKey = apiKey;
+		mKeyPool = new KeyPool(KEY_CALLS_PER_SECOND, KEY_DAILY_QUOTA);
+		mKeyPool.add(apiKey);
+		mPrefetch = new PrefetchBudget(mKeyPool, 0);
+		mTracer = new Tracer();
 		// TODO: print times for requests and such if debug = true
 		mIsDebugMode = debug;
 		mUpdateListeners = new ArrayList<OnScoreUpdatedListener>();
 		//TODO: retrieve mappings from disk
-		mIdMapping = new HashMap<String, String>();
-		mScores = new HashMap<String, KloutProfile>();
-		mExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
+		mIdMapping = new ConcurrentHashMap<String, String>();
+		mScores = new ConcurrentHashMap<String, KloutProfile>();
+		mTopicRegistry = new TopicRegistry();
+		mScoreIndex = new ScoreIndex();
+		mBreakers = new BreakerTransport(new KeyedTransport(mKeyPool, new HttpTransport()), new BreakerTransport.Classifier() {
+			public Endpoint classify(String url) {
+				if (url.contains("/identity.json/"))
+					return Endpoint.IDENTITY;
+				if (url.endsWith("/score"))
+					return Endpoint.SCORE;
+				if (url.endsWith("/topics"))
+					return Endpoint.TOPICS;
+				if (url.endsWith("/influence"))
+					return Endpoint.INFLUENCE;
+				return Endpoint.USER;
+			}
+		}, mKeyPool);
+		mUpstream = mBreakers;
+		mTransport = mBreakers;
+		mExecutor = new AdaptiveExecutor(THREAD_COUNT, MIN_THREADS, MAX_THREADS,
+				new LaneQueue(AGING_LIMIT, QUEUE_CAPACITY), new LaneQueue.ShedPolicy(), mKeyPool);
+		mScheduler = Executors.newSingleThreadScheduledExecutor();
+		mExecutor.startTuning(mScheduler);
+		mIdentityResolver = new IdentityResolver(mIdMapping, new IdentityResolver.Lookup() {
+			public String lookup(String screenName) throws IOException {
+				return fetchKloutId(screenName);
+			}
+		}, mExecutor, UNKNOWN_ID_TTL);
+		mRefreshScheduler = new RefreshScheduler(new RefreshScheduler.Refresher() {
+			public void refresh(String screenName) {
+				// Straight to the resolver, so the refresh doesn't count as an access
+				mIdentityResolver.resolve(screenName, Priority.BACKGROUND, new DependentFetch(FetchKind.SCORE, Priority.BACKGROUND, true, RequestHandle.NONE,
+						mTracer.start("refresh", screenName)));
+			}
+		}, mScheduler, 0);
 	}
 	
 	/**
@@ -68,7 +151,8 @@ public class KloutScoreManager {
 	}
 	
 	/**
-	 * Obtain the global KloutProfileManager instance.
+	 * Obtain the global KloutProfileManager instance.  Each different API key passed in is added
+	 * to the instance's {@link KeyPool}, rather than replacing the last one.
 	 * @param apiKey the Klout API key to use
 	 * @param debug specify whether we should print load times to the log
 	 * @return the global KloutProfileManager instance
@@ -96,13 +180,31 @@ public class KloutScoreManager {
 	 * @param forceRequery force a refresh of the Klout score
 	 */
 	public void requestKlout(String screenName, boolean forceRequery) {
-		// TODO: check age of score and requery if necessary
-		// If we already have a cached score, and we aren't requerying, return the cached score
-		if (haveScore(screenName) && !forceRequery) {
-			scoreUpdate(mScores.get(screenName));
-		} else {
-			mExecutor.execute(new KloutProfileFetcher(screenName));
-		}
+		requestKlout(screenName, forceRequery, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request a user's Klout score at the given priority.
+	 * @param screenName the Twitter handle of the user
+	 * @param forceRequery force a refresh of the Klout score
+	 * @param priority how urgently the score is needed
+	 */
+	public void requestKlout(String screenName, boolean forceRequery, Priority priority) {
+		request(screenName, FetchKind.SCORE, forceRequery, priority, RequestHandle.NONE);
+	}
+	
+	/**
+	 * Request a user's Klout score at the given priority, giving up if the score can't be fetched in time.
+	 * @param screenName the Twitter handle of the user
+	 * @param forceRequery force a refresh of the Klout score
+	 * @param priority how urgently the score is needed
+	 * @param timeout how long to wait for the score, in milliseconds
+	 * @return a handle to cancel the request with
+	 */
+	public RequestHandle requestKlout(String screenName, boolean forceRequery, Priority priority, long timeout) {
+		RequestHandle handle = new RequestHandle(timeout);
+		request(screenName, FetchKind.SCORE, forceRequery, priority, handle);
+		return handle;
 	}
 	
 	/**
@@ -119,12 +221,31 @@ public class KloutScoreManager {
 	 * @param forceRequery force a refresh of the Klout score
 	 */
 	public void requestInfluence(String screenName, boolean forceRequery) {
-		// TODO: check age of influencers and requery if necessary
-		if (haveInfluence(screenName) && !forceRequery) {
-			scoreUpdate(mScores.get(screenName));
-		} else {
-			mExecutor.execute(new InfluenceFetcher(screenName));
-		}
+		requestInfluence(screenName, forceRequery, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request a user's influencers and influencees at the given priority.
+	 * @param screenName the Twitter handle of the user
+	 * @param forceRequery force a refresh of the influencers and influencees
+	 * @param priority how urgently the influencers and influencees are needed
+	 */
+	public void requestInfluence(String screenName, boolean forceRequery, Priority priority) {
+		request(screenName, FetchKind.INFLUENCE, forceRequery, priority, RequestHandle.NONE);
+	}
+	
+	/**
+	 * Request a user's influencers and influencees at the given priority, giving up if the influencers and influencees can't be fetched in time.
+	 * @param screenName the Twitter handle of the user
+	 * @param forceRequery force a refresh of the influencers and influencees
+	 * @param priority how urgently the influencers and influencees are needed
+	 * @param timeout how long to wait for the influencers and influencees, in milliseconds
+	 * @return a handle to cancel the request with
+	 */
+	public RequestHandle requestInfluence(String screenName, boolean forceRequery, Priority priority, long timeout) {
+		RequestHandle handle = new RequestHandle(timeout);
+		request(screenName, FetchKind.INFLUENCE, forceRequery, priority, handle);
+		return handle;
 	}
 	
 	/**
@@ -141,16 +262,287 @@ public class KloutScoreManager {
 	 * @param forceRequery force a refresh of the Klout score
 	 */
 	public void requestTopics(String screenName, boolean forceRequery) {
-		// TODO: check age of topics and requery if necessary
-		if (haveTopics(screenName) && !forceRequery) {
+		requestTopics(screenName, forceRequery, Priority.NORMAL);
+	}
+	
+	/**
+	 * Request a user's topics at the given priority.
+	 * @param screenName the Twitter handle of the user
+	 * @param forceRequery force a refresh of the topics
+	 * @param priority how urgently the topics are needed
+	 */
+	public void requestTopics(String screenName, boolean forceRequery, Priority priority) {
+		request(screenName, FetchKind.TOPICS, forceRequery, priority, RequestHandle.NONE);
+	}
+	
+	/**
+	 * Request a user's topics at the given priority, giving up if the topics can't be fetched in time.
+	 * @param screenName the Twitter handle of the user
+	 * @param forceRequery force a refresh of the topics
+	 * @param priority how urgently the topics are needed
+	 * @param timeout how long to wait for the topics, in milliseconds
+	 * @return a handle to cancel the request with
+	 */
+	public RequestHandle requestTopics(String screenName, boolean forceRequery, Priority priority, long timeout) {
+		RequestHandle handle = new RequestHandle(timeout);
+		request(screenName, FetchKind.TOPICS, forceRequery, priority, handle);
+		return handle;
+	}
+	
+	/**
+	 * Answer a request from the cache if we can, otherwise resolve the user's Klout ID and fetch it.
+	 */
+	private void request(String screenName, FetchKind kind, boolean forceRequery, Priority priority, RequestHandle handle) {
+		if (!handle.isLive())
+			return;
+		
+		mRefreshScheduler.recordAccess(screenName);
+		// TODO: check age of cached values and requery if necessary
+		boolean cached;
+		switch (kind) {
+		case SCORE:
+			cached = haveScore(screenName);
+			break;
+		case INFLUENCE:
+			cached = haveInfluence(screenName);
+			break;
+		default:
+			cached = haveTopics(screenName);
+		}
+		
+		Trace trace;
+		switch (kind) {
+		case SCORE:
+			trace = mTracer.start("requestKlout", screenName);
+			break;
+		case INFLUENCE:
+			trace = mTracer.start("requestInfluence", screenName);
+			break;
+		default:
+			trace = mTracer.start("requestTopics", screenName);
+		}
+		
+		// If we already have a cached answer, and we aren't requerying, return the cached profile
+		if (cached && !forceRequery) {
+			long started = trace.start();
 			scoreUpdate(mScores.get(screenName));
+			trace.end(Trace.Stage.DISPATCH, started, mUpdateListeners.size());
+			trace.finish();
 		} else {
-			mExecutor.execute(new TopicsFetcher(screenName));
+			mIdentityResolver.resolve(screenName, priority, new DependentFetch(kind, priority, forceRequery, handle, trace));
 		}
 	}
 	
+	/**
+	 * Get the registry of topics shared by every profile this manager has fetched.
+	 * @return the topic registry
+	 */
+	public TopicRegistry getTopicRegistry() {
+		return mTopicRegistry;
+	}
+	
+	/**
+	 * Get the index of cached Klout scores, for leaderboard, rank and score range queries.
+	 * @return the score index
+	 */
+	public ScoreIndex getScoreIndex() {
+		return mScoreIndex;
+	}
+	
+	/**
+	 * Get the cached profiles with the highest Klout scores.
+	 * @param count the maximum number of profiles to return
+	 * @return up to <code>count</code> profiles, highest score first
+	 */
+	public ArrayList<KloutProfile> getTopProfiles(int count) {
+		List<ScoreIndex.Entry> entries = mScoreIndex.getTop(count);
+		ArrayList<KloutProfile> profiles = new ArrayList<KloutProfile>(entries.size());
+		for (ScoreIndex.Entry e : entries) {
+			KloutProfile kp = mScores.get(e.getKey());
+			if (kp != null)
+				profiles.add(kp);
+		}
+		
+		return profiles;
+	}
+	
+	/**
+	 * Start a query over the cached profiles, for the profiles matching conditions on their scores,
+	 * topics and influence.  See {@link ProfileQuery} for how it is evaluated.
+	 * @return a new query, matching every cached profile until it is narrowed down
+	 */
+	public ProfileQuery query() {
+		return new ProfileQuery(mScores, mScoreIndex, mTopicRegistry);
+	}
+	
+	/**
+	 * Set how calls to the Klout API are made, for example through a
+	 * {@link ca.bitjutsu.kloutacular.util.CachingTransport} to share responses between processes.
+	 * Forced requeries always go to the server.  The URLs passed to the transport have no API key:
+	 * use a {@link KeyedTransport} with {@link #getKeyPool()} to add one, underneath any cache.
+	 * @param transport the transport to use
+	 */
+	public synchronized void setTransport(Transport transport) {
+		mUpstream = transport;
+		mSharedCache = null;
+		if (mRecorder != null)
+			mRecorder.setTransport(transport);
+		buildTransport();
+	}
+	
+	/**
+	 * Record every call made to the Klout API from now on, with when it was made, how long it took
+	 * and its response or error, to a capture file that a {@link TrafficReplayer} can play back
+	 * offline.  API keys are not recorded, and nor are responses served from a shared cache, so the
+	 * capture holds only the calls that reached the Klout API.  Any earlier recording is stopped first.
+	 * @param file the file to record to, which is replaced
+	 * @throws IOException if the file can't be created
+	 */
+	public synchronized void startRecording(File file) throws IOException {
+		stopRecording();
+		mRecorder = new TrafficRecorder(mUpstream, file);
+		buildTransport();
+	}
+	
+	/**
+	 * Stop recording calls to the Klout API, and finish the capture file.
+	 * @throws IOException if the capture could not be finished
+	 */
+	public synchronized void stopRecording() throws IOException {
+		if (mRecorder == null)
+			return;
+		
+		TrafficRecorder recorder = mRecorder;
+		mRecorder = null;
+		buildTransport();
+		recorder.close();
+	}
+	
+	/**
+	 * Consult a cache shared with other processes, such as a {@link ResponseCache} or a cache
+	 * server, before calling the Klout API, and write every response to it.  Popular users are then
+	 * fetched once for every process sharing the cache, rather than once per process.  This replaces
+	 * any transport set with {@link #setTransport(Transport)}, but not a recording in progress.
+	 * @param cache the shared cache, or <code>null</code> to stop using one
+	 * @param maxAge the oldest cached response to use, in milliseconds
+	 */
+	public synchronized void setSharedCache(SharedCache cache, long maxAge) {
+		mUpstream = mBreakers;
+		// A recording in progress carries on with the breakers underneath it
+		if (mRecorder != null)
+			mRecorder.setTransport(mBreakers);
+		mSharedCache = cache;
+		mSharedCacheMaxAge = maxAge;
+		buildTransport();
+	}
+	
+	/**
+	 * Put the transport chain back together: any shared cache on top, any recorder underneath it so
+	 * that only calls which reach the Klout API are recorded, then the upstream transport.
+	 */
+	private synchronized void buildTransport() {
+		Transport transport = (mRecorder != null) ? mRecorder : mUpstream;
+		if (mSharedCache != null)
+			transport = new CachingTransport(transport, mSharedCache, mSharedCacheMaxAge);
+		mTransport = transport;
+	}
+	
+	/**
+	 * Get the circuit breaker for a family of Klout API endpoints, to check on it or change its
+	 * thresholds.  While a breaker is open, fetches that need its endpoints are dropped straight
+	 * away, and the profiles already held are left as they are.
+	 * @param endpoint the endpoint family
+	 * @return the endpoint family's breaker
+	 */
+	public CircuitBreaker getCircuitBreaker(Endpoint endpoint) {
+		return mBreakers.getBreaker(endpoint);
+	}
+	
+	/**
+	 * Give each user's profile a single writer.  Users are hashed onto <code>count</code> shards,
+	 * each with its own thread, and a fetch's result is handed to the shard that owns its user to be
+	 * stored, along with the Klout IDs of any influencers it names.  Listeners are then notified on
+	 * the shard threads.  Call this before making any requests.
+	 * @param count the number of shards, usually the number of cores, or <code>0</code> to store
+	 * results on the fetching threads (the default)
+	 */
+	public void setShardCount(int count) {
+		ShardGroup old = mShards;
+		mShards = (count > 0) ? new ShardGroup(count, "KloutShard") : null;
+		// The old shards run whatever is already queued for them before they stop
+		if (old != null)
+			old.shutdown();
+	}
+	
+	/**
+	 * Run a mutation of a user's profile on the thread that owns the user.
+	 */
+	private void mutate(String screenName, Runnable mutation) {
+		ShardGroup shards = mShards;
+		if (shards == null || shards.isOwner(screenName))
+			mutation.run();
+		else
+			shards.execute(screenName, mutation);
+	}
+	
+	/**
+	 * Keep cached scores fresh in the background, spending at most <code>callsPerMinute</code> calls
+	 * to the Klout API a minute on the users who are requested most and whose scores change fastest.
+	 * Background refreshing is off by default.
+	 * @param callsPerMinute the refresh budget, or <code>0</code> to stop refreshing
+	 */
+	public void setRefreshBudget(int callsPerMinute) {
+		mRefreshScheduler.setCallsPerMinute(callsPerMinute);
+		if (callsPerMinute > 0)
+			mRefreshScheduler.start();
+		else
+			mRefreshScheduler.stop();
+	}
+	
+	/**
+	 * Speculatively fetch the topics of the influencers and influencees found by each influence
+	 * fetch, spending at most <code>callsPerMinute</code> calls to the Klout API a minute, on the
+	 * hunch that they are asked for next.  Their scores come with the influence fetch, and their Klout
+	 * IDs too, so only their topics are fetched, and only if they aren't already cached.  Prefetches
+	 * go at {@link Priority#BACKGROUND} priority, are made only while the key pool has a quarter of
+	 * its daily quota left, and are dropped if they wait more than a minute.  Prefetching is off by
+	 * default.
+	 * @param callsPerMinute the prefetch budget, or <code>0</code> to stop prefetching
+	 */
+	public void setNeighbourPrefetch(int callsPerMinute) {
+		mPrefetch.setCallsPerMinute(callsPerMinute);
+	}
+	
 	private void setApiKey(String apiKey) {
-		mApiKey = apiKey;
+		mKeyPool.add(apiKey);
+	}
+	
+	/**
+	 * Get the pool of API keys calls are spread across, to add keys or change their limits.
+	 * @return the key pool
+	 */
+	public KeyPool getKeyPool() {
+		return mKeyPool;
+	}
+	
+	/**
+	 * Get the tracer that samples requests, to set how many are traced and where their traces go,
+	 * such as a {@link ca.bitjutsu.kloutacular.util.SlowestTraces}.  Each traced request records how
+	 * long it spent resolving the user's Klout ID, in the queue, calling the Klout API, decoding the
+	 * response, updating the cache and notifying listeners.  Tracing is off by default.
+	 * @return the tracer
+	 */
+	public Tracer getTracer() {
+		return mTracer;
+	}
+	
+	/**
+	 * Get the pool of threads fetches are made on, to monitor its size, queue and the latency and
+	 * throughput it is sized from, or to change the bounds it is sized within.
+	 * @return the worker pool
+	 */
+	public AdaptiveExecutor getWorkerPool() {
+		return mExecutor;
 	}
 	
 	private void scoreUpdate(KloutProfile score) {
@@ -167,11 +559,6 @@ public class KloutScoreManager {
 		mUpdateListeners.add(l);
 	}
 	
-	private long getKloutId(String screenName) {
-		//XXX: this only returns a mapping that we already have
-		return (mIdMapping.get(screenName) != null) ? Long.valueOf(mIdMapping.get(screenName)) : -1L;
-	}
-
 	/**
 	 * Checks if we have a Klout score for the Twitter screen name in question.
 	 * @param screenName the Twitter screen name to check
@@ -179,16 +566,16 @@ public class KloutScoreManager {
 	 */
 	//TODO: decide whether this is public or private
 	private boolean haveScore(String screenName) {
-		return (mScores != null && mScores.size() != 0 && mScores.get(screenName).getScore() != -1);
+		return (mScores != null && mScores.get(screenName) != null && mScores.get(screenName).getScore() != -1);
 	}
 	
 	private boolean haveInfluence(String screenName) {
 		// We only have to see if either influencers or influencees exist, as they can't be fetched separately
-		return (mScores != null && mScores.size() != 0 &&  mScores.get(screenName).getInfluencers() != null);
+		return (mScores != null && mScores.get(screenName) != null && mScores.get(screenName).getInfluencers() != null);
 	}
 	
 	private boolean haveTopics(String screenName) {
-		return (mScores != null && mScores.size() != 0 &&  mScores.get(screenName).getTopics() != null);
+		return (mScores != null && mScores.get(screenName) != null && mScores.get(screenName).getTopics() != null);
 	}
 
 	private void setDebugMode(boolean debug) {
@@ -212,243 +599,433 @@ public class KloutScoreManager {
 	}
 	
 	// Should not ever be called on the main thread.
-	private void fetchKloutId(String screenName) {
+	private String fetchKloutId(String screenName) throws IOException {
 		//map Klout ID to Twitter name
+		String body;
 		try {
-			HttpGet get = new HttpGet("http://api.klout.com/v2/identity.json/twitter?screenName=" + screenName + "&key=" + mApiKey);
-			HttpResponse response = new DefaultHttpClient().execute(get);
-
-			if (response.getStatusLine().getStatusCode() != 200)
-				throw new HttpResponseException(response.getStatusLine().getStatusCode(),
-		        		"Remote server responded with code " + response.getStatusLine().getStatusCode());
+			body = makeRequest("http://api.klout.com/v2/identity.json/twitter?screenName=" + screenName, false);
+		} catch (HttpResponseException e) {
+			// Klout doesn't know the user
+			if (e.getStatusCode() == 404)
+				return null;
+			throw e;
+		}
+		
+		try {
+			JSONObject id = new JSONObject(body);
+			// A well-formed response without an ID means the same
+			if (!id.has("id"))
+				return null;
+			return id.getString("id");
+		} catch (JSONException e) {
+			// A garbled response says nothing about the user, so it may be worth trying again
+			throw new IOException("Malformed identity response for \"" + screenName + "\"", e);
+		}
+	}
+	
+	// Should not ever be called on the main thread.
+	private String makeRequest(String url, boolean fresh) throws ClientProtocolException, IOException, IllegalStateException {
+		return mTransport.get(url, fresh);
+	}
+	
+	private String makeRequest(String url, boolean fresh, Trace trace) throws ClientProtocolException, IOException, IllegalStateException {
+		long started = trace.start();
+		String body = null;
+		try {
+			body = makeRequest(url, fresh);
+			return body;
+		} finally {
+			trace.end(Trace.Stage.HTTP, started, (body != null) ? body.length() : -1);
+		}
+	}
+	
+	/**
+	 * Queue topic prefetches for the neighbours an influence fetch found, until the prefetch budget
+	 * runs out.
+	 * @param neighbours each neighbour's screen name and Klout ID
+	 */
+	private void prefetchNeighbours(List<String[]> neighbours) {
+		if (!mPrefetch.isEnabled())
+			return;
+		
+		for (String[] neighbour : neighbours) {
+			// Already fresh, so the prefetch would be wasted
+			if (haveTopics(neighbour[0]))
+				continue;
+			if (!mPrefetch.tryAcquire())
+				return;
 			
-			BufferedReader in = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
-			StringBuilder sb = new StringBuilder();
-			String line;
-			while ((line = in.readLine()) != null) {
-				sb.append(line);
+			mExecutor.execute(new TopicsFetcher(neighbour[0], neighbour[1], Priority.BACKGROUND, false, mPrefetch.newHandle(),
+					mTracer.start("prefetch", neighbour[0])));
+		}
+	}
+	
+	/**
+	 * Notify the listeners of the profile already cached for a user whose fetch was dropped, if there
+	 * is one, on the thread that owns the user.
+	 */
+	private void publishCached(final String screenName, final Trace trace) {
+		mutate(screenName, new Runnable() {
+			public void run() {
+				KloutProfile k = mScores.get(screenName);
+				if (k != null) {
+					long started = trace.start();
+					scoreUpdate(k);
+					trace.end(Trace.Stage.DISPATCH, started, mUpdateListeners.size());
+				}
+				trace.finish();
+			}
+		});
+	}
+	
+	/**
+	 * Dispatches a request for a user as soon as their Klout ID has been resolved.
+	 */
+	private class DependentFetch implements IdentityResolver.Callback {
+		private FetchKind mKind;
+		private Priority mPriority;
+		private boolean mFresh;
+		private RequestHandle mHandle;
+		private Trace mTrace;
+		private long mResolving;
+		
+		public DependentFetch(FetchKind kind, Priority priority, boolean fresh, RequestHandle handle, Trace trace) {
+			mKind = kind;
+			mPriority = priority;
+			mFresh = fresh;
+			mHandle = handle;
+			mTrace = trace;
+			mResolving = trace.start();
+		}
+		
+		public boolean isWanted() {
+			return mHandle.isLive();
+		}
+		
+		public void onResolved(String screenName, String kloutId) {
+			mTrace.end(Trace.Stage.IDENTITY, mResolving, 0);
+			if (!mHandle.isLive()) {
+				mTrace.finish();
+				return;
 			}
 			
-			in.close();
-			
-			JSONObject id = new JSONObject(sb.toString());
-			
-			String kloutId = id.getString("id");
-			
-			mIdMapping.put(screenName, kloutId);
-		} catch (ClientProtocolException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (JSONException e) {
-			e.printStackTrace();
+			switch (mKind) {
+			case SCORE:
+				mExecutor.execute(new KloutProfileFetcher(screenName, kloutId, mPriority, mFresh, mHandle, mTrace));
+				break;
+			case INFLUENCE:
+				mExecutor.execute(new InfluenceFetcher(screenName, kloutId, mPriority, mFresh, mHandle, mTrace));
+				break;
+			default:
+				mExecutor.execute(new TopicsFetcher(screenName, kloutId, mPriority, mFresh, mHandle, mTrace));
+			}
+		}
+		
+		public void onFailed(String screenName, boolean unknown) {
+			mTrace.end(Trace.Stage.IDENTITY, mResolving, 0);
+			// The resolver remembers unknown users, so there is nothing more to do
+			mTrace.finish();
 		}
 	}
 	
-	private class KloutProfileFetcher implements Runnable {
+	private class KloutProfileFetcher implements Runnable, Prioritized, Sheddable {
 		private String mScreenName;
+		private String mKloutId;
+		private Priority mPriority;
+		private boolean mFresh;
+		private RequestHandle mHandle;
+		private Trace mTrace;
+		private long mQueued;
 		
-		public KloutProfileFetcher(String screenName) {
+		public KloutProfileFetcher(String screenName, String kloutId, Priority priority, boolean fresh, RequestHandle handle, Trace trace) {
 			mScreenName = screenName;
+			mKloutId = kloutId;
+			mPriority = priority;
+			mFresh = fresh;
+			mHandle = handle;
+			mTrace = trace;
+			mQueued = trace.start();
+		}
+		
+		public Priority getPriority() {
+			return mPriority;
+		}
+		
+		public void shed() {
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
+			// A dropped prefetch gives its call back, and nobody is waiting on its answer
+			if (mPrefetch.release(mHandle) || !mHandle.isLive()) {
+				mTrace.finish();
+				return;
+			}
+			// Answer with whatever we have rather than nothing
+			publishCached(mScreenName, mTrace);
 		}
 		
 		@Override
 		public void run() {
+			// Once handed to the thread that owns the user, the trace is finished there
+			boolean handedOff = false;
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
 			try {
-				if (getKloutId(mScreenName) == -1L) {
-					// If we don't have a Klout ID for the user, fetch it.
-					fetchKloutId(mScreenName);
-				}
+				// Nobody wants the answer any more, so don't spend a call on it
+				if (!mHandle.isLive())
+					return;
+				String body = makeRequest("http://api.klout.com/v2/user.json/" + mKloutId + "/score", mFresh, mTrace);
+				long started = mTrace.start();
+				JSONObject obj = new JSONObject(body);
+				mTrace.end(Trace.Stage.PARSE, started, body.length());
 				
-				String id = mIdMapping.get(mScreenName);
-				// IllegalArgumentException should never get called.
-				if (id == null)
-					throw new IllegalArgumentException("No mapping exists for \"" + mScreenName + "\"");
-				
-				HttpGet get = new HttpGet("http://api.klout.com/v2/user.json/" + id + "/score?key=" + mApiKey);
-				HttpResponse response = new DefaultHttpClient().execute(get);
-
-				if (response.getStatusLine().getStatusCode() != 200)
-					throw new HttpResponseException(response.getStatusLine().getStatusCode(),
-			        		"Remote server responded with code " + response.getStatusLine().getStatusCode());
-				
-				BufferedReader in = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
-				StringBuilder sb = new StringBuilder();
-				String line;
-				while ((line = in.readLine()) != null) {
-					sb.append(line);
-				}
-				
-				in.close();
-				
-				JSONObject obj = new JSONObject(sb.toString());
-				
-				double score = obj.getDouble("score");
+				final double score = obj.getDouble("score");
+				mScoreIndex.update(mScreenName, score);
 				
 				JSONObject scoreDelta = obj.getJSONObject("scoreDelta");
-				double daychange = scoreDelta.getDouble("dayChange");
-				double weekchange = scoreDelta.getDouble("weekChange");
-				double monthchange = scoreDelta.getDouble("monthChange");
+				final double daychange = scoreDelta.getDouble("dayChange");
+				mRefreshScheduler.recordFetch(mScreenName, score, daychange);
+				final double weekchange = scoreDelta.getDouble("weekChange");
+				final double monthchange = scoreDelta.getDouble("monthChange");
 				
-				KloutProfile k = new KloutProfile(mScreenName, score, daychange, weekchange, monthchange);
-				//Put the new score in the map, unless we already have a mapping and we're just updating the score
-				if (mScores.get(mScreenName) != null)
-					mScores.get(mScreenName).updateScore(score, daychange, weekchange, monthchange);
-				else
-					mScores.put(mScreenName, k);
-				//Call all of the listeners.
-				scoreUpdate(k);
+				handedOff = true;
+				mutate(mScreenName, new Runnable() {
+					public void run() {
+						long started = mTrace.start();
+						KloutProfile k = new KloutProfile(mScreenName, score, daychange, weekchange, monthchange);
+						//Put the new score in the map, unless we already have a mapping and we're just updating the score
+						if (mScores.get(mScreenName) != null)
+							mScores.get(mScreenName).updateScore(score, daychange, weekchange, monthchange);
+						else
+							mScores.put(mScreenName, k);
+						mTrace.end(Trace.Stage.STORE, started, 1);
+						
+						//Call all of the listeners.
+						started = mTrace.start();
+						scoreUpdate(k);
+						mTrace.end(Trace.Stage.DISPATCH, started, mUpdateListeners.size());
+						mTrace.finish();
+					}
+				});
 				
+			} catch (CircuitOpenException e) {
+				// Klout is failing; keep what we have
 			} catch (HttpResponseException e) {
-				e.printStackTrace();
+				// Klout has no user behind the ID any more
+				if (e.getStatusCode() == 404)
+					mIdentityResolver.markUnknown(mScreenName);
+				else
+					e.printStackTrace();
 			} catch (ClientProtocolException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
 				e.printStackTrace();
 			} catch (JSONException e) {
 				e.printStackTrace();
+			} finally {
+				if (!handedOff)
+					mTrace.finish();
 			}
 		}
 	}
 	
-	private class InfluenceFetcher implements Runnable {
+	private class InfluenceFetcher implements Runnable, Prioritized, Sheddable {
 		private String mScreenName;
+		private String mKloutId;
+		private Priority mPriority;
+		private boolean mFresh;
+		private RequestHandle mHandle;
+		private Trace mTrace;
+		private long mQueued;
 		
-		public InfluenceFetcher(String screenName) {
+		public InfluenceFetcher(String screenName, String kloutId, Priority priority, boolean fresh, RequestHandle handle, Trace trace) {
 			mScreenName = screenName;
+			mKloutId = kloutId;
+			mPriority = priority;
+			mFresh = fresh;
+			mHandle = handle;
+			mTrace = trace;
+			mQueued = trace.start();
+		}
+		
+		public Priority getPriority() {
+			return mPriority;
+		}
+		
+		public void shed() {
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
+			// A dropped prefetch gives its call back, and nobody is waiting on its answer
+			if (mPrefetch.release(mHandle) || !mHandle.isLive()) {
+				mTrace.finish();
+				return;
+			}
+			// Answer with whatever we have rather than nothing
+			publishCached(mScreenName, mTrace);
 		}
 		
 		@Override
 		public void run() {
+			// Once handed to the thread that owns the user, the trace is finished there
+			boolean handedOff = false;
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
 			try {
-				if (getKloutId(mScreenName) == -1L) {
-					// If we don't have a Klout ID for the user, fetch it.
-					fetchKloutId(mScreenName);
-				}
+				// Nobody wants the answer any more, so don't spend a call on it
+				if (!mHandle.isLive())
+					return;
+				String body = makeRequest("http://api.klout.com/v2/user.json/" + mKloutId + "/influence", mFresh, mTrace);
+				long started = mTrace.start();
+				JSONObject obj = new JSONObject(body);
+				mTrace.end(Trace.Stage.PARSE, started, body.length());
 				
-				String id = mIdMapping.get(mScreenName);
-				// IllegalArgumentException should never get called.
-				if (id == null)
-					throw new IllegalArgumentException("No mapping exists for \"" + mScreenName + "\"");
-				
-				HttpGet get = new HttpGet("http://api.klout.com/v2/user.json/" + id + "/influence?key=" + mApiKey);
-				HttpResponse response = new DefaultHttpClient().execute(get);
-
-				if (response.getStatusLine().getStatusCode() != 200)
-					throw new HttpResponseException(response.getStatusLine().getStatusCode(),
-			        		"Remote server responded with code " + response.getStatusLine().getStatusCode());
-				
-				BufferedReader in = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
-				StringBuilder sb = new StringBuilder();
-				String line;
-				while ((line = in.readLine()) != null) {
-					sb.append(line);
-				}
-				
-				in.close();
-				
-				JSONObject obj = new JSONObject(sb.toString());
+				ArrayList<String[]> neighbours = new ArrayList<String[]>();
 				
 				//populate influencers
-				ArrayList<KloutProfile> influencers = new ArrayList<KloutProfile>();
+				final ArrayList<KloutProfile> influencers = new ArrayList<KloutProfile>();
 				JSONArray influencersArray = obj.getJSONArray("myInfluencers");
 				
 				for (int i = 0; i < influencersArray.length(); i++) {
 					// skip over id in entity, the one in payload is identical
 					JSONObject payload = influencersArray.getJSONObject(i).getJSONObject("entity").getJSONObject("payload");
-					String kloutId = payload.getString("kloutId");
-					String screenName = payload.getString("nick");
+					final String kloutId = payload.getString("kloutId");
+					final String screenName = payload.getString("nick");
 					double score = payload.getJSONObject("score").getDouble("score");
+					mScoreIndex.update(screenName, score);
 					
 					//TODO: SCORE DELTAS
 					
-					// add the KloutProfiles to mScores, mIdMapping, and influencers
-					mIdMapping.put(screenName, kloutId);
-					KloutProfile temp = new KloutProfile(screenName, score);
-					mScores.put(screenName, temp);
+					// add the KloutProfiles to mScores, mIdMapping, and influencers, keeping whatever else we already had for them
+					final KloutProfile temp = new KloutProfile(screenName, score);
+					mutate(screenName, new Runnable() {
+						public void run() {
+							mIdMapping.put(screenName, kloutId);
+							if (mScores.get(screenName) != null)
+								mScores.get(screenName).updateScore(temp.getScore());
+							else
+								mScores.put(screenName, temp);
+						}
+					});
 					influencers.add(temp);
+					neighbours.add(new String[] { screenName, kloutId });
 				}
 				
 				//populate influencees
-				ArrayList<KloutProfile> influencees = new ArrayList<KloutProfile>();
+				final ArrayList<KloutProfile> influencees = new ArrayList<KloutProfile>();
 				JSONArray influenceesArray = obj.getJSONArray("myInfluencees");
 				
 				for (int i = 0; i < influenceesArray.length(); i++) {
 					// skip over id in entity, the one in payload is identical
 					JSONObject payload = influenceesArray.getJSONObject(i).getJSONObject("entity").getJSONObject("payload");
-					String kloutId = payload.getString("kloutId");
-					String screenName = payload.getString("nick");
+					final String kloutId = payload.getString("kloutId");
+					final String screenName = payload.getString("nick");
 					double score = payload.getJSONObject("score").getDouble("score");
+					mScoreIndex.update(screenName, score);
 					
 					//TODO: SCORE DELTAS
 					
-					// add the KloutProfiles to mScores, mIdMapping, and influencers
-					mIdMapping.put(screenName, kloutId);
-					KloutProfile temp = new KloutProfile(screenName, score);
-					mScores.put(screenName, temp);
+					// add the KloutProfiles to mScores, mIdMapping, and influencers, keeping whatever else we already had for them
+					final KloutProfile temp = new KloutProfile(screenName, score);
+					mutate(screenName, new Runnable() {
+						public void run() {
+							mIdMapping.put(screenName, kloutId);
+							if (mScores.get(screenName) != null)
+								mScores.get(screenName).updateScore(temp.getScore());
+							else
+								mScores.put(screenName, temp);
+						}
+					});
 					influencees.add(temp);
+					neighbours.add(new String[] { screenName, kloutId });
 				}
 				
-				KloutProfile k = new KloutProfile(mScreenName, influencers, influencees);
-				//Put the new score in the map, unless we already have a mapping and we're just updating the score
-				if (mScores.get(mScreenName) != null)
-					mScores.get(mScreenName).updateScore(influencers, influencees);
-				else
-					mScores.put(mScreenName, k);
-				//Call all of the listeners.
-				scoreUpdate(k);
+				handedOff = true;
+				mutate(mScreenName, new Runnable() {
+					public void run() {
+						long started = mTrace.start();
+						KloutProfile k = new KloutProfile(mScreenName, influencers, influencees);
+						//Put the new score in the map, unless we already have a mapping and we're just updating the score
+						if (mScores.get(mScreenName) != null)
+							mScores.get(mScreenName).updateScore(influencers, influencees);
+						else
+							mScores.put(mScreenName, k);
+						mTrace.end(Trace.Stage.STORE, started, 1);
+						
+						//Call all of the listeners.
+						started = mTrace.start();
+						scoreUpdate(k);
+						mTrace.end(Trace.Stage.DISPATCH, started, mUpdateListeners.size());
+						mTrace.finish();
+					}
+				});
 				
+				prefetchNeighbours(neighbours);
+				
+			} catch (CircuitOpenException e) {
+				// Klout is failing; keep what we have
 			} catch (HttpResponseException e) {
-				e.printStackTrace();
+				// Klout has no user behind the ID any more
+				if (e.getStatusCode() == 404)
+					mIdentityResolver.markUnknown(mScreenName);
+				else
+					e.printStackTrace();
 			} catch (ClientProtocolException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
 				e.printStackTrace();
 			} catch (JSONException e) {
 				e.printStackTrace();
+			} finally {
+				if (!handedOff)
+					mTrace.finish();
 			}
 		}
 	}
 	
-	private class TopicsFetcher implements Runnable {
+	private class TopicsFetcher implements Runnable, Prioritized, Sheddable {
 		private String mScreenName;
+		private String mKloutId;
+		private Priority mPriority;
+		private boolean mFresh;
+		private RequestHandle mHandle;
+		private Trace mTrace;
+		private long mQueued;
 		
-		public TopicsFetcher(String screenName) {
+		public TopicsFetcher(String screenName, String kloutId, Priority priority, boolean fresh, RequestHandle handle, Trace trace) {
 			mScreenName = screenName;
+			mKloutId = kloutId;
+			mPriority = priority;
+			mFresh = fresh;
+			mHandle = handle;
+			mTrace = trace;
+			mQueued = trace.start();
+		}
+		
+		public Priority getPriority() {
+			return mPriority;
+		}
+		
+		public void shed() {
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
+			// A dropped prefetch gives its call back, and nobody is waiting on its answer
+			if (mPrefetch.release(mHandle) || !mHandle.isLive()) {
+				mTrace.finish();
+				return;
+			}
+			// Answer with whatever we have rather than nothing
+			publishCached(mScreenName, mTrace);
 		}
 		
 		@Override
 		public void run() {
+			// Once handed to the thread that owns the user, the trace is finished there
+			boolean handedOff = false;
+			mTrace.end(Trace.Stage.QUEUE, mQueued, 0);
 			try {
-				if (getKloutId(mScreenName) == -1L) {
-					// If we don't have a Klout ID for the user, fetch it.
-					fetchKloutId(mScreenName);
-				}
-				
-				String id = mIdMapping.get(mScreenName);
-				// IllegalArgumentException should never get called.
-				if (id == null)
-					throw new IllegalArgumentException("No mapping exists for \"" + mScreenName + "\"");
+				// Nobody wants the answer any more, so don't spend a call on it
+				if (!mHandle.isLive())
+					return;
+				String body = makeRequest("http://api.klout.com/v2/user.json/" + mKloutId + "/topics", mFresh, mTrace);
+				long started = mTrace.start();
+				JSONArray arr = new JSONArray(body);
+				mTrace.end(Trace.Stage.PARSE, started, body.length());
 				
-				HttpGet get = new HttpGet("http://api.klout.com/v2/user.json/" + id + "/topics?key=" + mApiKey);
-				HttpResponse response = new DefaultHttpClient().execute(get);
-
-				if (response.getStatusLine().getStatusCode() != 200)
-					throw new HttpResponseException(response.getStatusLine().getStatusCode(),
-			        		"Remote server responded with code " + response.getStatusLine().getStatusCode());
-				
-				BufferedReader in = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
-				StringBuilder sb = new StringBuilder();
-				String line;
-				while ((line = in.readLine()) != null) {
-					sb.append(line);
-				}
-				
-				in.close();
-				
-				JSONArray arr = new JSONArray(sb.toString());
-				
-				ArrayList<Topic> topics = new ArrayList<Topic>();
+				final ArrayList<Topic> topics = new ArrayList<Topic>(arr.length());
 				
 				for (int i = 0; i < arr.length(); i++) {
 					JSONObject obj = arr.getJSONObject(i);
@@ -459,25 +1036,46 @@ public class KloutScoreManager {
 					String slug = obj.getString("slug");
 					String imageUrl = obj.getString("imageUrl");
 					
-					topics.add(new Topic(topicId, name, displayName, slug, imageUrl));
+					// Share a single instance of each topic across all profiles
+					topics.add(mTopicRegistry.intern(topicId, name, displayName, slug, imageUrl));
 				}
 				
-				KloutProfile k = new KloutProfile(mScreenName, topics);
-				//Put the new score in the map, unless we already have a mapping and we're just updating the score
-				if (mScores.get(mScreenName) != null)
-					mScores.get(mScreenName).updateScore(topics);
-				else
-					mScores.put(mScreenName, k);
-				//Call all of the listeners.
-				scoreUpdate(k);
+				handedOff = true;
+				mutate(mScreenName, new Runnable() {
+					public void run() {
+						long started = mTrace.start();
+						KloutProfile k = new KloutProfile(mScreenName, topics);
+						//Put the new score in the map, unless we already have a mapping and we're just updating the score
+						if (mScores.get(mScreenName) != null)
+							mScores.get(mScreenName).updateScore(topics);
+						else
+							mScores.put(mScreenName, k);
+						mTrace.end(Trace.Stage.STORE, started, 1);
+						
+						//Call all of the listeners.
+						started = mTrace.start();
+						scoreUpdate(k);
+						mTrace.end(Trace.Stage.DISPATCH, started, mUpdateListeners.size());
+						mTrace.finish();
+					}
+				});
+			} catch (CircuitOpenException e) {
+				// Klout is failing; keep what we have
 			} catch (HttpResponseException e) {
-				e.printStackTrace();
+				// Klout has no user behind the ID any more
+				if (e.getStatusCode() == 404)
+					mIdentityResolver.markUnknown(mScreenName);
+				else
+					e.printStackTrace();
 			} catch (ClientProtocolException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
 				e.printStackTrace();
 			} catch (JSONException e) {
 				e.printStackTrace();
+			} finally {
+				if (!handedOff)
+					mTrace.finish();
 			}
 		}
 	}
@@ -0,0 +1,419 @@
+package ca.bitjutsu.kloutacular.v2;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.bitjutsu.kloutacular.util.ParallelScan;
+import ca.bitjutsu.kloutacular.util.ScoreIndex;
+
+/**
+ * A query over the profiles cached by a {@link KloutScoreManager}, such as "users scoring between
+ * 40 and 60 with topic 123, biggest weekly gain first".  Build one with
+ * {@link KloutScoreManager#query()}, narrow it down with the <code>where</code> methods, which must
+ * all hold for a profile to match, then run it with {@link #list()}, {@link #select(Field...)} or
+ * {@link #count()}.
+ *
+ * The cache is scanned in chunks spread over several threads.  When a narrow score range is asked
+ * for, the {@link ScoreIndex} picks out the candidates instead, and a topic no cached profile has,
+ * according to the {@link TopicRegistry}, matches nothing without any scan at all.
+ *
+ * Profiles updated while a query runs may or may not be seen by it.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class ProfileQuery {
+	// Use the score index when a score range holds at most this fraction of the cache
+	private static final int INDEX_SELECTIVITY = 8;
+	// How many profiles or candidates make up a partition
+	private static final int CHUNK_SIZE = 4096;
+
+	/**
+	 * The fields of a profile that can be tested, ordered by and selected.  Numeric conditions on a
+	 * graph degree never match a profile whose influence hasn't been fetched.
+	 */
+	public enum Field {
+		SCREEN_NAME(false) {
+			Object get(KloutProfile kp) {
+				return kp.getScreenName();
+			}
+		},
+		SCORE(true) {
+			double value(KloutProfile kp) {
+				return kp.hasScore() ? kp.getScore() : Double.NaN;
+			}
+		},
+		DAY_CHANGE(true) {
+			double value(KloutProfile kp) {
+				return kp.hasChanges() ? kp.getDayChange() : Double.NaN;
+			}
+		},
+		WEEK_CHANGE(true) {
+			double value(KloutProfile kp) {
+				return kp.hasChanges() ? kp.getWeekChange() : Double.NaN;
+			}
+		},
+		MONTH_CHANGE(true) {
+			double value(KloutProfile kp) {
+				return kp.hasChanges() ? kp.getMonthChange() : Double.NaN;
+			}
+		},
+		/** The number of users who influence the user. */
+		INFLUENCER_COUNT(true) {
+			double value(KloutProfile kp) {
+				ArrayList<KloutProfile> list = kp.getInfluencers();
+				return (list != null) ? list.size() : Double.NaN;
+			}
+		},
+		/** The number of users the user influences. */
+		INFLUENCEE_COUNT(true) {
+			double value(KloutProfile kp) {
+				ArrayList<KloutProfile> list = kp.getInfluencees();
+				return (list != null) ? list.size() : Double.NaN;
+			}
+		},
+		/** The user's topics; can be selected, but not ordered by. */
+		TOPICS(false) {
+			Object get(KloutProfile kp) {
+				return kp.getTopics();
+			}
+		};
+
+		private final boolean mNumeric;
+
+		private Field(boolean numeric) {
+			mNumeric = numeric;
+		}
+
+		/**
+		 * @return whether the field is a number, which can be tested with {@link ProfileQuery#where(Field, double, double)}
+		 */
+		public boolean isNumeric() {
+			return mNumeric;
+		}
+
+		// Numeric fields give their value here, unboxed; NaN if it hasn't been fetched
+		double value(KloutProfile kp) {
+			throw new IllegalStateException(name() + " is not numeric");
+		}
+
+		Object get(KloutProfile kp) {
+			double value = value(kp);
+			return Double.isNaN(value) ? null : Double.valueOf(value);
+		}
+	}
+
+	private final ConcurrentHashMap<String, KloutProfile> mScores;
+	private final ScoreIndex mScoreIndex;
+	private final TopicRegistry mTopicRegistry;
+
+	private final EnumMap<Field, double[]> mRanges = new EnumMap<Field, double[]>(Field.class);
+	private final ArrayList<Long> mTopics = new ArrayList<Long>();
+	private final ArrayList<ParallelScan.Filter<KloutProfile>> mFilters = new ArrayList<ParallelScan.Filter<KloutProfile>>();
+	private final ArrayList<Field> mOrderFields = new ArrayList<Field>();
+	private final ArrayList<Boolean> mOrderDescending = new ArrayList<Boolean>();
+	private int mLimit = Integer.MAX_VALUE;
+	private int mParallelism = Runtime.getRuntime().availableProcessors();
+
+	/* package */ ProfileQuery(ConcurrentHashMap<String, KloutProfile> scores, ScoreIndex scoreIndex, TopicRegistry topics) {
+		mScores = scores;
+		mScoreIndex = scoreIndex;
+		mTopicRegistry = topics;
+	}
+
+	/**
+	 * Only match profiles whose numeric field lies in a range.  Several ranges on the same field
+	 * must all hold.  Profiles whose field hasn't been fetched, such as the score of a user whose
+	 * topics alone have been fetched, never match.
+	 * @param field a numeric field
+	 * @param min the lowest value to match
+	 * @param max the highest value to match
+	 * @return this query
+	 */
+	public ProfileQuery where(Field field, double min, double max) {
+		if (!field.isNumeric())
+			throw new IllegalArgumentException(field + " is not numeric");
+
+		double[] range = mRanges.get(field);
+		if (range == null) {
+			mRanges.put(field, new double[] { min, max });
+		} else {
+			range[0] = Math.max(range[0], min);
+			range[1] = Math.min(range[1], max);
+		}
+		return this;
+	}
+
+	/**
+	 * Only match users with a topic.  Several topics must all be held.
+	 * @param topicId the topic's ID, as returned by {@link Topic#getId()}
+	 * @return this query
+	 */
+	public ProfileQuery whereTopic(long topicId) {
+		mTopics.add(topicId);
+		return this;
+	}
+
+	/**
+	 * Only match profiles that pass a filter of your own.  The filter is called from several
+	 * threads at once.
+	 * @param filter the filter
+	 * @return this query
+	 */
+	public ProfileQuery where(ParallelScan.Filter<KloutProfile> filter) {
+		mFilters.add(filter);
+		return this;
+	}
+
+	/**
+	 * Order the results by a field.  Further calls break ties of earlier ones; any remaining ties
+	 * are broken by screen name.  Unknown values come last either way.
+	 * @param field the field to order by
+	 * @param descending whether the highest values come first
+	 * @return this query
+	 */
+	public ProfileQuery orderBy(Field field, boolean descending) {
+		if (field == Field.TOPICS)
+			throw new IllegalArgumentException("Can't order by " + field);
+
+		mOrderFields.add(field);
+		mOrderDescending.add(descending);
+		return this;
+	}
+
+	/**
+	 * Return at most <code>count</code> profiles.  Without an order, any <code>count</code>
+	 * matching profiles are returned, and the scan stops once they are found.
+	 * @param count the most profiles to return
+	 * @return this query
+	 */
+	public ProfileQuery limit(int count) {
+		if (count < 0)
+			throw new IllegalArgumentException("count must not be negative");
+
+		mLimit = count;
+		return this;
+	}
+
+	/**
+	 * Set how many threads scan the cache.  This defaults to the number of cores.
+	 * @param threads the number of threads
+	 * @return this query
+	 */
+	public ProfileQuery setParallelism(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be at least 1");
+
+		mParallelism = threads;
+		return this;
+	}
+
+	/**
+	 * Run the query.
+	 * @return the matching profiles
+	 * @throws InterruptedException if interrupted while the query runs
+	 */
+	public ArrayList<KloutProfile> list() throws InterruptedException {
+		return new ArrayList<KloutProfile>(run(newScan(mLimit)));
+	}
+
+	/**
+	 * Run the query, returning only some fields of each matching profile.
+	 * @param fields the fields to return
+	 * @return a row per matching profile, holding the value of each field in the order given, or
+	 * <code>null</code> where a value is unknown
+	 * @throws InterruptedException if interrupted while the query runs
+	 */
+	public ArrayList<Object[]> select(Field... fields) throws InterruptedException {
+		List<KloutProfile> profiles = run(newScan(mLimit));
+		ArrayList<Object[]> rows = new ArrayList<Object[]>(profiles.size());
+		for (KloutProfile kp : profiles) {
+			Object[] row = new Object[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				row[i] = fields[i].get(kp);
+			}
+			rows.add(row);
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Count the matching profiles, ignoring any limit.
+	 * @return the number of matching profiles
+	 * @throws InterruptedException if interrupted while the query runs
+	 */
+	public int count() throws InterruptedException {
+		ParallelScan<KloutProfile> scan = newScan(0);
+		run(scan);
+		return scan.getCount();
+	}
+
+	private ParallelScan<KloutProfile> newScan(int limit) {
+		ArrayList<ParallelScan.Filter<KloutProfile>> filters = new ArrayList<ParallelScan.Filter<KloutProfile>>();
+		for (Map.Entry<Field, double[]> e : mRanges.entrySet()) {
+			final Field field = e.getKey();
+			final double min = e.getValue()[0];
+			final double max = e.getValue()[1];
+			filters.add(new ParallelScan.Filter<KloutProfile>() {
+				public boolean matches(KloutProfile kp) {
+					double value = field.value(kp);
+					return value >= min && value <= max;
+				}
+			});
+		}
+
+		if (!mTopics.isEmpty()) {
+			final long[] topicIds = new long[mTopics.size()];
+			for (int i = 0; i < topicIds.length; i++) {
+				topicIds[i] = mTopics.get(i);
+			}
+			filters.add(new ParallelScan.Filter<KloutProfile>() {
+				public boolean matches(KloutProfile kp) {
+					ArrayList<Topic> held = kp.getTopics();
+					if (held == null)
+						return false;
+
+					for (long id : topicIds) {
+						if (!holds(held, id))
+							return false;
+					}
+					return true;
+				}
+			});
+		}
+
+		filters.addAll(mFilters);
+		return new ParallelScan<KloutProfile>(filters, newOrder(), limit, mParallelism);
+	}
+
+	private static boolean holds(ArrayList<Topic> topics, long id) {
+		for (Topic t : topics) {
+			if (t.getId() == id)
+				return true;
+		}
+		return false;
+	}
+
+	private Comparator<KloutProfile> newOrder() {
+		if (mOrderFields.isEmpty())
+			return null;
+
+		final Field[] fields = mOrderFields.toArray(new Field[mOrderFields.size()]);
+		final boolean[] descending = new boolean[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			descending[i] = mOrderDescending.get(i);
+		}
+
+		return new Comparator<KloutProfile>() {
+			public int compare(KloutProfile a, KloutProfile b) {
+				for (int i = 0; i < fields.length; i++) {
+					int c = fields[i].isNumeric() ? compareValues(fields[i].value(a), fields[i].value(b), descending[i])
+							: compareObjects(fields[i].get(a), fields[i].get(b), descending[i]);
+					if (c != 0)
+						return c;
+				}
+				return a.getScreenName().compareTo(b.getScreenName());
+			}
+		};
+	}
+
+	private static int compareValues(double a, double b, boolean descending) {
+		boolean unknownA = Double.isNaN(a);
+		boolean unknownB = Double.isNaN(b);
+		if (unknownA || unknownB)
+			return (unknownA == unknownB) ? 0 : (unknownA ? 1 : -1);
+		return descending ? Double.compare(b, a) : Double.compare(a, b);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compareObjects(Object a, Object b, boolean descending) {
+		if (a == null || b == null)
+			return (a == b) ? 0 : ((a == null) ? 1 : -1);
+		int c = ((Comparable<Object>) a).compareTo(b);
+		return descending ? -c : c;
+	}
+
+	/**
+	 * Feed the scan its partitions, from the score index if it's cheaper, and wait for its results.
+	 */
+	private List<KloutProfile> run(ParallelScan<KloutProfile> scan) throws InterruptedException {
+		boolean finished = false;
+		try {
+			if (!isEmpty()) {
+				List<ScoreIndex.Entry> candidates = indexCandidates();
+				if (candidates != null)
+					scanCandidates(scan, candidates);
+				else
+					scanCache(scan);
+			}
+
+			List<KloutProfile> results = scan.finish();
+			finished = true;
+			return results;
+		} finally {
+			if (!finished)
+				scan.cancel();
+		}
+	}
+
+	/**
+	 * @return whether the query can be seen to match nothing without a scan
+	 */
+	private boolean isEmpty() {
+		for (double[] range : mRanges.values()) {
+			if (!(range[0] <= range[1]))
+				return true;
+		}
+		for (Long id : mTopics) {
+			if (mTopicRegistry.getTopic(id) == null)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Pick out the candidates for the query from the score index, if it narrows them down enough
+	 * to beat a scan.
+	 * @return the candidates or <code>null</code> to scan the whole cache
+	 */
+	private List<ScoreIndex.Entry> indexCandidates() {
+		// Profiles without a fetched score (just topics, say) aren't indexed, but they never match a
+		// score range either
+		double[] scores = mRanges.get(Field.SCORE);
+		if (scores != null && mScoreIndex.countRange(scores[0], scores[1]) <= mScores.size() / INDEX_SELECTIVITY)
+			return mScoreIndex.getRange(scores[0], scores[1], Integer.MAX_VALUE);
+		return null;
+	}
+
+	private void scanCandidates(ParallelScan<KloutProfile> scan, List<ScoreIndex.Entry> candidates) throws InterruptedException {
+		for (int from = 0; from < candidates.size() && !scan.isDone(); from += CHUNK_SIZE) {
+			final List<ScoreIndex.Entry> chunk = candidates.subList(from, Math.min(from + CHUNK_SIZE, candidates.size()));
+			scan.submit(new ParallelScan.Partition<KloutProfile>() {
+				public void scan(ParallelScan.Matches<KloutProfile> matches) {
+					for (ScoreIndex.Entry e : chunk) {
+						KloutProfile kp = mScores.get(e.getKey());
+						if (kp != null && !matches.offer(kp))
+							return;
+					}
+				}
+			});
+		}
+	}
+
+	private void scanCache(ParallelScan<KloutProfile> scan) throws InterruptedException {
+		Iterator<KloutProfile> it = mScores.values().iterator();
+		while (it.hasNext() && !scan.isDone()) {
+			ArrayList<KloutProfile> chunk = new ArrayList<KloutProfile>(CHUNK_SIZE);
+			while (it.hasNext() && chunk.size() < CHUNK_SIZE) {
+				chunk.add(it.next());
+			}
+			scan.submit(chunk);
+		}
+	}
+}
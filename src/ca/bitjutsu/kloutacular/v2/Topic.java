@@ -61,4 +61,12 @@ public class Topic {
 	public String getImageUrl() {
 		return mImageUrl;
 	}
+	
+	/* package */ boolean matches(String name, String displayName, String slug, String imageUrl) {
+		return equal(mName, name) && equal(mDisplayName, displayName) && equal(mSlug, slug) && equal(mImageUrl, imageUrl);
+	}
+	
+	private static boolean equal(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
 }
@@ -0,0 +1,68 @@
+package ca.bitjutsu.kloutacular.v2;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * A registry of canonical {@link Topic} instances, keyed by topic ID.  Popular topics show up
+ * in the topic lists of a great many users, so rather than allocating a new {@link Topic} for
+ * every topic of every user on every fetch, profiles share the single instance held here.
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class TopicRegistry {
+	private ConcurrentHashMap<Long, Topic> mTopics;
+
+	/* package */ TopicRegistry() {
+		mTopics = new ConcurrentHashMap<Long, Topic>();
+	}
+
+	/**
+	 * Get the canonical topic for the given values, registering a new one if we haven't seen
+	 * this topic before or if Klout has changed its details since we last saw it.
+	 * @param id the unique id for the Klout topic
+	 * @param name the topic name
+	 * @param displayName the topic display name
+	 * @param slug the topic slug
+	 * @param imageUrl the URL to Klout's image for the topic
+	 * @return the shared topic instance
+	 */
+	/* package */ Topic intern(long id, String name, String displayName, String slug, String imageUrl) {
+		Long key = Long.valueOf(id);
+		Topic existing = mTopics.get(key);
+
+		// The common case: we already have this exact topic, so don't allocate anything
+		if (existing != null && existing.matches(name, displayName, slug, imageUrl))
+			return existing;
+
+		Topic topic = new Topic(id, name, displayName, slug, imageUrl);
+		if (existing == null) {
+			existing = mTopics.putIfAbsent(key, topic);
+			// Another thread registered the topic first; prefer its instance if it's the same topic
+			if (existing != null && existing.matches(name, displayName, slug, imageUrl))
+				return existing;
+		}
+
+		// Profiles still holding the old instance keep it until they are next refreshed
+		mTopics.put(key, topic);
+		return topic;
+	}
+
+	/**
+	 * Look up a topic by its ID.
+	 * @param id the unique id for the Klout topic
+	 * @return the topic or <code>null</code> if no profile has been fetched with this topic
+	 */
+	public Topic getTopic(long id) {
+		return mTopics.get(Long.valueOf(id));
+	}
+
+	/**
+	 * Get the number of distinct topics held by the registry.
+	 * @return the number of registered topics
+	 */
+	public int size() {
+		return mTopics.size();
+	}
+}
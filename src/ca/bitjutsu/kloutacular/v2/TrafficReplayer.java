@@ -0,0 +1,76 @@
+package ca.bitjutsu.kloutacular.v2;
+
+import java.util.HashMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import ca.bitjutsu.kloutacular.util.Priority;
+import ca.bitjutsu.kloutacular.util.ReplayDriver;
+import ca.bitjutsu.kloutacular.util.ReplayTransport;
+import ca.bitjutsu.kloutacular.util.TrafficCapture;
+
+/**
+ * Replays traffic recorded with {@link KloutScoreManager#startRecording(java.io.File)} through a
+ * manager, offline.  Each recorded score, influence and topics call is turned back into the request
+ * that made it, forced so that it is made again rather than answered from the cache; the Klout IDs
+ * in their URLs are mapped back to screen names through the recorded identity lookups, which the
+ * manager then makes again itself as it needs them:
+ * <pre>
+ * TrafficCapture capture = TrafficCapture.read(file);
+ * manager.setTransport(new ReplayTransport(capture, 10));
+ * long millis = new TrafficReplayer(manager, capture).replay(capture, 10);
+ * </pre>
+ *
+ * @author Adam Carruthers (adam.carruthers@bitjutsu.ca)
+ *
+ */
+public class TrafficReplayer extends ReplayDriver {
+	private static final String USER_PREFIX = "/v2/user.json/";
+
+	private KloutScoreManager mManager;
+	private HashMap<String, String> mScreenNames;
+
+	/**
+	 * @param manager the manager to replay through, already using a {@link ReplayTransport}
+	 * @param capture the capture to be replayed, to map Klout IDs back to screen names
+	 */
+	public TrafficReplayer(KloutScoreManager manager, TrafficCapture capture) {
+		super(manager.getWorkerPool());
+		mManager = manager;
+		mScreenNames = new HashMap<String, String>();
+		for (TrafficCapture.Call call : capture.getCalls()) {
+			int screenName = call.getUrl().indexOf("/identity.json/twitter?screenName=");
+			if (screenName < 0 || call.getResponse() == null)
+				continue;
+
+			try {
+				String kloutId = new JSONObject(call.getResponse()).getString("id");
+				mScreenNames.put(kloutId, call.getUrl().substring(call.getUrl().indexOf('=', screenName) + 1));
+			} catch (JSONException e) {
+				// An unknown user; nothing was fetched for them
+			}
+		}
+	}
+
+	@Override
+	protected void issue(TrafficCapture.Call call) {
+		String url = call.getUrl();
+		int user = url.indexOf(USER_PREFIX);
+		if (user < 0)
+			return;
+		int end = url.indexOf('/', user + USER_PREFIX.length());
+		if (end < 0)
+			return;
+		String screenName = mScreenNames.get(url.substring(user + USER_PREFIX.length(), end));
+		if (screenName == null)
+			return;
+
+		if (url.endsWith("/score"))
+			mManager.requestKlout(screenName, true, Priority.NORMAL);
+		else if (url.endsWith("/influence"))
+			mManager.requestInfluence(screenName, true, Priority.NORMAL);
+		else if (url.endsWith("/topics"))
+			mManager.requestTopics(screenName, true, Priority.NORMAL);
+	}
+}